@@ -0,0 +1,13 @@
+precision mediump float;
+
+uniform sampler2D tex0;
+uniform float alpha;
+
+varying vec2 passTexcoord;
+varying vec4 passColor;
+
+void main() {
+
+    // El atlas de la fuente sólo tiene canal alfa
+    gl_FragColor = vec4(passColor.rgb, passColor.a * alpha * texture2D(tex0, passTexcoord).a);
+}
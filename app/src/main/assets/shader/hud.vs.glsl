@@ -0,0 +1,16 @@
+attribute vec4 vPosition;
+attribute vec2 vTexcoord;
+attribute vec4 vColor;
+
+uniform mat4 mvp;
+
+varying vec2 passTexcoord;
+varying vec4 passColor;
+
+void main() {
+
+    passTexcoord = vTexcoord;
+    passColor = vColor;
+
+    gl_Position = mvp * vPosition;
+}
@@ -0,0 +1,12 @@
+precision mediump float;
+
+varying vec4 passColor;
+
+void main() {
+
+    // Cada punto es un círculo con el borde suavizado
+    vec2 d = gl_PointCoord - vec2(0.5);
+    float r = dot(d, d) * 4.0;
+    if(r > 1.0) discard;
+    gl_FragColor = vec4(passColor.rgb, passColor.a * (1.0 - r * r));
+}
@@ -0,0 +1,17 @@
+attribute vec4 vPosition;
+attribute float vSize;
+attribute vec4 vColor;
+
+uniform mat4 vp;
+uniform float pointScale;
+
+varying vec4 passColor;
+
+void main() {
+
+    passColor = vColor;
+
+    // El tamaño de la partícula está en unidades del mundo, se pasa a píxeles según la distancia
+    gl_Position = vp * vPosition;
+    gl_PointSize = clamp(vSize * pointScale / gl_Position.w, 1.0, 64.0);
+}
@@ -0,0 +1,58 @@
+// Variantes (ver ShaderProgram): TEXTURED, SPECULAR, VERTEX_LIGHTING, INSTANCED
+
+precision mediump float;
+
+#ifdef TEXTURED
+uniform sampler2D tex0;
+uniform sampler2D tex1;     // Alfa de las texturas ETC1 (blanco si la textura ya lo tiene)
+#endif
+
+varying vec2 passTexcoord;
+varying vec3 passDiffuse;
+
+#ifdef VERTEX_LIGHTING
+varying vec3 passLight;
+#else
+varying vec3 toLightVector;
+varying vec3 toCameraVector;
+varying vec3 passNormal;
+uniform vec3 lightColor;
+#endif
+
+uniform vec3 ambient;
+uniform float alpha;
+
+#if defined(SPECULAR) && !defined(VERTEX_LIGHTING)
+uniform vec3 specular;
+uniform float shininess;
+#endif
+
+void main() {
+
+#ifdef TEXTURED
+    vec4 texColor = texture2D(tex0, passTexcoord);
+    texColor.a *= texture2D(tex1, passTexcoord).r;
+    vec3 diffuseColor = (1.0 - texColor.a) * passDiffuse + texColor.a * texColor.rgb;
+#else
+    // Lo mismo que con la textura vacía de Texture (gris 128 con alfa 128)
+    vec3 diffuseColor = mix(passDiffuse, vec3(128.0 / 255.0), 128.0 / 255.0);
+#endif
+
+    vec3 specularFactor = vec3(0.0);
+#ifdef VERTEX_LIGHTING
+    vec3 light = passLight;
+#else
+    vec3 unitNormal = normalize(passNormal);
+    vec3 unitLightVector = normalize(toLightVector);
+    vec3 light = max(dot(unitNormal, unitLightVector), 0.0) * lightColor;
+
+#ifdef SPECULAR
+    vec3 unitCameraVector = normalize(toCameraVector);
+    vec3 reflectedLightDirection = reflect(-unitLightVector, unitNormal);
+    float specularCoef = pow(max(dot(reflectedLightDirection, unitCameraVector), 0.0), shininess);
+    specularFactor = specular * specularCoef;
+#endif
+#endif
+
+    gl_FragColor = vec4(0.1 * ambient + diffuseColor * light + specularFactor, alpha);
+}
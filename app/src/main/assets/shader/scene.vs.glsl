@@ -0,0 +1,59 @@
+// Variantes (ver ShaderProgram): TEXTURED, SPECULAR, VERTEX_LIGHTING, INSTANCED
+
+attribute vec4 vPosition;
+attribute vec2 vTexcoord;
+attribute vec3 vNormal;
+
+#ifdef INSTANCED
+attribute float vInstance;
+uniform mat4 vp;
+uniform mat4 instanceM[16];
+uniform vec3 instanceDiffuse[16];
+#else
+uniform mat4 m;
+uniform mat4 mvp;
+uniform vec3 diffuse;
+#endif
+
+uniform vec3 lightPos;
+
+varying vec2 passTexcoord;
+varying vec3 passDiffuse;
+
+#ifdef VERTEX_LIGHTING
+uniform vec3 lightColor;
+varying vec3 passLight;
+#else
+uniform vec3 cameraPos;
+varying vec3 toLightVector;
+varying vec3 toCameraVector;
+varying vec3 passNormal;
+#endif
+
+void main() {
+
+#ifdef INSTANCED
+    int instance = int(vInstance);
+    mat4 model = instanceM[instance];
+    passDiffuse = instanceDiffuse[instance];
+    vec4 worldPos = model * vPosition;
+    gl_Position = vp * worldPos;
+#else
+    mat4 model = m;
+    passDiffuse = diffuse;
+    vec4 worldPos = m * vPosition;
+    gl_Position = mvp * vPosition;
+#endif
+
+    passTexcoord = vTexcoord;
+    vec3 normal = (model * vec4(vNormal, 0.0)).xyz;
+
+#ifdef VERTEX_LIGHTING
+    vec3 unitLightVector = normalize(lightPos - worldPos.xyz);
+    passLight = max(dot(normalize(normal), unitLightVector), 0.0) * lightColor;
+#else
+    passNormal = normal;
+    toLightVector = lightPos - worldPos.xyz;
+    toCameraVector = cameraPos - worldPos.xyz;
+#endif
+}
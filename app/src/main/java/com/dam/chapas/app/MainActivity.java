@@ -11,22 +11,26 @@ import android.app.Application;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.fragment.app.FragmentActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.dam.chapas.BuildConfig;
 import com.dam.chapas.R;
 import com.dam.chapas.bluetooth.BluetoothHelper;
 import com.dam.chapas.bluetooth.BluetoothService;
 import com.dam.chapas.game.GameData;
 import com.dam.chapas.opengl.GLRendererImpl;
 import com.dam.chapas.opengl.GLSurfaceViewImpl;
+import com.dam.chapas.opengl.Profiler;
 import android.os.Handler;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -35,6 +39,7 @@ import java.io.IOException;
 public class MainActivity extends Activity {
 
     private GLRendererImpl renderer = null;
+    private GLSurfaceViewImpl glView = null;
 
     /**
      * @brief Callback llamado cuando se crea la actividad
@@ -62,25 +67,12 @@ public class MainActivity extends Activity {
         // Cambia el layout
         setContentView(R.layout.juegolocal);
 
-        // Obtén los elementos del GUI
-        TextView resultText = findViewById(R.id.resultText);
-        TextView tiempoTurnoText = findViewById(R.id.tiempoTurnoText);
-        TextView tiempoText = findViewById(R.id.tiempoText);
-        TextView chutsText = findViewById(R.id.chutsText);
-        TextView centerText = findViewById(R.id.centerText);
-
-        // Ponlos en invisible por ahora
-        resultText.setVisibility(View.INVISIBLE);
-        tiempoTurnoText.setVisibility(View.INVISIBLE);
-        tiempoText.setVisibility(View.INVISIBLE);
-        chutsText.setVisibility(View.INVISIBLE);
-        centerText.setVisibility(View.INVISIBLE);
-
-        // Guarda los elementos del GUI
-        GameData.setGuiElements(this, resultText, tiempoTurnoText, tiempoText, chutsText, centerText);
+        // La GUI de la partida la dibuja el renderer
+        GameData.setMainActivity(this);
 
         // Guarda el renderer
-        renderer = ((GLSurfaceViewImpl)findViewById(R.id.glSurfaceViewID)).getRenderer();
+        glView = findViewById(R.id.glSurfaceViewID);
+        renderer = glView.getRenderer();
     }
 
     /**
@@ -148,6 +140,7 @@ public class MainActivity extends Activity {
     public void Ir_Principal(View view) {
 
         renderer = null;
+        glView = null;
 
         // Detén el Bluetooth
         BluetoothHelper btHelper = MainApplication.getInstance().getBluetoothHelper();
@@ -167,15 +160,83 @@ public class MainActivity extends Activity {
         setContentView(R.layout.credits);
     }
 
+    /**
+     * @brief Crea el menú de depuración (sólo en las compilaciones de depuración)
+     * @param menu  El menú de opciones
+     * @return  Si se muestra el menú
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        if(!BuildConfig.DEBUG) {
+            return false;
+        }
+        getMenuInflater().inflate(R.menu.debug, menu);
+        return true;
+    }
+
+    /**
+     * @brief Llamado cuando se elige una opción del menú de depuración
+     * @param item  La opción elegida
+     * @return  Si se ha tratado la opción
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        Profiler profiler = (renderer != null) ? renderer.getProfiler() : null;
+        if(profiler == null) {
+            Toast.makeText(this, "No hay ninguna partida en curso", Toast.LENGTH_SHORT).show();
+            return super.onOptionsItemSelected(item);
+        }
+        switch(item.getItemId()) {
+            case R.id.debug_profiler:
+                profiler.setOverlayVisible(!profiler.isOverlayVisible());
+                item.setChecked(profiler.isOverlayVisible());
+                glView.requestRender();
+                return true;
+            case R.id.debug_export_trace:
+                File dir = getExternalFilesDir(null);
+                File file = new File(dir != null ? dir : getFilesDir(), "trace-" + System.currentTimeMillis() + ".json");
+                try {
+                    profiler.exportTrace(file);
+                    Toast.makeText(this, "Traza guardada en " + file.getPath(), Toast.LENGTH_LONG).show();
+                } catch(IOException e) {
+                    Toast.makeText(this, "Error guardando la traza", Toast.LENGTH_SHORT).show();
+                }
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * @brief Llamado cuando la actividad pasa a segundo plano
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if(glView != null) {
+            glView.onPause();
+        }
+    }
+
+    /**
+     * @brief Llamado cuando la actividad vuelve a primer plano
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if(glView != null) {
+            glView.onResume();
+        }
+    }
+
     /**
      * @brief Llamado cuando se destruye la actividad
      */
     public void onDestroy() {
         super.onDestroy();
 
-        // Libera el renderer
-        if(renderer != null) {
-            renderer.free();
+        // Libera el renderer (en el hilo de OpenGL)
+        if(glView != null) {
+            glView.freeRenderer();
         }
 
         // Detén Bluetooth
@@ -10,7 +10,6 @@ import android.graphics.Point;
 import android.opengl.Matrix;
 import android.util.Log;
 import android.view.Display;
-import android.view.View;
 
 import com.dam.chapas.app.MainApplication;
 import com.dam.chapas.opengl.Camera;
@@ -30,6 +29,7 @@ public class ChoosingState extends GameState {
     private static final float ARROW_MAGNITUDE_MULT = 1.25f;
     private static final float IMPULSE_MULTIPLIER = 21.0f;
     private static final float PASS_RANGE = 1.0f;
+    private static final float HARD_IMPACT_SPEED = 1.5f;   /**< Velocidad relativa a partir de la que salen chispas */
 
     protected GameData data;
     protected GLRendererImpl renderer;
@@ -42,6 +42,14 @@ public class ChoosingState extends GameState {
     private int selectedCapID;
     private float touchPointX, touchPointY;
 
+    // Temporales de los toques, reutilizados para no reservar memoria en cada uno
+    private final Point screenSize = new Point();
+    private final float[] impulse = new float[3];
+    private final float[] clipCoords = new float[4];
+    private final float[] eyeCoords = new float[4];
+    private final float[] invMatrix = new float[16];
+    private final float[] mouseRay = new float[4];
+
     /**
      * @brief Ve al final de una parte del juego
      */
@@ -57,103 +65,94 @@ public class ChoosingState extends GameState {
         renderer.changeGameState(new GoalState(team, data, renderer));
     }
 
-    private Runnable updateRunnable = new Runnable() {
-
-        @Override
-        public void run() {
+    /**
+     * @brief Avanza los relojes, comprueba los goles y decide los cambios de turno
+     * @details Se ejecuta en el hilo de la simulación, justo antes de World.update, y actualiza
+     * directamente los textos del Hud; los toques también se procesan en este hilo (ver TouchQueue)
+     */
+    private void updateMatch() {
 
-            if(!data.getWorld().isMoving()) {
+        if(!data.getWorld().isMoving()) {
 
-                // Si se ha acabado el tiempo de turno...
-                if(data.tickTurnTime(false)) {
-                    toggleTurn();
-                    synchronized (this) {
-                        this.notify();
-                    }
-                    return;
-                }
+            // Si se ha acabado el tiempo de turno...
+            if(data.tickTurnTime(false, renderer.getElapsedFrames())) {
+                toggleTurn();
+                return;
             }
+        }
 
-            // Resta al reloj del partido
-            if(data.tickTime()) {
+        // Resta al reloj del partido
+        if(data.tickTime(renderer.getElapsedFrames())) {
 
-                // Si se ha acabado el tiempo...
-                goEndState();
-                synchronized (this) {
-                    this.notify();
-                }
-                return;
-            }
+            // Si se ha acabado el tiempo...
+            goEndState();
+            return;
+        }
 
-            // Comprueba si se ha metido un gol
-            boolean moving = data.getWorld().isMoving();
-            if(moving) {
-                float[] ballPos = data.getBall().getPosition();
-                if(ballPos[0] >= -0.83f && ballPos[0] <= 0.83f && ballPos[2] >= 5.4f) {
-                    // Gol para el equipo local
-                    goGoalState(1);
-                } else if(ballPos[0] >= -0.83f && ballPos[0] <= 0.83f &&  ballPos[2] <= -5.4f) {
-                    // Gol para el equipo visitante
-                    goGoalState(0);
-                }
+        // Comprueba si se ha metido un gol
+        boolean moving = data.getWorld().isMoving();
+        if(moving) {
+            float[] ballPos = data.getBall().getPosition();
+            if(ballPos[0] >= -0.83f && ballPos[0] <= 0.83f && ballPos[2] >= 5.4f) {
+                // Gol para el equipo local
+                goGoalState(1);
+            } else if(ballPos[0] >= -0.83f && ballPos[0] <= 0.83f &&  ballPos[2] <= -5.4f) {
+                // Gol para el equipo visitante
+                goGoalState(0);
             }
+        }
 
-            // Comprueba si los objetos han dejado de moverse
-            if(moving != lastMoving && !moving) {
+        // Comprueba si los objetos han dejado de moverse
+        if(moving != lastMoving && !moving) {
 
-                // Si alguien ha tocado la pelota...
-                if(ballPosessor != null) {
+            // Si alguien ha tocado la pelota...
+            if(ballPosessor != null) {
 
-                    // Comprueba que el posesor es de tu equipo
-                    boolean myPlayer = false;
-                    for(Mesh cap : data.getCaps()) {
-                        if(cap.getRigidBody() == ballPosessor) {
-                            myPlayer = true;
-                            break;
-                        }
-                    }
-                    if(data.getKeeper().getRigidBody() == ballPosessor) {
+                // Comprueba que el posesor es de tu equipo
+                boolean myPlayer = false;
+                for(Mesh cap : data.getCaps()) {
+                    if(cap.getRigidBody() == ballPosessor) {
                         myPlayer = true;
+                        break;
                     }
+                }
+                if(data.getKeeper().getRigidBody() == ballPosessor) {
+                    myPlayer = true;
+                }
 
-                    // Si no es de tu equipo, se acaba tu turno
-                    if(!myPlayer) {
-                        toggleTurn();
-                    } else {
-                        RigidBody ballRB = data.getBall().getRigidBody();
-                        float x = ballPosessor.getPosition()[0] - ballRB.getPosition()[0];
-                        float z = ballPosessor.getPosition()[2] - ballRB.getPosition()[2];
-                        float dist = x * x + z * z;
-
-                        // Si estamos en rango de pase, baja los chuts
-                        if(dist < PASS_RANGE) {
-                            if(data.getShoots() > 1) {
-                                if(data.downShoots()) {     // El pase no cuenta como última jugada
-                                    toggleTurn();
-                                }
+                // Si no es de tu equipo, se acaba tu turno
+                if(!myPlayer) {
+                    toggleTurn();
+                } else {
+                    RigidBody ballRB = data.getBall().getRigidBody();
+                    float x = ballPosessor.getPosition()[0] - ballRB.getPosition()[0];
+                    float z = ballPosessor.getPosition()[2] - ballRB.getPosition()[2];
+                    float dist = x * x + z * z;
+
+                    // Si estamos en rango de pase, baja los chuts
+                    if(dist < PASS_RANGE) {
+                        if(data.getShoots() > 1) {
+                            if(data.downShoots()) {     // El pase no cuenta como última jugada
+                                toggleTurn();
                             }
-                        } else {
-                            // No has pasado el balón bien, se acaba tu turno
-                            toggleTurn();
                         }
-                    }
-                } else {
-                    if(data.downShoots()) {
+                    } else {
+                        // No has pasado el balón bien, se acaba tu turno
                         toggleTurn();
                     }
                 }
-
-                // Comienza la siguiente jugada, nadie ha tocado el balón
-                ballPosessor = null;
+            } else {
+                if(data.downShoots()) {
+                    toggleTurn();
+                }
             }
 
-            lastMoving = moving;
-
-            synchronized (this) {
-                this.notify();
-            }
+            // Comienza la siguiente jugada, nadie ha tocado el balón
+            ballPosessor = null;
         }
-    };
+
+        lastMoving = moving;
+    }
 
     /**
      * @brief Constructor del ChoosingState
@@ -162,17 +161,8 @@ public class ChoosingState extends GameState {
      */
     public ChoosingState(final GameData data, GLRendererImpl renderer) {
 
-        data.getMainActivity().runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                data.getScoreText().setVisibility(View.VISIBLE);
-                data.getTurnTimeText().setVisibility(View.VISIBLE);
-                data.getMatchTimeText().setVisibility(View.VISIBLE);
-                data.getShootsText().setVisibility(View.VISIBLE);
-                data.getCenterText().setVisibility(View.INVISIBLE);
-            }
-        });
+        data.setScoreboardVisible(true);
+        data.setCenterTextVisible(false);
 
         this.renderer = renderer;
         this.arrow = data.getArrow();
@@ -200,6 +190,21 @@ public class ChoosingState extends GameState {
             // Reproduce el sonido de choque
             data.getSoundPlayer().playReboundSound();
 
+            // Si el choque es fuerte, saltan chispas en el punto de contacto
+            float[] v1 = b1.getVelocity();
+            float[] v2 = b2.getVelocity();
+            float dvx = v1[0] - v2[0];
+            float dvz = v1[2] - v2[2];
+            float speed = (float) Math.sqrt(dvx * dvx + dvz * dvz);
+            if(speed >= HARD_IMPACT_SPEED) {
+                float[] p1 = b1.getPosition();
+                float[] p2 = b2.getPosition();
+                float r1 = ((VerticalCylinderBody) b1).getRadius();
+                float t = r1 / (r1 + ((VerticalCylinderBody) b2).getRadius());
+                renderer.getParticles().emitSparks(p1[0] + (p2[0] - p1[0]) * t,
+                        p1[1] + (p2[1] - p1[1]) * t, p1[2] + (p2[2] - p1[2]) * t, speed);
+            }
+
             // Actualiza el que tiene la pelota
             RigidBody ballRB = data.getBall().getRigidBody();
             if(b1 == ballRB) {
@@ -210,6 +215,22 @@ public class ChoosingState extends GameState {
         }
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getFramesUntilUpdate() {
+
+        // Mientras haya algo moviéndose (o acabe de pararse) se dibuja continuamente
+        boolean moving = data.getWorld().isMoving();
+        if(moving || moving != lastMoving) {
+            return 0;
+        }
+
+        // Si no, basta con despertar cuando cambien los relojes
+        return data.getFramesUntilClockChange();
+    }
+
     /**
      * @inheritDoc
      */
@@ -218,18 +239,11 @@ public class ChoosingState extends GameState {
 
         // Dibuja la flecha, si es necesario
         if(selectedCap != null) {
-            arrow.draw(shader, renderer.getCamera());
+            renderer.getRenderQueue().add(arrow, shader);
         }
 
-        // Actualiza la GUI
-        synchronized (updateRunnable) {
-            data.getMainActivity().runOnUiThread(updateRunnable);
-            try {
-                updateRunnable.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        // Actualiza el partido
+        updateMatch();
     }
 
     /**
@@ -293,9 +307,9 @@ public class ChoosingState extends GameState {
         if(selectedCap == null) return;
 
         // Calcula el tamaño de la flecha
-        Point screenSize = getScreenSize();
-        float deltaX = (x - touchPointX) / (float) screenSize.x;
-        float deltaY = (y - touchPointY) / (float) screenSize.y;
+        Point size = getScreenSize();
+        float deltaX = (x - touchPointX) / (float) size.x;
+        float deltaY = (y - touchPointY) / (float) size.y;
         float angle = (float) Math.toDegrees(Math.atan2(deltaY, -deltaX));
         float magnitude = (float) Math.sqrt(deltaX * deltaX + deltaY * deltaY) * ARROW_MAGNITUDE_MULT;
         if(magnitude > MAX_ARROW_MAGNITUDE) magnitude = MAX_ARROW_MAGNITUDE;
@@ -325,7 +339,6 @@ public class ChoosingState extends GameState {
             // Calcula el impulso
             float magnitude = arrow.getScale()[0] * IMPULSE_MULTIPLIER;
             float angle = (float) Math.toRadians(arrow.getRotation()[0]);
-            float[] impulse = new float[3];
             impulse[0] = - magnitude * (float) Math.sin(angle);
             impulse[1] = 0.0f;
             impulse[2] = - magnitude * (float) Math.cos(angle);
@@ -338,13 +351,7 @@ public class ChoosingState extends GameState {
             data.getSoundPlayer().playKickSound();
 
             // Suma 2 segundos al reloj
-            data.getMainActivity().runOnUiThread(new Runnable() {
-
-                @Override
-                public void run() {
-                    data.tickTurnTime(true);
-                }
-            });
+            data.tickTurnTime(true);
 
             // Manda el tiro al otro jugador (online)
             sendShoot(selectedCapID, impulse[0], impulse[2]);
@@ -384,42 +391,38 @@ public class ChoosingState extends GameState {
      * @return
      */
     private boolean raySphereTest(float[] sphereCenter, float sphereRadius, float[] rayPoint, float[] rayDirection) {
-        float[] sphereToRay = new float[3];
-        sphereToRay[0] = sphereCenter[0] - rayPoint[0];
-        sphereToRay[1] = sphereCenter[1] - rayPoint[1];
-        sphereToRay[2] = sphereCenter[2] - rayPoint[2];
-
-        float dot = sphereToRay[0] * rayDirection[0] + sphereToRay[1] * rayDirection[1] + sphereToRay[2] * rayDirection[2];
-        float[] p = new float[3];
-        p[0] = rayPoint[0] + dot * rayDirection[0];
-        p[1] = rayPoint[1] + dot * rayDirection[1];
-        p[2] = rayPoint[2] + dot * rayDirection[2];
-
-        float[] sphereToP = new float[3];
-        sphereToP[0] = sphereCenter[0] - p[0];
-        sphereToP[1] = sphereCenter[1] - p[1];
-        sphereToP[2] = sphereCenter[2] - p[2];
-        float length = (float) Math.sqrt(sphereToP[0] * sphereToP[0] + sphereToP[1] * sphereToP[1] + sphereToP[2] * sphereToP[2]);
+        float sphereToRayX = sphereCenter[0] - rayPoint[0];
+        float sphereToRayY = sphereCenter[1] - rayPoint[1];
+        float sphereToRayZ = sphereCenter[2] - rayPoint[2];
+
+        float dot = sphereToRayX * rayDirection[0] + sphereToRayY * rayDirection[1] + sphereToRayZ * rayDirection[2];
+        float pX = rayPoint[0] + dot * rayDirection[0];
+        float pY = rayPoint[1] + dot * rayDirection[1];
+        float pZ = rayPoint[2] + dot * rayDirection[2];
+
+        float sphereToPX = sphereCenter[0] - pX;
+        float sphereToPY = sphereCenter[1] - pY;
+        float sphereToPZ = sphereCenter[2] - pZ;
+        float length = (float) Math.sqrt(sphereToPX * sphereToPX + sphereToPY * sphereToPY + sphereToPZ * sphereToPZ);
 
         return (length < sphereRadius);
     }
 
     /**
      * @brief Obtén el tamaño de la pantalla
-     * @return  El tamaño en píxeles de la pantalla
+     * @return  El tamaño en píxeles de la pantalla (se reutiliza en cada llamada)
      */
     private Point getScreenSize() {
         Display display = MainApplication.getInstance().getWindowManager().getDefaultDisplay();
-        Point size = new Point();
-        display.getSize(size);
-        return size;
+        display.getSize(screenSize);
+        return screenSize;
     }
 
     /**
      * @brief Calcula la dirección de un rayo
      * @param x     Posición X de la proyección 2D
      * @param y     Posición Y de la proyección 2D
-     * @return  La dirección del rayo
+     * @return  La dirección del rayo (se reutiliza en cada llamada)
      */
     private float[] calculateMouseRay(float x, float y) {
 
@@ -430,18 +433,18 @@ public class ChoosingState extends GameState {
         float ndcX = (2.0f * x) / size.x - 1.0f;
         float ndcY = -((2.0f * y) / size.y - 1.0f);
 
-        float[] clipCoords = new float[] {ndcX, ndcY, -1.0f, 1.0f};
-        float[] invProjection = new float[16];
-        float[] eyeCoords = new float[4];
-        Matrix.invertM(invProjection, 0, mtx.getProjectionMatrix(), 0);
-        Matrix.multiplyMV(eyeCoords, 0, invProjection, 0, clipCoords, 0);
+        clipCoords[0] = ndcX;
+        clipCoords[1] = ndcY;
+        clipCoords[2] = -1.0f;
+        clipCoords[3] = 1.0f;
+        Matrix.invertM(invMatrix, 0, mtx.getProjectionMatrix(), 0);
+        Matrix.multiplyMV(eyeCoords, 0, invMatrix, 0, clipCoords, 0);
         eyeCoords[2] = -1.0f;
         eyeCoords[3] = 0.0f;
 
-        float[] invView = new float[16];
-        float[] rayWorld = new float[4];
-        Matrix.invertM(invView, 0, mtx.getViewMatrix(), 0);
-        Matrix.multiplyMV(rayWorld, 0, invView, 0, eyeCoords, 0);
+        float[] rayWorld = mouseRay;
+        Matrix.invertM(invMatrix, 0, mtx.getViewMatrix(), 0);
+        Matrix.multiplyMV(rayWorld, 0, invMatrix, 0, eyeCoords, 0);
 
         float l = (float) Math.sqrt(rayWorld[0] * rayWorld[0] + rayWorld[1] * rayWorld[1] + rayWorld[2] * rayWorld[2]);
         rayWorld[0] /= l;
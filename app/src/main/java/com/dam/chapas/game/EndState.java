@@ -48,19 +48,14 @@ public class EndState extends GameState {
      */
     @Override
     public void onUpdate(ShaderProgram shader) {
-        animateCenterText(data);
+        animateCenterText(data, renderer.getElapsedFrames());
 
         if(animState == AnimState.END) {
             if(firstText) {
                 switch(data.getMatchStatus()) {
                     case FIRST_TIME:
-                        data.getMainActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                data.setTurn(true);
-                                data.resetStatus(renderer, true);
-                            }
-                        });
+                        data.setTurn(true);
+                        data.resetStatus(renderer, true);
                         initCenterText(data, "Segundo tiempo");
                         data.setMatchStatus(GameData.MatchStatus.SECOND_TIME);
                         break;
@@ -78,13 +73,8 @@ public class EndState extends GameState {
                 }
                 firstText = false;
             } else {
-                data.getMainActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        changeState();
-                        data.getSoundPlayer().playWhistleSound();
-                    }
-                });
+                changeState();
+                data.getSoundPlayer().playWhistleSound();
             }
         }
     }
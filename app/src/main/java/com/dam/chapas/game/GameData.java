@@ -7,25 +7,27 @@ package com.dam.chapas.game;
  */
 
 import android.app.Activity;
-import android.view.View;
-import android.widget.TextView;
+import android.util.Log;
+
+import androidx.core.util.Pair;
 
 import com.dam.chapas.R;
 import com.dam.chapas.app.MainApplication;
-import android.util.Pair;
-
 import com.dam.chapas.online.MovePdu;
+import com.dam.chapas.opengl.AssetLoader;
 import com.dam.chapas.opengl.GLRendererImpl;
+import com.dam.chapas.opengl.Hud;
 import com.dam.chapas.opengl.Material;
 import com.dam.chapas.opengl.Mesh;
+import com.dam.chapas.opengl.MeshBatch;
 import com.dam.chapas.opengl.ObjMesh;
+import com.dam.chapas.opengl.ResourceManager;
 import com.dam.chapas.physics.RigidBody;
 import com.dam.chapas.physics.VerticalCylinderBody;
 import com.dam.chapas.physics.WallBody;
 import com.dam.chapas.physics.World;
 import com.dam.chapas.sound.SoundPlayer;
 
-import java.io.IOException;
 
 /**
  * @class GameData
@@ -42,6 +44,8 @@ public class GameData {
     private Mesh ball;
     private Mesh[][] caps;
     private Mesh[] keepers;
+    private MeshBatch capsBatch;
+    private MeshBatch keepersBatch;
     private Mesh stadium;
     private Mesh arrow;
     private int[] goals;
@@ -54,11 +58,25 @@ public class GameData {
     private int totalTime;
     private int shoots;
     private World world;
-    private static TextView scoreText;
-    private static TextView turnTimeText;
-    private static TextView matchTimeText;
-    private static TextView shootsText;
-    private static TextView centerText;
+    private AssetLoader loader;
+    private ObjMesh.Asset ballAsset;
+    private ObjMesh.Asset capAsset;
+    private ObjMesh.Asset keeperAsset;
+    private ObjMesh.Asset arrowAsset;
+    private ObjMesh.Asset stadiumAsset;
+    private int lastProgress;
+    private boolean loaded;
+    private boolean freed;      /**< Si ya se han liberado los recursos */
+    private Hud hud;
+    private int scoreLabel;
+    private int turnTimeLabel;
+    private int matchTimeLabel;
+    private int shootsLabel;
+    private int centerLabel;
+    private final StringBuilder labelText = new StringBuilder(16);  /**< Texto de las etiquetas, reutilizado */
+    private int shownMatchSeconds = -1;     /**< Valores que muestran las etiquetas (-1 si no muestran nada) */
+    private int shownTurnSeconds = -1;
+    private int shownShoots = -1;
     private static Activity mainActivity;
 
     public static final int CAPS_PER_TEAM = 8;
@@ -68,7 +86,14 @@ public class GameData {
     private static final float BALL_SCALE = 0.17f;
     private static final float BALL_RADIUS = 0.85f;
     private static final float BALL_Y = 0.145f;
-    private static final int TOTAL_TIME = 5 * 60 * 60;
+    private static final int TOTAL_TIME = 5 * 60 * 60;     /**< Duración del partido, en pasos de 1/60 s de tiempo real */
+    private static final String[] TWO_DIGITS = new String[100];    /**< "00" a "99", para los relojes */
+
+    static {
+        for(int i = 0; i < TWO_DIGITS.length; i++) {
+            TWO_DIGITS[i] = (i < 10) ? "0" + i : Integer.toString(i);
+        }
+    }
 
     private final float[] capsPos = new float[] {
             2.0f, 0.0f, 4.25f,
@@ -91,14 +116,10 @@ public class GameData {
     };
 
     /**
-     * @brief Obtén los elementos del GUI
+     * @brief Establece la actividad principal
+     * @param mainActivity  La actividad principal
      */
-    public static void setGuiElements(Activity mainActivity, TextView scoreText, TextView turnTimeText, TextView matchTimeText, TextView shootsText, TextView centerText) {
-        GameData.scoreText = scoreText;
-        GameData.turnTimeText = turnTimeText;
-        GameData.matchTimeText = matchTimeText;
-        GameData.shootsText = shootsText;
-        GameData.centerText = centerText;
+    public static void setMainActivity(Activity mainActivity) {
         GameData.mainActivity = mainActivity;
     }
 
@@ -113,7 +134,7 @@ public class GameData {
         } else {
             goals[1] ++;
         }
-        scoreText.setText(goals[0] + " - " + goals[1]);
+        hud.setText(scoreLabel, goals[0] + " - " + goals[1]);
         resetStatus(renderer, false);
     }
 
@@ -141,8 +162,7 @@ public class GameData {
 
         if(resetTime) {
             totalTime = TOTAL_TIME;
-            int t = totalTime / 60;
-            matchTimeText.setText(String.format("%02d:%02d", t / 60, t % 60));
+            showMatchTime();
         }
     }
 
@@ -152,12 +172,22 @@ public class GameData {
      * @return Si se ha acabado el tiempo
      */
     public boolean tickTurnTime(boolean action) {
+        return tickTurnTime(action, 1);
+    }
+
+    /**
+     * @brief Actualiza el tiempo del turno
+     * @param action    Si ha realizado una acción
+     * @param frames    Pasos de 1/60 s de tiempo real transcurridos (ver FixedStepClock)
+     * @return Si se ha acabado el tiempo
+     */
+    public boolean tickTurnTime(boolean action, int frames) {
         if(action) {
             turnTime += 2 * 60;
-        } else if (turnTime > 0){
-            turnTime --;
+        } else {
+            turnTime = Math.max(turnTime - frames, 0);
         }
-        turnTimeText.setText(String.format("%02d", turnTime / 60));
+        showTurnTime();
         return (turnTime == 0);
     }
 
@@ -179,15 +209,60 @@ public class GameData {
 
     /**
      * @brief Baja el tiempo de turno
+     * @param frames    Pasos de 1/60 s de tiempo real transcurridos (ver FixedStepClock)
      * @return  Si ha llegado a 0
      */
-    public boolean tickTime() {
-        if(totalTime > 0) totalTime --;
-        int t = totalTime / 60;
-        matchTimeText.setText(String.format("%02d:%02d", t / 60, t % 60));
+    public boolean tickTime(int frames) {
+        totalTime = Math.max(totalTime - frames, 0);
+        showMatchTime();
         return (totalTime == 0);
     }
 
+    /**
+     * @brief Muestra el reloj del partido, si ha cambiado de segundo
+     */
+    private void showMatchTime() {
+        int t = totalTime / 60;
+        if(t == shownMatchSeconds) return;
+        shownMatchSeconds = t;
+        labelText.setLength(0);
+        labelText.append(TWO_DIGITS[Math.min(t / 60, 99)]).append(':').append(TWO_DIGITS[t % 60]);
+        hud.setText(matchTimeLabel, labelText);
+    }
+
+    /**
+     * @brief Muestra el reloj del turno, si ha cambiado de segundo
+     */
+    private void showTurnTime() {
+        int t = turnTime / 60;
+        if(t == shownTurnSeconds) return;
+        shownTurnSeconds = t;
+        hud.setText(turnTimeLabel, TWO_DIGITS[Math.min(t, 99)]);
+    }
+
+    /**
+     * @brief Muestra los chuts restantes, si han cambiado
+     */
+    private void showShoots() {
+        if(shoots == shownShoots) return;
+        shownShoots = shoots;
+        labelText.setLength(0);
+        labelText.append(shoots).append(" chuts");
+        hud.setText(shootsLabel, labelText);
+    }
+
+    /**
+     * @brief Calcula cuántos fotogramas faltan para que cambie algún reloj en pantalla
+     * @return  Fotogramas hasta el siguiente cambio de segundo (o fin) de los relojes
+     */
+    public int getFramesUntilClockChange() {
+        int frames = Math.max(Math.min(totalTime % 60 + 1, totalTime), 1);
+        if(turnTime > 0) {
+            frames = Math.min(frames, Math.min(turnTime % 60 + 1, turnTime));
+        }
+        return frames;
+    }
+
     /**
      * @brief Establece el tiempo total de una parte
      * @param totalTime El tiempo total
@@ -202,7 +277,7 @@ public class GameData {
      */
     public boolean downShoots() {
         shoots --;
-        shootsText.setText(shoots + " chuts");
+        showShoots();
         if(shoots > 0 && MainApplication.getInstance().getBluetoothHelper() != null) {
             MovePdu pdu = new MovePdu();
             pdu.setShoots(shoots);
@@ -217,7 +292,7 @@ public class GameData {
      */
     public void setShoots(int shoots) {
         this.shoots = shoots;
-        shootsText.setText(shoots + " chuts");
+        showShoots();
     }
 
     /**
@@ -229,43 +304,38 @@ public class GameData {
     }
 
     /**
-     * @brief Obtén el texto del marcador
-     * @return  El texto del marcador
+     * @brief Muestra u oculta el marcador, los relojes y los chuts
+     * @param visible   Si se muestran
      */
-    public TextView getScoreText() {
-        return scoreText;
+    public void setScoreboardVisible(boolean visible) {
+        hud.setVisible(scoreLabel, visible);
+        hud.setVisible(turnTimeLabel, visible);
+        hud.setVisible(matchTimeLabel, visible);
+        hud.setVisible(shootsLabel, visible);
     }
 
     /**
-     * @brief Obtén el texto del tiempo de turno
-     * @return  El texto del tiempo de turno
+     * @brief Cambia el texto central
+     * @param text  El nuevo texto
      */
-    public TextView getTurnTimeText() {
-        return turnTimeText;
+    public void setCenterText(CharSequence text) {
+        hud.setText(centerLabel, text);
     }
 
     /**
-     * @brief Obtén el texto del tiempo restante
-     * @return  El texto del tiempo restante
+     * @brief Muestra u oculta el texto central
+     * @param visible   Si se muestra
      */
-    public TextView getMatchTimeText() {
-        return matchTimeText;
+    public void setCenterTextVisible(boolean visible) {
+        hud.setVisible(centerLabel, visible);
     }
 
     /**
-     * @brief Obtén el texto de los chutes restantes
-     * @return  El texto de los chutes restantes
+     * @brief Cambia la transparencia del texto central
+     * @param alpha La transparencia (0 invisible, 1 opaco)
      */
-    public TextView getShootsText() {
-        return shootsText;
-    }
-
-    /**
-     * @brief Obtén el texto central
-     * @return  El texto central
-     */
-    public TextView getCenterText() {
-        return centerText;
+    public void setCenterTextAlpha(float alpha) {
+        hud.setAlpha(centerLabel, alpha);
     }
 
     /**
@@ -318,10 +388,12 @@ public class GameData {
 
     /**
      * @brief Constructor de los datos de la partida
+     * @details Los modelos y sonidos se cargan en segundo plano; hay que llamar a updateLoading
+     * en cada fotograma hasta que termine la carga
      * @param world     El mundo para la simulación de físicas
-     * @throws IOException  Si no se ha podido cargar algún elemento
+     * @param hud       La interfaz donde mostrar el marcador y los textos
      */
-    public GameData(World world) throws IOException {
+    public GameData(World world, Hud hud) {
 
         // Inicializa variables
         goals = new int[] {0, 0};
@@ -329,23 +401,102 @@ public class GameData {
         this.world = world;
         matchStatus = MatchStatus.FIRST_TIME;
 
-        // Inicializa la GUI
-        mainActivity.runOnUiThread(new Runnable() {
+        // Inicializa la GUI (mismos colores que tenía el layout)
+        this.hud = hud;
+        scoreLabel = hud.addLabel(Hud.ANCHOR_TOP_LEFT, -1, 34.0f, Hud.STYLE_NORMAL, 0xFFFFFFFF, 0xFF00897B);
+        turnTimeLabel = hud.addLabel(Hud.ANCHOR_TOP_LEFT, scoreLabel, 34.0f, Hud.STYLE_NORMAL, 0xFFFFFFFF, 0xFF43A047);
+        matchTimeLabel = hud.addLabel(Hud.ANCHOR_TOP_LEFT, turnTimeLabel, 34.0f, Hud.STYLE_NORMAL, 0xFFFFFFFF, 0xFF7CB342);
+        shootsLabel = hud.addLabel(Hud.ANCHOR_BOTTOM_LEFT, -1, 34.0f, Hud.STYLE_NORMAL, 0xFFFFFFFF, 0xFFFB8C00);
+        centerLabel = hud.addLabel(Hud.ANCHOR_CENTER, -1, 56.0f, Hud.STYLE_ITALIC, 0xFFFFFFFF, 0);
+        setTurn(false);
+        hud.setText(scoreLabel, goals[0] + " - " + goals[1]);
+        showMatchTime();
+
+        // Pide la carga de los sonidos y los modelos, en paralelo
+        loader = new AssetLoader();
+        loader.load("sounds", new AssetLoader.Asset() {
 
             @Override
-            public void run() {
-                setTurn(false);
-                scoreText.setText(goals[0] + " - " + goals[1]);
-                int t = totalTime / 60;
-                matchTimeText.setText(String.format("%02d:%02d", t / 60, t % 60));
+            public void decode() {
+                soundPlayer = new SoundPlayer(mainActivity);
             }
+
+            @Override
+            public void upload() { }
         });
+        ballAsset = new ObjMesh.Asset("model/ball.obj");
+        capAsset = new ObjMesh.Asset("model/chapa.obj");
+        keeperAsset = new ObjMesh.Asset("model/tapon.obj");
+        arrowAsset = new ObjMesh.Asset("model/flecha.obj");
+        stadiumAsset = new ObjMesh.Asset("model/stadium.obj", 4, 4);     // Trozos y niveles de detalle (ver meshes.gradle)
+        loader.load("model/stadium.obj", stadiumAsset);
+        loader.load("model/chapa.obj", capAsset);
+        loader.load("model/tapon.obj", keeperAsset);
+        loader.load("model/ball.obj", ballAsset);
+        loader.load("model/flecha.obj", arrowAsset);
+        lastProgress = -1;
+        loaded = false;
+    }
+
+    /**
+     * @brief Avanza la carga de recursos (debe llamarse desde el hilo de OpenGL)
+     * @param budget    Tiempo máximo a dedicar a subir recursos en este fotograma, en nanosegundos
+     * @return  Si la partida ya está cargada
+     * @throws RuntimeException Si algún recurso no se ha podido cargar
+     */
+    public boolean updateLoading(long budget) throws RuntimeException {
+
+        if(loaded) return true;
+
+        boolean finished = loader.processUploads(budget);
+
+        // Muestra el progreso
+        int progress = (int) (loader.getProgress() * 100.0f);
+        if(progress != lastProgress) {
+            lastProgress = progress;
+            hud.setVisible(centerLabel, true);
+            hud.setAlpha(centerLabel, 1.0f);
+            hud.setText(centerLabel, "Cargando... " + progress + "%");
+        }
 
-        // Ve cargando los sonidos
-        soundPlayer = new SoundPlayer(mainActivity);
+        if(finished) {
+            long start = System.nanoTime();
+            createScene();
+            loader.logTimings();
+            Log.d("CHAPAS", "Scene created in " + (System.nanoTime() - start) / 1000000 + " ms");
+            loader.shutdown();
+            loaded = true;
+        }
+        return loaded;
+    }
+
+    /**
+     * @brief Abandona la carga tras un error (debe llamarse desde el hilo de OpenGL)
+     * @details Para los hilos de carga y muestra el mensaje en lugar del progreso
+     * @param message   Mensaje a mostrar
+     */
+    public void failLoading(String message) {
+        loader.shutdown();
+        hud.setVisible(centerLabel, true);
+        hud.setAlpha(centerLabel, 1.0f);
+        hud.setText(centerLabel, message);
+    }
+
+    /**
+     * @brief Obtén el progreso de la carga
+     * @return  Fracción de recursos cargados, entre 0 y 1
+     */
+    public float getLoadingProgress() {
+        return loader.getProgress();
+    }
+
+    /**
+     * @brief Crea los elementos de la partida a partir de los modelos cargados
+     */
+    private void createScene() {
 
         // Carga la pelota
-        ball = new ObjMesh("model/ball.obj");
+        ball = ballAsset.getMesh().clone();
         ball.setPosition(0.0f, BALL_Y, 0.0f);
         ball.setScale(BALL_SCALE, BALL_SCALE, BALL_SCALE);
         ballRB = new VerticalCylinderBody(BALL_RADIUS);
@@ -357,7 +508,7 @@ public class GameData {
         // Carga las chapas
         caps = new Mesh[2][CAPS_PER_TEAM];
         capsRB = new RigidBody[2][CAPS_PER_TEAM];
-        caps[0][0] = new ObjMesh("model/chapa.obj");
+        caps[0][0] = capAsset.getMesh().clone();
         caps[0][0].setScale(CAP_SCALE, CAP_SCALE, CAP_SCALE);
         caps[0][0].setPosition(capsPos[0], capsPos[1], capsPos[2]);
         capsRB[0][0] = new VerticalCylinderBody(CAP_RADIUS);
@@ -389,7 +540,7 @@ public class GameData {
         keepers = new Mesh[2];
         keepersRB = new RigidBody[2];
 
-        keepers[0] = new ObjMesh("model/tapon.obj");
+        keepers[0] = keeperAsset.getMesh().clone();
         keepers[0].setScale(CAP_SCALE, CAP_SCALE, CAP_SCALE);
         keepers[0].setPosition(0.0f, 0.001f, 5.0f);
         keepersRB[0] = new VerticalCylinderBody(1.0f);
@@ -405,13 +556,21 @@ public class GameData {
         keepersRB[1].linkToMesh(keepers[1]);
         world.addRigidBody(keepersRB[1]);
 
+        // Agrupa las chapas y los porteros para dibujarlos de una vez
+        Mesh[] allCaps = new Mesh[2 * CAPS_PER_TEAM];
+        for(int i = 0; i < 2; i++) {
+            System.arraycopy(caps[i], 0, allCaps, i * CAPS_PER_TEAM, CAPS_PER_TEAM);
+        }
+        capsBatch = new MeshBatch(allCaps);
+        keepersBatch = new MeshBatch(keepers);
+
         // Carga la flecha
-        arrow = new ObjMesh("model/flecha.obj");
+        arrow = arrowAsset.getMesh().clone();
         arrow.setPosition(0.0f, 0.001f, 0.0f);
         arrow.setScale(0.2f, 0.2f, 0.2f);
 
         // Carga el estadio
-        stadium = new ObjMesh("model/stadium.obj");
+        stadium = stadiumAsset.getMesh().clone();     // Sólo se dibujan las gradas que se ven
 
         // Crea las paredes superior e inferior
         world.addRigidBody(new WallBody(-4.0f + CAP_RADIUS/2.0f * CAP_SCALE, -10.0f,
@@ -451,20 +610,28 @@ public class GameData {
     }
 
     /**
-     * @brief Libera los recursos
+     * @brief Libera los recursos (debe llamarse desde el hilo de OpenGL)
+     * @details Puede llamarse más de una vez: al acabar la partida la libera EndState y después
+     * también el renderer
      */
     public void free() {
-        soundPlayer.free();
-        ball.delete();
-        stadium.delete();
-        keepers[0].delete();
-        keepers[1].delete();
-        arrow.delete();
-        for(int i = 0; i < 2; i++) {
-            for(int j = 0; j < CAPS_PER_TEAM; j++) {
-                caps[i][j].delete();
-            }
+        if(freed) return;
+        freed = true;
+        if(!loaded) {
+            loader.shutdown();
+            return;
         }
+        soundPlayer.free();
+
+        // Los modelos cargados son de ResourceManager (los de la partida son clones suyos)
+        ResourceManager resources = ResourceManager.getInstance();
+        resources.release(ballAsset.getMesh());
+        resources.release(stadiumAsset.getMesh());
+        resources.release(keeperAsset.getMesh());
+        resources.release(arrowAsset.getMesh());
+        resources.release(capAsset.getMesh());
+        capsBatch.delete();
+        keepersBatch.delete();
     }
 
     /**
@@ -484,8 +651,8 @@ public class GameData {
         turnTime = 20 * 60;
         shoots = 3;
 
-        turnTimeText.setText(String.format("%02d", turnTime / 60));
-        shootsText.setText(shoots + " chuts");
+        showTurnTime();
+        showShoots();
     }
 
     /**
@@ -496,6 +663,22 @@ public class GameData {
         return keepers;
     }
 
+    /**
+     * @brief Obtén el grupo de dibujado de los porteros
+     * @return  Los porteros agrupados
+     */
+    public MeshBatch getKeepersBatch() {
+        return keepersBatch;
+    }
+
+    /**
+     * @brief Obtén el grupo de dibujado de las chapas
+     * @return  Las chapas de ambos equipos agrupadas
+     */
+    public MeshBatch getCapsBatch() {
+        return capsBatch;
+    }
+
     /**
      * @brief Obtén el portero
      * @return  El portero del equipo actual
@@ -6,8 +6,6 @@ package com.dam.chapas.game;
  * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
  */
 
-import android.view.View;
-
 import com.dam.chapas.opengl.ShaderProgram;
 import com.dam.chapas.physics.RigidBody;
 
@@ -37,64 +35,60 @@ public abstract class GameState {
         this.animState = AnimState.WAIT1;
         this.animCounter = 0;
 
-        data.getMainActivity().runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                data.getCenterText().setVisibility(View.VISIBLE);
-                data.getCenterText().setTransitionAlpha(0.0f);
-                data.getCenterText().setText(text);
-            }
-        });
+        data.setCenterTextVisible(true);
+        data.setCenterTextAlpha(0.0f);
+        data.setCenterText(text);
     }
 
     /**
      * @brief Anima el texto central
-     * @param data  Datos del partido
+     * @param data      Datos del partido
+     * @param frames    Fotogramas de 1/60 s transcurridos desde la anterior llamada
      */
-    public void animateCenterText(final GameData data) {
-
-        data.getMainActivity().runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-
-                switch(animState) {
-                    case WAIT1:
-                        animCounter ++;
-                        if(animCounter >= 120) {
-                            animCounter = 0;
-                            animState = AnimState.FADE_IN;
-                        }
-                        break;
-                    case FADE_IN:
-                        animCounter ++;
-                        data.getCenterText().setTransitionAlpha((float) animCounter / 30.0f);
-                        if(animCounter >= 30) {
-                            animCounter = 0;
-                            animState = AnimState.WAIT2;
-                        }
-                        break;
-                    case WAIT2:
-                        animCounter ++;
-                        if(animCounter >= 60) {
-                            animCounter = 0;
-                            animState = AnimState.FADE_OUT;
-                        }
-                        break;
-                    case FADE_OUT:
-                        animCounter ++;
-                        data.getCenterText().setTransitionAlpha(1.0f - (float) animCounter / 30.0f);
-                        if(animCounter >= 30) {
-                            animCounter = 0;
-                            animState = AnimState.END;
-                        }
-                        break;
-                    case END:
-                        break;
+    public void animateCenterText(final GameData data, int frames) {
+
+        switch(animState) {
+            case WAIT1:
+                animCounter += frames;
+                if(animCounter >= 120) {
+                    animCounter = 0;
+                    animState = AnimState.FADE_IN;
+                }
+                break;
+            case FADE_IN:
+                animCounter += frames;
+                data.setCenterTextAlpha(Math.min((float) animCounter / 30.0f, 1.0f));
+                if(animCounter >= 30) {
+                    animCounter = 0;
+                    animState = AnimState.WAIT2;
+                }
+                break;
+            case WAIT2:
+                animCounter += frames;
+                if(animCounter >= 60) {
+                    animCounter = 0;
+                    animState = AnimState.FADE_OUT;
                 }
-            }
-        });
+                break;
+            case FADE_OUT:
+                animCounter += frames;
+                data.setCenterTextAlpha(Math.max(1.0f - (float) animCounter / 30.0f, 0.0f));
+                if(animCounter >= 30) {
+                    animCounter = 0;
+                    animState = AnimState.END;
+                }
+                break;
+            case END:
+                break;
+        }
+    }
+
+    /**
+     * @brief Indica cuándo hace falta dibujar el siguiente fotograma si no se toca la pantalla
+     * @return  Fotogramas hasta la siguiente actualización (0 para dibujar continuamente)
+     */
+    public int getFramesUntilUpdate() {
+        return 0;
     }
 
     /**
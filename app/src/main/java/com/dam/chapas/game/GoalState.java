@@ -37,6 +37,10 @@ public class GoalState extends GameState {
         }
 
         data.getSoundPlayer().playCrowdSound();
+
+        // Lanza confeti desde la pelota
+        float[] ballPos = data.getBall().getPosition();
+        renderer.getParticles().emitConfetti(ballPos[0], ballPos[1], ballPos[2]);
     }
 
     /**
@@ -44,17 +48,12 @@ public class GoalState extends GameState {
      */
     @Override
     public void onUpdate(ShaderProgram shader) {
-        animateCenterText(data);
+        animateCenterText(data, renderer.getElapsedFrames());
 
         if(animState == AnimState.END) {
-            data.getMainActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    data.updateGoals(team, renderer);
-                    changeState();
-                    data.getSoundPlayer().playWhistleSound();
-                }
-            });
+            data.updateGoals(team, renderer);
+            changeState();
+            data.getSoundPlayer().playWhistleSound();
         }
     }
 
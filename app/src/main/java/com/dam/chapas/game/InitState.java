@@ -6,7 +6,6 @@ package com.dam.chapas.game;
  * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
  */
 
-import android.view.View;
 
 import com.dam.chapas.app.MainApplication;
 import com.dam.chapas.opengl.GLRendererImpl;
@@ -43,16 +42,11 @@ public class InitState extends GameState {
     @Override
     public void onUpdate(ShaderProgram shader) {
 
-        animateCenterText(data);
+        animateCenterText(data, renderer.getElapsedFrames());
 
         if(animState == AnimState.END) {
-            data.getMainActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    renderer.changeGameState(new ChoosingState(data, renderer));
-                    data.getSoundPlayer().playWhistleSound();
-                }
-            });
+            renderer.changeGameState(new ChoosingState(data, renderer));
+            data.getSoundPlayer().playWhistleSound();
         }
     }
 
@@ -27,13 +27,7 @@ public class ChoosingStateOnline extends ChoosingState {
     public ChoosingStateOnline(final GameData data, GLRendererImpl renderer) {
 
         super(data, renderer);
-        final boolean isServer = MainApplication.getInstance().getBluetoothHelper().isServer();
-        data.getMainActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                data.setTurn(!isServer);
-            }
-        });
+        data.setTurn(!MainApplication.getInstance().getBluetoothHelper().isServer());
     }
 
     /**
@@ -33,20 +33,15 @@ public class InitStateOnline extends InitState {
     @Override
     public void onUpdate(ShaderProgram shader) {
 
-        animateCenterText(data);
+        animateCenterText(data, renderer.getElapsedFrames());
 
         if(animState == AnimState.END) {
-            data.getMainActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if(MainApplication.getInstance().getBluetoothHelper().isServer()) {
-                        renderer.changeGameState(new ChoosingStateOnline(data, renderer));
-                    } else {
-                        renderer.changeGameState(new WaitingStateOnline(data, renderer));
-                    }
-                    data.getSoundPlayer().playWhistleSound();
-                }
-            });
+            if(MainApplication.getInstance().getBluetoothHelper().isServer()) {
+                renderer.changeGameState(new ChoosingStateOnline(data, renderer));
+            } else {
+                renderer.changeGameState(new WaitingStateOnline(data, renderer));
+            }
+            data.getSoundPlayer().playWhistleSound();
         }
     }
 }
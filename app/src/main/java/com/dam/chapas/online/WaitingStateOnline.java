@@ -7,6 +7,7 @@ package com.dam.chapas.online;
  */
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.widget.Toast;
 
@@ -20,8 +21,8 @@ import com.dam.chapas.opengl.Mesh;
 import com.dam.chapas.opengl.ShaderProgram;
 import com.dam.chapas.physics.RigidBody;
 
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.Stack;
 
 /**
@@ -29,7 +30,8 @@ import java.util.Stack;
  */
 public class WaitingStateOnline extends ChoosingState {
 
-    private Handler handler = new Handler() {
+    // Los mensajes llegan al hilo principal, aunque el estado se cree en el de la simulación
+    private Handler handler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -45,7 +47,8 @@ public class WaitingStateOnline extends ChoosingState {
         }
     };
 
-    private Queue<MovePdu> pduQueue = new LinkedList<>();
+    private Queue<MovePdu> pduQueue = new ConcurrentLinkedQueue<>();
+    private final float[] impulse = new float[3];
 
     /**
      * @brief Constructor de WaitingStateOnline
@@ -55,13 +58,7 @@ public class WaitingStateOnline extends ChoosingState {
     public WaitingStateOnline(final GameData data, GLRendererImpl renderer) {
 
         super(data, renderer);
-        final boolean isServer = MainApplication.getInstance().getBluetoothHelper().isServer();
-        data.getMainActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                data.setTurn(isServer);
-            }
-        });
+        data.setTurn(MainApplication.getInstance().getBluetoothHelper().isServer());
 
         initCenterText(data, "Esperando...");
         animState = AnimState.FADE_IN;
@@ -70,49 +67,47 @@ public class WaitingStateOnline extends ChoosingState {
         MainApplication.getInstance().getBluetoothHelper().setRecvHandler(handler);
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int getFramesUntilUpdate() {
+        return 0;   // El texto central parpadea y hay que atender los movimientos recibidos
+    }
+
     /**
      * @inheritDoc
      */
     @Override
     public void onUpdate(ShaderProgram shader) {
 
-        data.getMainActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                switch(animState) {
-                    case FADE_IN:
-                        animCounter ++;
-                        data.getCenterText().setTransitionAlpha((float) animCounter / 20.0f);
-                        if(animCounter >= 20) {
-                            animCounter = 0;
-                            animState = AnimState.FADE_OUT;
-                        }
-                        break;
-                    case FADE_OUT:
-                        animCounter ++;
-                        if(animCounter >= 20) {
-                            data.getCenterText().setTransitionAlpha(1.0f - (float) animCounter / 20.0f);
-                            animCounter = 0;
-                            animState = AnimState.FADE_IN;
-                        }
-                        break;
+        // Haz parpadear el texto central
+        int frames = renderer.getElapsedFrames();
+        switch(animState) {
+            case FADE_IN:
+                animCounter += frames;
+                data.setCenterTextAlpha(Math.min((float) animCounter / 20.0f, 1.0f));
+                if(animCounter >= 20) {
+                    animCounter = 0;
+                    animState = AnimState.FADE_OUT;
                 }
-            }
-        });
-
-        // Haz que el tiempo pase
-        final boolean moving = data.getWorld().isMoving();
-        data.getMainActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-
-                if(!moving) {
-                    data.tickTurnTime(false);
+                break;
+            case FADE_OUT:
+                animCounter += frames;
+                if(animCounter >= 20) {
+                    data.setCenterTextAlpha(1.0f - (float) animCounter / 20.0f);
+                    animCounter = 0;
+                    animState = AnimState.FADE_IN;
                 }
+                break;
+        }
 
-                data.tickTime();
-            }
-        });
+        // Haz que el tiempo pase
+        boolean moving = data.getWorld().isMoving();
+        if(!moving) {
+            data.tickTurnTime(false, frames);
+        }
+        data.tickTime(frames);
 
         // Comprobar gol
         if(moving) {
@@ -126,16 +121,11 @@ public class WaitingStateOnline extends ChoosingState {
             }
         } else {
             while(!pduQueue.isEmpty()) {
-                final MovePdu pdu = pduQueue.poll();
+                MovePdu pdu = pduQueue.poll();
 
                 // Actualizar chuts
                 if(pdu.getShoots() > 0) {
-                    data.getMainActivity().runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            data.setShoots(pdu.getShoots());
-                        }
-                    });
+                    data.setShoots(pdu.getShoots());
                 }
 
                 // Realiza un movimiento
@@ -145,7 +135,6 @@ public class WaitingStateOnline extends ChoosingState {
                         cap = data.getCaps()[pdu.getCapID()];
                     }
 
-                    float[] impulse = new float[3];
                     impulse[0] = pdu.getDirectionX();
                     impulse[1] = 0.0f;
                     impulse[2] = pdu.getDirectionZ();
@@ -0,0 +1,177 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file AssetLoader.java
+ * @brief Carga asíncrona de recursos
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @class AssetLoader
+ * @details Cada recurso se decodifica en un hilo de fondo (leer archivos, parsear, preparar
+ * buffers) y después se sube a OpenGL desde el hilo de dibujado, que vacía la cola de recursos
+ * listos con un tiempo máximo por fotograma.
+ */
+public class AssetLoader {
+
+    /**
+     * @class Asset
+     * @brief Recurso que se carga en dos fases
+     */
+    public interface Asset {
+
+        /**
+         * @brief Decodifica el recurso (se llama desde un hilo de fondo, sin OpenGL)
+         * @throws Exception    Si no se puede cargar el recurso
+         */
+        void decode() throws Exception;
+
+        /**
+         * @brief Sube el recurso a OpenGL (se llama desde el hilo de OpenGL)
+         */
+        void upload();
+    }
+
+    /**
+     * @class Entry
+     * @brief Recurso pendiente y sus tiempos de carga
+     */
+    private static class Entry {
+        private final String name;
+        private final Asset asset;
+        private long queueTime;         /**< Momento en que se pidió la carga */
+        private long decodeTime;        /**< Duración de la decodificación */
+        private long readyTime;         /**< Momento en que quedó listo para subir */
+        private long uploadTime;        /**< Duración de la subida */
+        private Exception error;
+
+        Entry(String name, Asset asset) {
+            this.name = name;
+            this.asset = asset;
+        }
+    }
+
+    private static final int MAX_THREADS = 4;
+
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Entry> ready = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private int uploaded;
+    private long startTime;
+    private long endTime;
+
+    /**
+     * @brief Constructor del cargador
+     */
+    public AssetLoader() {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        executor = Executors.newFixedThreadPool(threads);
+        uploaded = 0;
+        startTime = System.nanoTime();
+        endTime = 0;
+    }
+
+    /**
+     * @brief Pide la carga de un recurso (debe llamarse desde el hilo de OpenGL)
+     * @param name  Nombre del recurso, para las estadísticas
+     * @param asset El recurso
+     */
+    public void load(String name, Asset asset) {
+
+        final Entry entry = new Entry(name, asset);
+        entry.queueTime = System.nanoTime();
+        entries.add(entry);
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    entry.asset.decode();
+                } catch(Exception e) {
+                    entry.error = e;
+                }
+                entry.readyTime = System.nanoTime();
+                entry.decodeTime = entry.readyTime - start;
+                ready.add(entry);
+            }
+        });
+    }
+
+    /**
+     * @brief Sube a OpenGL los recursos listos, sin pasarse del tiempo dado (salvo el primero)
+     * @param budget    Tiempo máximo, en nanosegundos
+     * @return  Si se han cargado todos los recursos
+     * @throws RuntimeException Si algún recurso no se ha podido cargar
+     */
+    public boolean processUploads(long budget) throws RuntimeException {
+
+        long start = System.nanoTime();
+        Entry entry;
+        while((entry = ready.poll()) != null) {
+
+            if(entry.error != null) {
+                throw new RuntimeException("Couldn't load " + entry.name, entry.error);
+            }
+
+            long uploadStart = System.nanoTime();
+            entry.asset.upload();
+            entry.uploadTime = System.nanoTime() - uploadStart;
+            uploaded ++;
+
+            if(System.nanoTime() - start >= budget) {
+                break;
+            }
+        }
+
+        if(isFinished() && endTime == 0) {
+            endTime = System.nanoTime();
+        }
+        return isFinished();
+    }
+
+    /**
+     * @brief Obtén el progreso de la carga
+     * @return  Fracción de recursos ya subidos, entre 0 y 1
+     */
+    public float getProgress() {
+        return entries.isEmpty() ? 1.0f : (float) uploaded / (float) entries.size();
+    }
+
+    /**
+     * @brief Comprueba si se han cargado todos los recursos
+     * @return  Si se han subido todos los recursos pedidos
+     */
+    public boolean isFinished() {
+        return uploaded == entries.size();
+    }
+
+    /**
+     * @brief Muestra en el log el desglose de tiempos de carga de cada recurso
+     */
+    public void logTimings() {
+        for(Entry entry : entries) {
+            Log.d("CHAPAS", "Asset " + entry.name +
+                    ": decode " + entry.decodeTime / 1000000 + " ms" +
+                    ", wait " + (entry.readyTime - entry.queueTime - entry.decodeTime) / 1000000 + " ms" +
+                    ", upload " + entry.uploadTime / 1000000 + " ms");
+        }
+        long end = (endTime != 0) ? endTime : System.nanoTime();
+        Log.d("CHAPAS", "Assets loaded in " + (end - startTime) / 1000000 + " ms");
+    }
+
+    /**
+     * @brief Para los hilos de carga
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,187 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file BitmapFont.java
+ * @brief Fuente de mapa de bits para dibujar texto con OpenGL
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * @class BitmapFont
+ * @details Dibuja con Canvas cada carácter soportado en un atlas (sólo canal alfa) y guarda su
+ * rectángulo y su avance. El atlas incluye además una región opaca para los fondos, de forma
+ * que texto y fondos se dibujan con la misma textura.
+ */
+public class BitmapFont {
+
+    private static final String CHARACTERS =
+            " !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`" +
+            "abcdefghijklmnopqrstuvwxyz{|}~¡¿ªºáéíóúüñÁÉÍÓÚÜÑ";
+    private static final int ATLAS_WIDTH = 512;
+    private static final int PADDING = 2;           /**< Separación entre caracteres, en píxeles */
+    private static final int SOLID_SIZE = 4;        /**< Lado de la región opaca, en píxeles */
+
+    private final float size;
+    private final float ascent;
+    private final float lineHeight;
+    private final float[] advances;
+    private final float[] regions;                  /**< (s0, t0, s1, t1) de cada carácter */
+    private final float[] widths;                   /**< Ancho en píxeles del rectángulo de cada carácter */
+    private final float[] solid = new float[4];     /**< Centro de la región opaca (s0, t0, s1, t1) */
+    private Texture texture;
+
+    /**
+     * @brief Genera una fuente (debe llamarse desde el hilo de OpenGL)
+     * @param size      Tamaño de la fuente, en píxeles
+     * @param style     Estilo (Typeface.BOLD, Typeface.BOLD_ITALIC...)
+     */
+    public BitmapFont(float size, int style) {
+
+        this.size = size;
+        int n = CHARACTERS.length();
+        advances = new float[n];
+        regions = new float[n * 4];
+        widths = new float[n];
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(size);
+        paint.setTypeface(Typeface.create(Typeface.SANS_SERIF, style));
+        paint.setColor(0xFFFFFFFF);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+        ascent = -metrics.ascent;
+        lineHeight = metrics.descent - metrics.ascent;
+
+        // Coloca los caracteres en filas (la cursiva se sale del avance, se deja margen)
+        int cellHeight = (int) Math.ceil(lineHeight) + PADDING;
+        int slant = (int) Math.ceil(size * 0.25f);
+        int[] x = new int[n];
+        int[] y = new int[n];
+        int penX = SOLID_SIZE + PADDING;
+        int penY = 0;
+        for(int i = 0; i < n; i++) {
+            advances[i] = paint.measureText(CHARACTERS.substring(i, i + 1));
+            int cellWidth = (int) Math.ceil(advances[i]) + slant + PADDING;
+            if(penX + cellWidth > ATLAS_WIDTH) {
+                penX = 0;
+                penY += cellHeight;
+            }
+            x[i] = penX;
+            y[i] = penY;
+            widths[i] = cellWidth - PADDING;
+            penX += cellWidth;
+        }
+        int height = 1;
+        while(height < penY + cellHeight) height <<= 1;
+
+        // Dibuja el atlas
+        Bitmap bitmap = Bitmap.createBitmap(ATLAS_WIDTH, height, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawRect(0, 0, SOLID_SIZE, SOLID_SIZE, paint);
+        for(int i = 0; i < n; i++) {
+            canvas.drawText(CHARACTERS.substring(i, i + 1), x[i], y[i] + ascent, paint);
+            regions[i * 4] = x[i] / (float) ATLAS_WIDTH;
+            regions[i * 4 + 1] = y[i] / (float) height;
+            regions[i * 4 + 2] = (x[i] + widths[i]) / (float) ATLAS_WIDTH;
+            regions[i * 4 + 3] = (y[i] + lineHeight) / (float) height;
+        }
+        solid[0] = solid[2] = SOLID_SIZE * 0.5f / ATLAS_WIDTH;
+        solid[1] = solid[3] = SOLID_SIZE * 0.5f / height;
+
+        texture = new Texture(Texture.Data.fromBitmap(bitmap));
+    }
+
+    /**
+     * @brief Obtén el índice de un carácter
+     * @param c El carácter
+     * @return  El índice, o el del signo de interrogación si no está soportado
+     */
+    public int getIndex(char c) {
+        int index = CHARACTERS.indexOf(c);
+        return (index >= 0) ? index : CHARACTERS.indexOf('?');
+    }
+
+    /**
+     * @brief Mide el ancho de un texto
+     * @param text      El texto
+     * @param length    Número de caracteres
+     * @param scale     Escala respecto al tamaño de la fuente
+     * @return  El ancho en píxeles
+     */
+    public float measure(char[] text, int length, float scale) {
+        float width = 0.0f;
+        for(int i = 0; i < length; i++) {
+            width += advances[getIndex(text[i])];
+        }
+        return width * scale;
+    }
+
+    /**
+     * @brief Obtén el avance de un carácter
+     * @param index Índice del carácter
+     * @return  El avance en píxeles
+     */
+    public float getAdvance(int index) {
+        return advances[index];
+    }
+
+    /**
+     * @brief Obtén el ancho del rectángulo de un carácter
+     * @param index Índice del carácter
+     * @return  El ancho en píxeles
+     */
+    public float getWidth(int index) {
+        return widths[index];
+    }
+
+    /**
+     * @brief Obtén el rectángulo de un carácter en el atlas
+     * @return  Los rectángulos (s0, t0, s1, t1) de todos los caracteres
+     */
+    public float[] getRegions() {
+        return regions;
+    }
+
+    /**
+     * @brief Obtén la región opaca del atlas, para dibujar fondos
+     * @return  El rectángulo (s0, t0, s1, t1)
+     */
+    public float[] getSolidRegion() {
+        return solid;
+    }
+
+    /**
+     * @brief Obtén el alto de una línea
+     * @return  El alto en píxeles
+     */
+    public float getLineHeight() {
+        return lineHeight;
+    }
+
+    /**
+     * @brief Obtén el tamaño de la fuente
+     * @return  El tamaño en píxeles
+     */
+    public float getSize() {
+        return size;
+    }
+
+    /**
+     * @brief Obtén la textura del atlas
+     * @return  La textura
+     */
+    public Texture getTexture() {
+        return texture;
+    }
+
+    /**
+     * @brief Borra la fuente
+     */
+    public void delete() {
+        texture.delete();
+    }
+}
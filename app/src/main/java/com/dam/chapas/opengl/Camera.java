@@ -16,12 +16,14 @@ public class Camera {
     private float[] viewMatrix;
     private float[] position = new float[] {0.2f, 2.0f, 0.0f};
     private float[] eye = new float[] {0.0f, 0.0f, 0.0f};
+    private boolean dirty;
 
     /**
      * @brief Constructor de una cámara
      */
     public Camera() {
         viewMatrix = new float[16];
+        dirty = true;
     }
 
     /**
@@ -34,6 +36,7 @@ public class Camera {
         eye[0] = 0.0f;
         eye[1] = 0.0f;
         eye[2] = 0.0f;
+        dirty = true;
     }
 
     /**
@@ -46,6 +49,7 @@ public class Camera {
         position[0] = x;
         position[1] = y;
         position[2] = z;
+        dirty = true;
     }
 
     /**
@@ -69,6 +73,7 @@ public class Camera {
             position[2] += z;
             eye[2] += z;
         }
+        dirty = true;
     }
 
     /**
@@ -89,6 +94,7 @@ public class Camera {
         eye[0] = x;
         eye[1] = y;
         eye[2] = z;
+        dirty = true;
     }
 
     /**
@@ -96,7 +102,15 @@ public class Camera {
      * @param shader
      */
     public void enable(ShaderProgram shader) {
-        shader.setUniform3fv("cameraPos", position);
+        shader.setUniform3fv(ShaderProgram.CAMERA_POS, position);
+    }
+
+    /**
+     * @brief Obtén si la cámara se ha movido desde el último cálculo de la matriz
+     * @return  Si hay que recalcular la matriz de la cámara
+     */
+    public boolean isDirty() {
+        return dirty;
     }
 
     /**
@@ -104,6 +118,7 @@ public class Camera {
      * @return
      */
     public float[] computeView() {
+        dirty = false;
         Matrix.setLookAtM(viewMatrix, 0, position[0], position[1], position[2], eye[0], eye[1], eye[2], 0.0f, 1.0f, 0.0f);
         return viewMatrix;
     }
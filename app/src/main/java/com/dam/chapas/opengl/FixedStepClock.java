@@ -0,0 +1,141 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file FixedStepClock.java
+ * @brief Reloj de pasos fijos basado en el tiempo real
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+/**
+ * @class FixedStepClock
+ * @details Convierte el tiempo real (System.nanoTime, o el de un TimeSource) en pasos enteros de
+ * duración fija, acumulando el resto entre llamadas para que no se pierda tiempo aunque los
+ * fotogramas no duren exactamente un paso. Los relojes de la partida, la simulación de físicas y
+ * las partículas avanzan con estos pasos, así que el partido dura lo mismo a 30, 60 o 120
+ * fotogramas por segundo. Mientras está en pausa no avanza, y al reanudarse el tiempo transcurrido
+ * en pausa no cuenta.
+ */
+public class FixedStepClock {
+
+    public static final long STEP = 1000000000L / 60;           /**< Duración de un paso, en nanosegundos */
+    public static final float STEP_SECONDS = 1.0f / 60.0f;      /**< Duración de un paso, en segundos */
+
+    /**
+     * @class TimeSource
+     * @brief Origen del tiempo real del reloj
+     */
+    public interface TimeSource {
+
+        /**
+         * @brief Obtén el instante actual
+         * @return  El instante, en nanosegundos (sólo importan las diferencias)
+         */
+        long nanoTime();
+    }
+
+    /** Tiempo real del sistema */
+    public static final TimeSource SYSTEM_TIME = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final int maxSteps;     /**< Máximo de pasos a recuperar de golpe */
+    private final TimeSource time;
+    private boolean started = false; /**< Si ya hay una referencia en lastTime */
+    private long lastTime = 0;      /**< Instante de la última llamada a tick */
+    private long accum = 0;         /**< Tiempo acumulado que aún no llega a un paso */
+    private long interval = 0;      /**< Tiempo real entre las dos últimas llamadas a tick */
+    private int steps = 0;          /**< Pasos avanzados en la última llamada a tick */
+    private boolean paused = false;
+
+    /**
+     * @brief Constructor de un FixedStepClock
+     * @param maxSteps  Máximo de pasos a recuperar de golpe (tras un bloqueo largo se descarta el resto)
+     */
+    public FixedStepClock(int maxSteps) {
+        this(maxSteps, SYSTEM_TIME);
+    }
+
+    /**
+     * @brief Constructor de un FixedStepClock con otro origen de tiempo
+     * @param maxSteps  Máximo de pasos a recuperar de golpe (tras un bloqueo largo se descarta el resto)
+     * @param time      Origen del tiempo real
+     */
+    public FixedStepClock(int maxSteps, TimeSource time) {
+        this.maxSteps = maxSteps;
+        this.time = time;
+    }
+
+    /**
+     * @brief Avanza el reloj hasta el instante actual
+     * @return  Los pasos completos transcurridos desde la anterior llamada
+     */
+    public int tick() {
+
+        if(paused) {
+            interval = 0;
+            steps = 0;
+            return 0;
+        }
+
+        // La primera llamada tras crear o reanudar el reloj avanza un único paso
+        long now = time.nanoTime();
+        if(!started) {
+            started = true;
+            interval = 0;
+            steps = 1;
+        } else {
+            interval = now - lastTime;
+            accum += interval;
+            steps = (int) Math.min(accum / STEP, maxSteps);
+            accum -= steps * STEP;
+            if(accum >= STEP) {
+                accum = 0;      // Tras un bloqueo largo se descarta el resto
+            }
+        }
+        lastTime = now;
+        return steps;
+    }
+
+    /**
+     * @brief Detiene el reloj
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * @brief Reanuda el reloj sin contar el tiempo transcurrido desde que se detuvo
+     */
+    public void resume() {
+        paused = false;
+        started = false;
+        accum = 0;
+    }
+
+    /**
+     * @brief Obtén si el reloj está detenido
+     * @return  Si está en pausa
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @brief Obtén los pasos avanzados en la última llamada a tick
+     * @return  Los pasos avanzados
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @brief Obtén el tiempo real entre las dos últimas llamadas a tick
+     * @return  El tiempo, en nanosegundos (0 si no había referencia)
+     */
+    public long getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,68 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file Frustum.java
+ * @brief Volumen de visión de la cámara
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+/**
+ * @class Frustum
+ */
+public class Frustum {
+
+    private float[] planes = new float[6 * 4];  /**< Planos (nx, ny, nz, d) apuntando hacia dentro */
+
+    /**
+     * @brief Constructor de un Frustum
+     */
+    public Frustum() { }
+
+    /**
+     * @brief Extrae los planos de una matriz vista-proyección
+     * @param vp    Matriz vista-proyección (column-major)
+     */
+    public void update(float[] vp) {
+        for(int i = 0; i < 3; i++) {
+            // Plano izquierdo/inferior/cercano: fila 3 + fila i
+            setPlane(i * 2, vp[3] + vp[i], vp[7] + vp[4 + i], vp[11] + vp[8 + i], vp[15] + vp[12 + i]);
+            // Plano derecho/superior/lejano: fila 3 - fila i
+            setPlane(i * 2 + 1, vp[3] - vp[i], vp[7] - vp[4 + i], vp[11] - vp[8 + i], vp[15] - vp[12 + i]);
+        }
+    }
+
+    /**
+     * @brief Establece un plano normalizado
+     * @param index Índice del plano
+     * @param a     Componente X de la normal
+     * @param b     Componente Y de la normal
+     * @param c     Componente Z de la normal
+     * @param d     Distancia al origen
+     */
+    private void setPlane(int index, float a, float b, float c, float d) {
+        float len = (float) Math.sqrt(a * a + b * b + c * c);
+        if(len == 0.0f) len = 1.0f;
+        planes[index * 4] = a / len;
+        planes[index * 4 + 1] = b / len;
+        planes[index * 4 + 2] = c / len;
+        planes[index * 4 + 3] = d / len;
+    }
+
+    /**
+     * @brief Comprueba si una esfera es (al menos en parte) visible
+     * @param x         Centro X
+     * @param y         Centro Y
+     * @param z         Centro Z
+     * @param radius    Radio de la esfera
+     * @return  Si la esfera intersecta con el volumen de visión
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for(int i = 0; i < 6; i++) {
+            float dist = planes[i * 4] * x + planes[i * 4 + 1] * y + planes[i * 4 + 2] * z + planes[i * 4 + 3];
+            if(dist < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
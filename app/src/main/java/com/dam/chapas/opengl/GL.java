@@ -0,0 +1,129 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file GL.java
+ * @brief Interfaz con la API de OpenGL ES usada por el renderizador
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+
+import java.nio.Buffer;
+
+/**
+ * @class GL
+ * @details Todas las llamadas a OpenGL del paquete pasan por la implementación activa, que por
+ * defecto es AndroidGL (GLES20). Cambiándola por RecordingGL el renderizador puede ejecutarse en
+ * una JVM sin GPU, contando las llamadas de dibujado, los cambios de estado y los bytes subidos.
+ * Las constantes se siguen tomando de GLES20: son constantes de compilación y no cargan la clase.
+ * Sólo contiene las funciones que usa el renderizador; se añaden según hagan falta.
+ */
+public abstract class GL {
+
+    private static GL instance = new AndroidGL();
+
+    /**
+     * @brief Obtén la implementación activa
+     * @return  La implementación activa
+     */
+    public static GL get() {
+        return instance;
+    }
+
+    /**
+     * @brief Cambia la implementación activa (antes de crear ningún objeto OpenGL)
+     * @param gl    La nueva implementación
+     */
+    public static void set(GL gl) {
+        instance = gl;
+    }
+
+    /**
+     * @brief Obtén el contexto actual, para saber si los objetos OpenGL creados siguen valiendo
+     * @return  Un objeto que identifica el contexto actual (distinto para cada contexto)
+     */
+    public abstract Object getCurrentContext();
+
+    // Estado
+    public abstract void glEnable(int cap);
+    public abstract void glDisable(int cap);
+    public abstract void glBlendFunc(int sfactor, int dfactor);
+    public abstract void glDepthMask(boolean flag);
+    public abstract void glDepthFunc(int func);
+    public abstract void glFrontFace(int mode);
+    public abstract void glCullFace(int mode);
+    public abstract void glViewport(int x, int y, int width, int height);
+    public abstract void glClearColor(float red, float green, float blue, float alpha);
+    public abstract void glClearDepthf(float depth);
+    public abstract void glClear(int mask);
+    public abstract int glGetError();
+    public abstract void glGetIntegerv(int pname, int[] params, int offset);
+    public abstract String glGetString(int name);
+
+    // Buffers
+    public abstract void glGenBuffers(int n, int[] buffers, int offset);
+    public abstract void glDeleteBuffers(int n, int[] buffers, int offset);
+    public abstract void glBindBuffer(int target, int buffer);
+    public abstract void glBufferData(int target, int size, Buffer data, int usage);
+    public abstract void glBufferSubData(int target, int offset, int size, Buffer data);
+
+    // Atributos y dibujado
+    public abstract void glEnableVertexAttribArray(int index);
+    public abstract void glDisableVertexAttribArray(int index);
+    public abstract void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset);
+    public abstract void glDrawElements(int mode, int count, int type, int offset);
+    public abstract void glDrawArrays(int mode, int first, int count);
+
+    // Texturas
+    public abstract void glGenTextures(int n, int[] textures, int offset);
+    public abstract void glDeleteTextures(int n, int[] textures, int offset);
+    public abstract void glActiveTexture(int texture);
+    public abstract void glBindTexture(int target, int texture);
+    public abstract void glTexParameteri(int target, int pname, int param);
+    public abstract void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                                      int border, int format, int type, Buffer pixels);
+    public abstract void glCompressedTexImage2D(int target, int level, int internalformat, int width, int height,
+                                                int border, int imageSize, Buffer data);
+    public abstract void glGenerateMipmap(int target);
+    public abstract void texImage2D(int target, int level, Bitmap bitmap, int border);
+    public abstract void loadTexture(int target, int level, int border, int fallbackFormat, int fallbackType,
+                                     ETC1Util.ETC1Texture texture);
+
+    // Shaders
+    public abstract int glCreateShader(int type);
+    public abstract void glShaderSource(int shader, String source);
+    public abstract void glCompileShader(int shader);
+    public abstract void glGetShaderiv(int shader, int pname, int[] params, int offset);
+    public abstract String glGetShaderInfoLog(int shader);
+    public abstract void glDeleteShader(int shader);
+    public abstract int glCreateProgram();
+    public abstract void glAttachShader(int program, int shader);
+    public abstract void glDetachShader(int program, int shader);
+    public abstract void glBindAttribLocation(int program, int index, String name);
+    public abstract void glLinkProgram(int program);
+    public abstract void glGetProgramiv(int program, int pname, int[] params, int offset);
+    public abstract String glGetProgramInfoLog(int program);
+    public abstract void glDeleteProgram(int program);
+    public abstract void glUseProgram(int program);
+    public abstract int glGetUniformLocation(int program, String name);
+    public abstract void glUniform1i(int location, int x);
+    public abstract void glUniform1f(int location, float x);
+    public abstract void glUniform3fv(int location, int count, float[] v, int offset);
+    public abstract void glUniform4fv(int location, int count, float[] v, int offset);
+    public abstract void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+    public abstract String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+
+    // Binarios de programas (OpenGL ES 3)
+    public abstract void glProgramParameteri(int program, int pname, int value);
+    public abstract void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+                                            int[] binaryFormat, int binaryFormatOffset, Buffer binary);
+    public abstract void glProgramBinary(int program, int binaryFormat, Buffer binary, int length);
+
+    // Consultas (OpenGL ES 3)
+    public abstract void glGenQueries(int n, int[] ids, int offset);
+    public abstract void glDeleteQueries(int n, int[] ids, int offset);
+    public abstract void glBeginQuery(int target, int id);
+    public abstract void glEndQuery(int target);
+    public abstract void glGetQueryObjectuiv(int id, int pname, int[] params, int offset);
+}
@@ -22,6 +22,9 @@ import com.dam.chapas.online.InitStateOnline;
 import com.dam.chapas.online.WaitingStateOnline;
 import com.dam.chapas.physics.World;
 
+import java.io.IOException;
+import java.util.HashMap;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -30,12 +33,54 @@ import javax.microedition.khronos.opengles.GL10;
  */
 public class GLRendererImpl implements GLSurfaceView.Renderer {
 
-    private ShaderProgram shader;
+    private ShaderProgram shader;               /**< Variante activa según el nivel de calidad */
+    private ShaderProgram batchShader;          /**< Variante agrupada activa (null si no hay dibujado agrupado) */
+    private final HashMap<Integer, ShaderProgram> variants = new HashMap<>();  /**< Variantes cargadas, por flags */
+    private boolean batchSupported = false;
+    private QualityGovernor quality;
+    private boolean lowResolution = false;
+    private boolean continuous = false;         /**< Si el fotograma anterior pidió el siguiente enseguida */
+    private boolean loadFailed = false;         /**< Si no se ha podido cargar la partida */
     private Camera cam;
     private Light sun;
     private GameState state;
     private GameData gameData;
     private World world;
+    private Hud hud;
+    private ParticleSystem particles;
+    private Profiler profiler;
+    private RenderQueue renderQueue = new RenderQueue();
+    private final TouchQueue touchQueue = new TouchQueue();
+    private int frameCounter = 0;
+    private final GLSurfaceView view;
+    private final FixedStepClock clock = new FixedStepClock(MAX_ELAPSED_FRAMES);
+    private long frameInterval = 0;
+    private int elapsedFrames = 1;
+
+    private static final int STATS_INTERVAL = 600;     /**< Fotogramas entre cada informe de dibujado */
+    private static final int MAX_ELAPSED_FRAMES = 2 * 60;      /**< Máximo de fotogramas a recuperar de golpe (relojes, físicas y partículas) */
+    private static final long UPLOAD_BUDGET = 8000000L;        /**< Tiempo por fotograma para subir recursos, en nanosegundos */
+    private static final float LOW_RESOLUTION_SCALE = 0.75f;   /**< Escala de la superficie en LOW_RESOLUTION */
+    private static final float LOW_DETAIL_LOD_BIAS = 8.0f;     /**< Error en pantalla admitido en LOW_DETAIL, en píxeles */
+    private static final String SCENE_VS = "shader/scene.vs.glsl";
+    private static final String SCENE_FS = "shader/scene.fs.glsl";
+    private static final String LOAD_ERROR = "No se ha podido cargar la partida";
+
+    private final Runnable frameRequest = new Runnable() {
+
+        @Override
+        public void run() {
+            view.requestRender();
+        }
+    };
+
+    /**
+     * @brief Constructor del renderer
+     * @param view  Superficie de dibujado a la que pedir los fotogramas
+     */
+    public GLRendererImpl(GLSurfaceView view) {
+        this.view = view;
+    }
 
     private final GestureDetector gestureDetector = new GestureDetector(new GestureDetector.SimpleOnGestureListener() {
 
@@ -47,7 +92,7 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2,
                                float distanceX, float distanceY) {
-            state.onScroll(distanceX, distanceY);
+            touchQueue.offer(TouchQueue.SCROLL, distanceX, distanceY);
             return super.onScroll(e1, e2, distanceX, distanceY);
         }
     });
@@ -61,6 +106,7 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
             btHelper.setRecvHandler(null);
         }
         this.state = state;
+        view.requestRender();
     }
 
     /**
@@ -68,17 +114,33 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
      */
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
 
+        GL gl = GL.get();
+
         // Inicializa OpenGL
-        GLES20.glClearColor(0.2f, 0.2f, 0.3f, 1.0f);
-        GLES20.glClearDepthf(1.0f);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        GLES20.glDepthFunc(GLES20.GL_LEQUAL);
-        GLES20.glFrontFace(GLES20.GL_CCW);
-        GLES20.glCullFace(GLES20.GL_BACK);
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
-
-        // Inicializa el sistema de texturas
+        gl.glClearColor(0.2f, 0.2f, 0.3f, 1.0f);
+        gl.glClearDepthf(1.0f);
+        gl.glEnable(GLES20.GL_DEPTH_TEST);
+        gl.glDepthFunc(GLES20.GL_LEQUAL);
+        gl.glFrontFace(GLES20.GL_CCW);
+        gl.glCullFace(GLES20.GL_BACK);
+        gl.glDisable(GLES20.GL_CULL_FACE);
+
+        // Inicializa el sistema de texturas y comprueba si hay índices de 32 bits
         Texture.initialize();
+        IBO.initialize();
+
+        // Si ya había una partida se ha perdido el contexto: se restauran los objetos OpenGL
+        // desde sus copias en CPU, sin tocar la simulación ni el estado de la partida (ni el error
+        // si la carga había fallado)
+        if(world != null) {
+            ResourceManager.getInstance().restoreContext();
+            if(profiler != null) {
+                profiler.onContextCreated();
+            }
+            view.requestRender();
+            return;
+        }
+        ResourceManager.getInstance().onContextCreated();
 
         // Crea una luz direccional
         this.sun = new Light();
@@ -94,22 +156,71 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
 
         // Carga los datos del juego
         try {
-            shader = new ShaderProgram("shader/shader.vs.glsl", "shader/shader.fs.glsl");
-            gameData = new GameData(world);
+            hud = new Hud();
+            particles = new ParticleSystem();
+            gameData = new GameData(world, hud);
+            profiler = new Profiler(hud);
+            profiler.onContextCreated();
         } catch(Exception e) {
             Log.e("CHAPAS", e.toString());
             e.printStackTrace();
+            failLoading();
+            return;
+        }
+
+        // El dibujado agrupado es opcional, si falla se dibuja cada Mesh por separado
+        batchSupported = MeshBatch.isSupported();
+
+        // Carga los shaders del nivel de calidad guardado para este dispositivo
+        quality = new QualityGovernor(MainApplication.getInstance().getAppContext());
+        applyQuality();
+        if(shader == null) {
+            failLoading();
+            return;
         }
 
         // Crea la cámara
         this.cam = new Camera();
 
-        // Establece el estado del juego
-        if(MainApplication.getInstance().getBluetoothHelper() == null) {
-            this.state = new InitState(gameData, this);
-        } else {
-            this.state = new InitStateOnline(gameData, this);
+        // El estado del juego se establece cuando termine la carga
+        this.state = null;
+    }
+
+    /**
+     * @brief Avanza la carga de la partida y, cuando termina, establece el estado inicial
+     */
+    private void updateLoading() {
+        try {
+            if(gameData.updateLoading(UPLOAD_BUDGET)) {
+                if(MainApplication.getInstance().getBluetoothHelper() == null) {
+                    this.state = new InitState(gameData, this);
+                } else {
+                    this.state = new InitStateOnline(gameData, this);
+                }
+                applyQuality();     // El estadio ya está cargado
+                quality.reset();
+            }
+        } catch(RuntimeException e) {
+            Log.e("CHAPAS", e.toString());
+            e.printStackTrace();
+            failLoading();
+        }
+    }
+
+    /**
+     * @brief Abandona la carga de la partida y muestra el error en el HUD
+     * @details Desde entonces sólo se dibuja el HUD cuando lo pida la superficie, sin pedir más
+     * fotogramas. Puede llamarse con la partida a medio crear (sin HUD no se muestra nada)
+     */
+    private void failLoading() {
+        loadFailed = true;
+        if(gameData != null) {
+            gameData.failLoading(LOAD_ERROR);
+        } else if(hud != null) {
+            int label = hud.addLabel(Hud.ANCHOR_CENTER, -1, 56.0f, Hud.STYLE_ITALIC, 0xFFFFFFFF, 0);
+            hud.setText(label, LOAD_ERROR);
         }
+        view.removeCallbacks(frameRequest);
     }
 
     /**
@@ -117,43 +228,233 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
      */
     public void onDrawFrame(GL10 unused) {
 
+        // Si la carga ha fallado sólo se muestra el error
+        if(loadFailed) {
+            GL.get().glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            if(hud != null) {
+                hud.draw();
+            }
+            return;
+        }
+
+        profiler.beginFrame();
+
+        // Calcula cuántos fotogramas de 1/60 s han pasado (puede haber estado sin dibujar)
+        elapsedFrames = clock.tick();
+        frameInterval = clock.getInterval();
+
         // Limpia la pantalla
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        GL.get().glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        // Mientras se carga la partida sólo se suben recursos
+        if(state == null) {
+            touchQueue.clear();     // Los toques durante la carga no cuentan
+            profiler.begin(Profiler.LOADING);
+            updateLoading();
+            profiler.end(Profiler.LOADING);
+            profiler.begin(Profiler.HUD);
+            hud.draw();
+            profiler.end(Profiler.HUD);
+            profiler.endFrame();
+            continuous = false;
+            if(!loadFailed) {
+                view.requestRender();
+            }
+            return;
+        }
+
+        // Ajusta la calidad si los fotogramas seguidos no llegan a tiempo
+        if(continuous && frameInterval > 0 && quality.addFrame(frameInterval)) {
+            applyQuality();
+        }
+
+        // Atiende los toques recibidos desde el anterior fotograma (antes de usar la cámara)
+        profiler.begin(Profiler.UPDATE);
+        touchQueue.drain(state);
+        profiler.end(Profiler.UPDATE);
 
         // Activa el shader
-        shader.enable();
-        sun.enable(shader);
-        cam.enable(shader);
+        profiler.begin(Profiler.QUEUE);
+        enableFrameUniforms(shader);
+        if(batchShader != null) {
+            enableFrameUniforms(batchShader);
+        }
 
-        // Obtén los modelos a dibujar
-        Mesh[] keepers = gameData.getKeepers();
-        Mesh stadium = gameData.getStadium();
-        Mesh[][] caps = gameData.getAllCaps();
-        Mesh ball = gameData.getBall();
+        // Añade los modelos a la cola de dibujado
+        renderQueue.begin(cam);
+        renderQueue.add(gameData.getKeepersBatch(), batchShader, shader);
+        renderQueue.add(gameData.getCapsBatch(), batchShader, shader);
+        renderQueue.add(gameData.getBall(), shader);
+        renderQueue.add(gameData.getStadium(), shader);
+        profiler.end(Profiler.QUEUE);
 
-        // Dibuja los porteros
-        for(Mesh keeper : keepers) {
-            keeper.draw(shader, cam);
+        // Actualiza el estado del juego (puede añadir más elementos a la cola)
+        profiler.begin(Profiler.UPDATE);
+        state.onUpdate(shader);
+        profiler.end(Profiler.UPDATE);
+
+        // Dibuja la escena ordenada y las partículas encima
+        profiler.begin(Profiler.DRAW);
+        renderQueue.flush();
+        particles.update(elapsedFrames * FixedStepClock.STEP_SECONDS);
+        particles.draw();
+        profiler.end(Profiler.DRAW);
+        if(++frameCounter % STATS_INTERVAL == 0) {
+            Log.d("CHAPAS", "Draw calls: " + renderQueue.getDrawCalls() +
+                    ", state changes: " + renderQueue.getStateChanges() +
+                    ", culled: " + renderQueue.getCulled() +
+                    ", sort time: " + renderQueue.getSortTime() / 1000 + " us");
+        }
+
+        // Dibuja la interfaz encima de la escena
+        profiler.begin(Profiler.HUD);
+        hud.draw();
+        profiler.end(Profiler.HUD);
+
+        // Avanza la simulación de físicas en pasos fijos, los mismos que los relojes de la partida
+        profiler.begin(Profiler.PHYSICS);
+        for(int i = 0; i < elapsedFrames; i++) {
+            world.update(FixedStepClock.STEP_SECONDS);
         }
+        profiler.end(Profiler.PHYSICS);
+        profiler.endFrame();
+
+        // Pide el siguiente fotograma sólo si hace falta
+        scheduleNextFrame();
+    }
+
+    /**
+     * @brief Pide otro fotograma ya, o programa uno para cuando el estado lo necesite
+     */
+    private void scheduleNextFrame() {
+        view.removeCallbacks(frameRequest);
+        int frames = state.getFramesUntilUpdate();
+        if(particles.isActive()) {
+            frames = 0;     // Las partículas se animan en cada fotograma
+        }
+        continuous = (frames <= 0);
+        if(frames <= 0) {
+            view.requestRender();
+        } else {
+            view.postDelayed(frameRequest, frames * FixedStepClock.STEP / 1000000L);
+        }
+    }
 
-        // Dibuja las chapas
-        for(int i = 0; i < 2; i++) {
-            for(int j = 0; j < GameData.CAPS_PER_TEAM; j++) {
-                caps[i][j].draw(shader, cam);
+    /**
+     * @brief Llamado al pausar la actividad (debe llamarse desde el hilo de OpenGL)
+     * @details Detiene los relojes de la partida y la simulación hasta que se llame a onResume
+     */
+    public void onPause() {
+        clock.pause();
+    }
+
+    /**
+     * @brief Llamado al volver de una pausa (debe llamarse desde el hilo de OpenGL)
+     * @details El tiempo en pausa no cuenta para los relojes de la partida
+     */
+    public void onResume() {
+        clock.resume();
+        if(quality != null) {
+            quality.reset();
+        }
+    }
+
+    /**
+     * @brief Aplica el nivel de calidad actual (debe llamarse desde el hilo de OpenGL)
+     */
+    private void applyQuality() {
+        int tier = quality.getTier();
+
+        // Variante de los shaders: sin brillos especulares, o con iluminación por vértice
+        int flags = ShaderProgram.FLAG_SPECULAR;
+        if(tier >= QualityGovernor.VERTEX_LIGHTING) {
+            flags = ShaderProgram.FLAG_VERTEX_LIGHTING;
+        } else if(tier >= QualityGovernor.NO_SPECULAR) {
+            flags = 0;
+        }
+        try {
+            shader = getVariant(flags);
+        } catch(Exception e) {
+            Log.e("CHAPAS", "Shader variant " + flags + " failed: " + e.toString());
+        }
+        batchShader = null;
+        if(batchSupported) {
+            try {
+                batchShader = getVariant(flags | ShaderProgram.FLAG_INSTANCED);
+            } catch(Exception e) {
+                Log.e("CHAPAS", "Batched rendering disabled: " + e.toString());
             }
         }
 
-        // Dibuja la pelota
-        ball.draw(shader, cam);
+        // Resolución de la superficie (el HUD sigue en coordenadas de la vista)
+        final boolean low = tier >= QualityGovernor.LOW_RESOLUTION;
+        if(low != lowResolution) {
+            lowResolution = low;
+            view.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if(low && view.getWidth() > 0) {
+                        view.getHolder().setFixedSize((int) (view.getWidth() * LOW_RESOLUTION_SCALE),
+                                (int) (view.getHeight() * LOW_RESOLUTION_SCALE));
+                    } else {
+                        view.getHolder().setSizeFromLayout();
+                    }
+                }
+            });
+        }
 
-        // Dibuja el estadio
-        stadium.draw(shader, cam);
+        // Menos partículas cuanto más baja la calidad
+        if(particles != null) {
+            particles.setBudget((tier >= QualityGovernor.LOW_RESOLUTION) ?
+                    ParticleSystem.MAX_PARTICLES / 4 : ParticleSystem.MAX_PARTICLES);
+        }
 
-        // Actualiza el estado del juego
-        state.onUpdate(shader);
+        // Niveles de detalle del estadio más agresivos (cuando ya está cargado)
+        Mesh stadium = (gameData != null) ? gameData.getStadium() : null;
+        if(stadium != null) {
+            stadium.setLodBias((tier >= QualityGovernor.LOW_DETAIL) ? LOW_DETAIL_LOD_BIAS : 1.0f);
+        }
+    }
 
-        // Actualiza la simulación de físicas
-        world.update(1.0f / 60.0f);
+    /**
+     * @brief Obtén una variante del shader de la escena, cargándola la primera vez
+     * @param flags Variante (combinación de ShaderProgram.FLAG_*, sin FLAG_TEXTURED)
+     * @return  La variante con textura, enlazada con su variante sin textura
+     * @throws IOException      Si no se encuentra el shader
+     * @throws RuntimeException Si no se ha podido compilar
+     */
+    private ShaderProgram getVariant(int flags) throws IOException, RuntimeException {
+        ShaderProgram variant = variants.get(flags);
+        if(variant == null) {
+            ResourceManager resources = ResourceManager.getInstance();
+            ShaderProgram untextured = resources.acquireShader(SCENE_VS, SCENE_FS, flags);
+            try {
+                variant = resources.acquireShader(SCENE_VS, SCENE_FS, flags | ShaderProgram.FLAG_TEXTURED);
+            } catch(IOException | RuntimeException e) {
+                resources.release(untextured);
+                throw e;
+            }
+            variant.setUntexturedVariant(untextured);
+            variants.put(flags, variant);
+        }
+        return variant;
+    }
+
+    /**
+     * @brief Sube la luz y la cámara a una variante y a su variante sin textura
+     * @param program   La variante
+     */
+    private void enableFrameUniforms(ShaderProgram program) {
+        program.enable();
+        sun.enable(program);
+        cam.enable(program);
+        ShaderProgram untextured = program.getUntexturedVariant();
+        if(untextured != null) {
+            untextured.enable();
+            sun.enable(untextured);
+            cam.enable(untextured);
+        }
     }
 
     /**
@@ -164,6 +465,10 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         MainApplication.getInstance().getMatrixSystem().onSurfaceChanged(width, height);
+        if(hud != null) {
+            hud.setScreenSize(view.getWidth() > 0 ? view.getWidth() : width,
+                    view.getHeight() > 0 ? view.getHeight() : height);
+        }
     }
 
     /**
@@ -172,18 +477,18 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
      * @return  El resultado del evento
      */
     public boolean onTouchEvent(MotionEvent ev) {
-        // No llamar a OpenGL aquí!
+        // No llamar a OpenGL aquí! Los eventos se atienden en el siguiente fotograma
         float x = ev.getX();
         float y = ev.getY();
         switch(ev.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                state.onDown(x, y);
+                touchQueue.offer(TouchQueue.DOWN, x, y);
                 break;
             case MotionEvent.ACTION_MOVE:
-                state.onMove(x, y);
+                touchQueue.offer(TouchQueue.MOVE, x, y);
                 break;
             case MotionEvent.ACTION_UP:
-                state.onUp(x, y);
+                touchQueue.offer(TouchQueue.UP, x, y);
                 break;
         }
         return gestureDetector.onTouchEvent(ev);
@@ -198,9 +503,59 @@ public class GLRendererImpl implements GLSurfaceView.Renderer {
     }
 
     /**
-     * @brief Libera los recursos
+     * @brief Obtén los fotogramas de 1/60 s transcurridos desde el anterior dibujado
+     * @return  Los fotogramas transcurridos
+     */
+    public int getElapsedFrames() {
+        return elapsedFrames;
+    }
+
+    /**
+     * @brief Obtén el sistema de partículas
+     * @return  El sistema de partículas
+     */
+    public ParticleSystem getParticles() {
+        return particles;
+    }
+
+    /**
+     * @brief Obtén la cola de dibujado del fotograma actual
+     * @return La cola de dibujado
+     */
+    public RenderQueue getRenderQueue() {
+        return renderQueue;
+    }
+
+    /**
+     * @brief Obtén el profiler de los fotogramas
+     * @return  El profiler, o null si todavía no se ha creado la superficie
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @brief Libera los recursos (debe llamarse desde el hilo de OpenGL)
      */
     public void free() {
-        gameData.free();
+        // Si la carga ha fallado puede faltar parte de la partida
+        if(gameData != null) {
+            gameData.free();
+        }
+        if(profiler != null) {
+            profiler.delete();
+        }
+        if(particles != null) {
+            particles.delete();
+        }
+        if(hud != null) {
+            hud.delete();
+        }
+        ResourceManager resources = ResourceManager.getInstance();
+        for(ShaderProgram variant : variants.values()) {
+            resources.release(variant.getUntexturedVariant());
+            resources.release(variant);
+        }
+        variants.clear();
     }
 }
@@ -0,0 +1,22 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file GLResource.java
+ * @brief Objeto OpenGL que se puede volver a crear si se pierde el contexto
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+/**
+ * @class GLResource
+ * @details Cada objeto guarda en CPU lo necesario para volver a crearse (buffers, texturas
+ * decodificadas, código de los shaders), así que tras perder el contexto no hay que leer ni
+ * decodificar nada. Se registran en ResourceManager al crearse y se quitan al borrarse.
+ */
+public interface GLResource {
+
+    /**
+     * @brief Vuelve a crear el objeto en el contexto actual (debe llamarse desde el hilo de OpenGL)
+     * @details El objeto anterior ya no existe, así que no se borra
+     */
+    void restore();
+}
@@ -32,9 +32,16 @@ public class GLSurfaceViewImpl extends GLSurfaceView {
 
         setEGLContextClientVersion(2);
 
-        renderer = new GLRendererImpl();
+        // Conserva el contexto en las pausas si el dispositivo lo permite; si aun así se
+        // pierde, el renderer restaura los objetos OpenGL sin volver a cargar la partida
+        setPreserveEGLContextOnPause(true);
+
+        renderer = new GLRendererImpl(this);
 
         setRenderer(renderer);
+
+        // Sólo se dibuja cuando hace falta, el renderer pide los fotogramas
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
     }
 
     /**
@@ -45,6 +52,52 @@ public class GLSurfaceViewImpl extends GLSurfaceView {
         return renderer;
     }
 
+    /**
+     * @brief Libera el renderer desde el hilo de OpenGL
+     * @details ResourceManager sólo puede usarse desde ese hilo, no desde el de la interfaz
+     */
+    public void freeRenderer() {
+        queueEvent(new Runnable() {
+
+            @Override
+            public void run() {
+                renderer.free();
+            }
+        });
+    }
+
+    /**
+     * @brief Llamado cuando se pausa la actividad
+     */
+    @Override
+    public void onPause() {
+        // Los eventos pendientes se atienden antes de que el hilo de OpenGL se detenga
+        queueEvent(new Runnable() {
+
+            @Override
+            public void run() {
+                renderer.onPause();
+            }
+        });
+        super.onPause();
+    }
+
+    /**
+     * @brief Llamado cuando se reanuda la actividad
+     */
+    @Override
+    public void onResume() {
+        super.onResume();
+        queueEvent(new Runnable() {
+
+            @Override
+            public void run() {
+                renderer.onResume();
+            }
+        });
+        requestRender();
+    }
+
     /**
      * @brief Llamado cuando tocamos la pantalla
      * @param ev    Evento
@@ -52,6 +105,8 @@ public class GLSurfaceViewImpl extends GLSurfaceView {
      */
     @Override
     public boolean onTouchEvent(final MotionEvent ev) {
-        return renderer.onTouchEvent(ev);
+        boolean result = renderer.onTouchEvent(ev);
+        requestRender();
+        return result;
     }
 }
@@ -0,0 +1,121 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file GpuTimer.java
+ * @brief Medición del tiempo de GPU con EXT_disjoint_timer_query
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * @class GpuTimer
+ * @details Las consultas de tiempo sólo existen en contextos OpenGL ES 3 con la extensión
+ * EXT_disjoint_timer_query; en el resto de dispositivos el temporizador no hace nada. Los
+ * resultados llegan con varios fotogramas de retraso, por lo que se usa un anillo de consultas
+ * y se recoge cada una cuando está disponible, sin bloquear nunca el hilo de OpenGL.
+ */
+public class GpuTimer {
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERIES = 4;       /**< Consultas en vuelo */
+
+    private final boolean supported;
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private final int[] result = new int[1];
+    private int current = 0;
+    private boolean running = false;
+
+    /**
+     * @brief Constructor del temporizador (debe llamarse desde el hilo de OpenGL)
+     */
+    public GpuTimer() {
+        supported = isSupported();
+        if(supported) {
+            GL.get().glGenQueries(QUERIES, queries, 0);
+        }
+    }
+
+    /**
+     * @brief Comprueba si el contexto actual soporta las consultas de tiempo
+     * @return  Si hay OpenGL ES 3 y EXT_disjoint_timer_query
+     */
+    public static boolean isSupported() {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        String version = GL.get().glGetString(GLES20.GL_VERSION);
+        String extensions = GL.get().glGetString(GLES20.GL_EXTENSIONS);
+        return version != null && version.startsWith("OpenGL ES 3") &&
+                extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+    }
+
+    /**
+     * @brief Empieza a medir (si la siguiente consulta del anillo aún no ha terminado, no se mide)
+     */
+    public void begin() {
+        if(!supported || pending[current]) {
+            return;
+        }
+        GL.get().glBeginQuery(GL_TIME_ELAPSED_EXT, queries[current]);
+        running = true;
+    }
+
+    /**
+     * @brief Termina de medir
+     */
+    public void end() {
+        if(!running) {
+            return;
+        }
+        GL.get().glEndQuery(GL_TIME_ELAPSED_EXT);
+        pending[current] = true;
+        current = (current + 1) % QUERIES;
+        running = false;
+    }
+
+    /**
+     * @brief Recoge la medición terminada más antigua, si la hay
+     * @return  El tiempo de GPU en nanosegundos, o -1 si no hay ninguna disponible
+     */
+    public long poll() {
+        GL gl = GL.get();
+
+        if(!supported) {
+            return -1;
+        }
+        for(int i = 0; i < QUERIES; i++) {
+            int query = (current + i) % QUERIES;
+            if(!pending[query]) {
+                continue;
+            }
+            gl.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if(result[0] == 0) {
+                return -1;
+            }
+            pending[query] = false;
+
+            // Si la GPU ha cambiado de frecuencia o de contexto la medición no vale
+            gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+            if(result[0] != 0) {
+                return -1;
+            }
+            gl.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT, result, 0);
+            return result[0] & 0xFFFFFFFFL;
+        }
+        return -1;
+    }
+
+    /**
+     * @brief Libera las consultas
+     */
+    public void delete() {
+        if(supported) {
+            GL.get().glDeleteQueries(QUERIES, queries, 0);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file Hud.java
+ * @brief Textos de la interfaz dibujados con OpenGL
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.content.res.Resources;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * @class Hud
+ * @details Cada etiqueta es un texto con un fondo opcional. Los cuadrados de todas las etiquetas
+ * se generan en un único buffer dinámico, y sólo cuando cambia algún texto; la visibilidad y la
+ * transparencia se aplican al dibujar. Los textos se pueden cambiar desde cualquier hilo.
+ */
+public class Hud implements GLResource {
+
+    public static final int ANCHOR_TOP_LEFT = 0;        /**< Arriba a la izquierda (o a la derecha de otra) */
+    public static final int ANCHOR_BOTTOM_LEFT = 1;     /**< Abajo a la izquierda (o a la derecha de otra) */
+    public static final int ANCHOR_CENTER = 2;          /**< En el centro de la pantalla */
+    public static final int ANCHOR_TOP_RIGHT = 3;       /**< Arriba a la derecha */
+    public static final int ANCHOR_BELOW = 4;           /**< Debajo de otra, alineada a su izquierda */
+
+    public static final int STYLE_NORMAL = 0;
+    public static final int STYLE_ITALIC = 1;
+
+    private static final int MAX_LABELS = 16;
+    private static final int MAX_CHARS = 32;            /**< Caracteres por etiqueta */
+    private static final int MAX_BARS = 8;              /**< Barras de gráfica por etiqueta */
+    private static final int MAX_QUADS = MAX_LABELS * (MAX_CHARS + MAX_BARS + 1);
+    private static final int FLOATS_PER_VERTEX = 8;     /**< x, y, s, t, r, g, b, a */
+    private static final float FONT_SIZE = 34.0f;       /**< Tamaño de la fuente en el atlas, en dp */
+    private static final float MAX_FONT_PIXELS = 64.0f; /**< Tamaño máximo de la fuente en el atlas */
+    private static final float PADDING = 8.0f;          /**< Margen alrededor del texto, en dp */
+    private static final float ITALIC_SHEAR = 0.2f;
+
+    // Etiquetas
+    private int nlabels = 0;
+    private final char[][] text = new char[MAX_LABELS][MAX_CHARS];
+    private final int[] length = new int[MAX_LABELS];
+    private final int[] anchor = new int[MAX_LABELS];
+    private final int[] after = new int[MAX_LABELS];
+    private final float[] textSize = new float[MAX_LABELS];
+    private final int[] style = new int[MAX_LABELS];
+    private final int[] textColor = new int[MAX_LABELS];
+    private final int[] background = new int[MAX_LABELS];
+    private final boolean[] visible = new boolean[MAX_LABELS];
+    private final float[] alpha = new float[MAX_LABELS];
+    private final float[][] bars = new float[MAX_LABELS][MAX_BARS];   /**< Altura de cada barra, entre 0 y 1 */
+    private final int[] nbars = new int[MAX_LABELS];
+    private final float[] left = new float[MAX_LABELS];      /**< Borde izquierdo, para colocar la siguiente */
+    private final float[] right = new float[MAX_LABELS];     /**< Borde derecho */
+    private final float[] bottom = new float[MAX_LABELS];    /**< Borde inferior */
+    private final int[] firstIndex = new int[MAX_LABELS];
+    private final int[] indexCount = new int[MAX_LABELS];
+    private boolean dirty = true;
+
+    // Geometría
+    private final float[] vertices = new float[MAX_QUADS * 4 * FLOATS_PER_VERTEX];
+    private final StreamVBO vbo;
+    private final ShortBuffer indexBuffer;
+    private final int[] indexBufferID = new int[1];
+    private int nvertices = 0;
+    private int baseVertex = 0;     /**< Primer vértice de los cuadrados en el VBO */
+
+    private final BitmapFont font;
+    private final ShaderProgram shader;
+    private final float density;
+    private final float[] projection = new float[16];
+    private int width = 1;
+    private int height = 1;
+
+    /**
+     * @brief Constructor del HUD (debe llamarse desde el hilo de OpenGL)
+     * @throws IOException      Si no se encuentra el shader
+     * @throws RuntimeException Si no se ha podido cargar el shader
+     */
+    public Hud() throws IOException, RuntimeException {
+        this(Resources.getSystem().getDisplayMetrics().density);
+    }
+
+    /**
+     * @brief Constructor del HUD con la fuente y el shader por defecto
+     * @param density   Densidad de la pantalla
+     * @throws IOException      Si no se encuentra el shader
+     * @throws RuntimeException Si no se ha podido cargar el shader
+     */
+    private Hud(float density) throws IOException, RuntimeException {
+        this(new BitmapFont(Math.min(FONT_SIZE * density, MAX_FONT_PIXELS), Typeface.BOLD),
+                ResourceManager.getInstance().acquireShader("shader/hud.vs.glsl", "shader/hud.fs.glsl"), density);
+    }
+
+    /**
+     * @brief Constructor del HUD con una fuente y un shader dados (debe llamarse desde el hilo de OpenGL)
+     * @details Sin fuente ni shader se pueden añadir y cambiar etiquetas, pero no dibujarlas; así
+     * se prueba la lógica de la partida sin recursos de Android (ver GameDataTest)
+     * @param font      Fuente de los textos
+     * @param shader    Shader para dibujar
+     * @param density   Densidad de la pantalla
+     */
+    public Hud(BitmapFont font, ShaderProgram shader, float density) {
+
+        this.density = density;
+        this.font = font;
+        this.shader = shader;
+
+        // Los índices de los cuadrados no cambian nunca
+        short[] indices = new short[MAX_QUADS * 6];
+        for(int q = 0; q < MAX_QUADS; q++) {
+            indices[q * 6] = (short) (q * 4);
+            indices[q * 6 + 1] = (short) (q * 4 + 1);
+            indices[q * 6 + 2] = (short) (q * 4 + 2);
+            indices[q * 6 + 3] = (short) (q * 4 + 2);
+            indices[q * 6 + 4] = (short) (q * 4 + 1);
+            indices[q * 6 + 5] = (short) (q * 4 + 3);
+        }
+        indexBuffer = IBO.createBuffer(indices);
+        vbo = new StreamVBO(MAX_QUADS * 4 * 2, FLOATS_PER_VERTEX);
+
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() {
+        GL gl = GL.get();
+        gl.glGenBuffers(1, indexBufferID, 0);
+        IBO.bind(indexBufferID[0]);
+        gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.capacity() * Short.BYTES, indexBuffer, GLES20.GL_STATIC_DRAW);
+        IBO.bind(0);
+        synchronized(this) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @brief Añade una etiqueta (inicialmente invisible y vacía)
+     * @param anchor        Dónde se coloca (ANCHOR_*)
+     * @param after         Etiqueta a cuya derecha (o debajo, con ANCHOR_BELOW) se coloca, o -1
+     * @param textSize      Tamaño del texto, en dp
+     * @param style         Estilo del texto (STYLE_*)
+     * @param textColor     Color del texto (ARGB)
+     * @param background    Color del fondo (ARGB, 0 para no dibujarlo)
+     * @return  El identificador de la etiqueta
+     */
+    public synchronized int addLabel(int anchor, int after, float textSize, int style, int textColor, int background) {
+        int label = nlabels++;
+        this.anchor[label] = anchor;
+        this.after[label] = after;
+        this.textSize[label] = textSize;
+        this.style[label] = style;
+        this.textColor[label] = textColor;
+        this.background[label] = background;
+        this.visible[label] = false;
+        this.alpha[label] = 1.0f;
+        this.length[label] = 0;
+        this.nbars[label] = 0;
+        dirty = true;
+        return label;
+    }
+
+    /**
+     * @brief Cambia el texto de una etiqueta (sólo se regenera si es distinto)
+     * @param label La etiqueta
+     * @param value El nuevo texto (se recorta a MAX_CHARS caracteres)
+     */
+    public synchronized void setText(int label, CharSequence value) {
+        int n = Math.min(value.length(), MAX_CHARS);
+        char[] chars = text[label];
+        boolean changed = (n != length[label]);
+        for(int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if(chars[i] != c) {
+                chars[i] = c;
+                changed = true;
+            }
+        }
+        if(changed) {
+            length[label] = n;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @brief Cambia la gráfica de barras que se dibuja tras el texto (sólo se regenera si es distinta)
+     * @param label     La etiqueta
+     * @param values    Altura de cada barra, entre 0 y 1
+     * @param count     Número de barras (se recorta a MAX_BARS)
+     */
+    public synchronized void setBars(int label, float[] values, int count) {
+        int n = Math.min(count, MAX_BARS);
+        float[] heights = bars[label];
+        boolean changed = (n != nbars[label]);
+        for(int i = 0; i < n; i++) {
+            float value = Math.min(Math.max(values[i], 0.0f), 1.0f);
+            if(heights[i] != value) {
+                heights[i] = value;
+                changed = true;
+            }
+        }
+        if(changed) {
+            nbars[label] = n;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @brief Muestra u oculta una etiqueta (ocupa su sitio aunque no se vea)
+     * @param label     La etiqueta
+     * @param visible   Si se dibuja
+     */
+    public synchronized void setVisible(int label, boolean visible) {
+        this.visible[label] = visible;
+    }
+
+    /**
+     * @brief Cambia la transparencia de una etiqueta
+     * @param label La etiqueta
+     * @param alpha La transparencia (0 invisible, 1 opaca)
+     */
+    public synchronized void setAlpha(int label, float alpha) {
+        this.alpha[label] = Math.min(Math.max(alpha, 0.0f), 1.0f);
+    }
+
+    /**
+     * @brief Actualiza el tamaño de la pantalla (debe llamarse desde el hilo de OpenGL)
+     * @param width     Ancho en píxeles
+     * @param height    Alto en píxeles
+     */
+    public synchronized void setScreenSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        Matrix.orthoM(projection, 0, 0.0f, width, height, 0.0f, -1.0f, 1.0f);
+        dirty = true;
+    }
+
+    /**
+     * @brief Dibuja el HUD encima de la escena (debe llamarse desde el hilo de OpenGL)
+     */
+    public synchronized void draw() {
+
+        GL gl = GL.get();
+
+        if(dirty) {
+            generate();
+            dirty = false;
+        }
+        if(nvertices == 0) return;
+
+        // Sin profundidad y con mezcla de colores
+        gl.glDisable(GLES20.GL_DEPTH_TEST);
+        gl.glEnable(GLES20.GL_BLEND);
+        gl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+        shader.enable();
+        shader.setUniformMatrix4fv(ShaderProgram.MVP, projection);
+        font.getTexture().enable(shader);
+
+        vbo.bind(0, 2, 0, baseVertex);
+        vbo.bind(1, 2, 2, baseVertex);
+        vbo.bind(4, 4, 4, baseVertex);
+        IBO.bind(indexBufferID[0]);
+
+        for(int label = 0; label < nlabels; label++) {
+            if(!visible[label] || alpha[label] <= 0.0f || indexCount[label] == 0) continue;
+            shader.setUniform1f(ShaderProgram.ALPHA, alpha[label]);
+            gl.glDrawElements(GLES20.GL_TRIANGLES, indexCount[label], GLES20.GL_UNSIGNED_SHORT,
+                    firstIndex[label] * Short.BYTES);
+        }
+
+        vbo.unbind(0);
+        vbo.unbind(1);
+        vbo.unbind(4);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        IBO.bind(0);
+        Texture.disable();
+
+        gl.glDisable(GLES20.GL_BLEND);
+        gl.glEnable(GLES20.GL_DEPTH_TEST);
+    }
+
+    /**
+     * @brief Genera los cuadrados de todas las etiquetas y los sube al buffer
+     */
+    private void generate() {
+
+        int quads = 0;
+        float padding = PADDING * density;
+        float[] regions = font.getRegions();
+        float[] solid = font.getSolidRegion();
+
+        for(int label = 0; label < nlabels; label++) {
+
+            float scale = textSize[label] * density / font.getSize();
+            float textWidth = font.measure(text[label], length[label], scale);
+            float textHeight = font.getLineHeight() * scale;
+            float barWidth = textHeight * 0.25f;
+            float barsWidth = (nbars[label] > 0) ? padding + nbars[label] * barWidth * 1.5f : 0.0f;
+            float boxWidth = textWidth + barsWidth + 2.0f * padding;
+            float boxHeight = textHeight + 2.0f * padding;
+
+            // Coloca la etiqueta
+            float x = (after[label] >= 0) ? right[after[label]] : 0.0f;
+            float y = 0.0f;
+            switch(anchor[label]) {
+                case ANCHOR_BOTTOM_LEFT:
+                    y = height - boxHeight;
+                    break;
+                case ANCHOR_CENTER:
+                    x = (width - boxWidth) * 0.5f;
+                    y = (height - boxHeight) * 0.5f;
+                    break;
+                case ANCHOR_TOP_RIGHT:
+                    x = width - boxWidth;
+                    break;
+                case ANCHOR_BELOW:
+                    x = left[after[label]];
+                    y = bottom[after[label]];
+                    break;
+            }
+            left[label] = x;
+            right[label] = x + boxWidth;
+            bottom[label] = y + boxHeight;
+
+            firstIndex[label] = quads * 6;
+            int labelStart = quads;
+
+            // Fondo
+            if(background[label] != 0) {
+                putQuad(quads++, x, y, x + boxWidth, y + boxHeight, 0.0f, solid, 0, background[label]);
+            }
+
+            // Caracteres
+            float shear = (style[label] == STYLE_ITALIC) ? ITALIC_SHEAR * textHeight : 0.0f;
+            float penX = x + padding;
+            float top = y + padding;
+            for(int i = 0; i < length[label] && quads < MAX_QUADS; i++) {
+                int index = font.getIndex(text[label][i]);
+                if(text[label][i] != ' ') {
+                    putQuad(quads++, penX, top, penX + font.getWidth(index) * scale, top + textHeight,
+                            shear, regions, index * 4, textColor[label]);
+                }
+                penX += font.getAdvance(index) * scale;
+            }
+
+            // Barras, con la base alineada con la del texto
+            float barX = x + padding + textWidth + padding;
+            for(int i = 0; i < nbars[label] && quads < MAX_QUADS; i++) {
+                float barTop = top + textHeight * (1.0f - Math.max(bars[label][i], 0.05f));
+                putQuad(quads++, barX, barTop, barX + barWidth, top + textHeight, 0.0f, solid, 0, textColor[label]);
+                barX += barWidth * 1.5f;
+            }
+            indexCount[label] = (quads - labelStart) * 6;
+        }
+
+        // Sube sólo la parte usada, detrás de la versión anterior (que la GPU puede estar leyendo)
+        nvertices = quads * 4;
+        if(nvertices > 0) {
+            baseVertex = vbo.begin(nvertices);
+            vbo.put(vertices, 0, nvertices * FLOATS_PER_VERTEX);
+            vbo.end();
+        }
+    }
+
+    /**
+     * @brief Escribe un cuadrado en el array de vértices
+     * @param quad      Índice del cuadrado
+     * @param x0        Izquierda
+     * @param y0        Arriba
+     * @param x1        Derecha
+     * @param y1        Abajo
+     * @param shear     Desplazamiento horizontal del borde superior (cursiva)
+     * @param region    Array con los rectángulos de textura
+     * @param offset    Posición del rectángulo (s0, t0, s1, t1) en el array
+     * @param color     Color (ARGB)
+     */
+    private void putQuad(int quad, float x0, float y0, float x1, float y1, float shear,
+                         float[] region, int offset, int color) {
+
+        float a = ((color >>> 24) & 0xFF) / 255.0f;
+        float r = ((color >>> 16) & 0xFF) / 255.0f;
+        float g = ((color >>> 8) & 0xFF) / 255.0f;
+        float b = (color & 0xFF) / 255.0f;
+        float s0 = region[offset];
+        float t0 = region[offset + 1];
+        float s1 = region[offset + 2];
+        float t1 = region[offset + 3];
+
+        int v = quad * 4 * FLOATS_PER_VERTEX;
+        v = putVertex(v, x0 + shear, y0, s0, t0, r, g, b, a);
+        v = putVertex(v, x0, y1, s0, t1, r, g, b, a);
+        v = putVertex(v, x1 + shear, y0, s1, t0, r, g, b, a);
+        putVertex(v, x1, y1, s1, t1, r, g, b, a);
+    }
+
+    /**
+     * @brief Escribe un vértice en el array de vértices
+     * @return  La posición del siguiente vértice
+     */
+    private int putVertex(int v, float x, float y, float s, float t, float r, float g, float b, float a) {
+        vertices[v] = x;
+        vertices[v + 1] = y;
+        vertices[v + 2] = s;
+        vertices[v + 3] = t;
+        vertices[v + 4] = r;
+        vertices[v + 5] = g;
+        vertices[v + 6] = b;
+        vertices[v + 7] = a;
+        return v + FLOATS_PER_VERTEX;
+    }
+
+    /**
+     * @brief Borra el HUD
+     */
+    public void delete() {
+        GL.get().glDeleteBuffers(1, indexBufferID, 0);
+        vbo.delete();
+        ResourceManager.getInstance().untrack(this);
+        ResourceManager.getInstance().release(shader);
+        font.delete();
+    }
+}
@@ -8,33 +8,215 @@ package com.dam.chapas.opengl;
 
 import android.opengl.GLES20;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 /**
  * @class IBO
+ * @details Los índices se guardan en 16 bits siempre que se pueda. Si el modelo tiene más de
+ * 65536 vértices se usan índices de 32 bits cuando el contexto tiene OES_element_index_uint, y si
+ * no se parten en tramos de 16 bits, cada uno relativo a un vértice base que se aplica desplazando
+ * los atributos (OpenGL ES 2 no tiene glDrawElementsBaseVertex). Para eso cada triángulo debe
+ * caber en una ventana de 65536 vértices, que es lo que asegura MeshOptimizer.reorderVertices.
  */
-public class IBO {
+public class IBO implements GLResource {
+
+    public static final int MAX_SHORT_VERTICES = 65536;    /**< Vértices direccionables con 16 bits */
+
+    private static volatile boolean uintSupported = false;
+    private static int boundBuffer = 0;     /**< Buffer de índices seleccionado, para no repetir glBindBuffer */
+
+    /**
+     * @class Indices
+     * @brief Índices ya preparados para subir a OpenGL
+     */
+    public static class Indices {
+        private final Buffer buffer;
+        private final int type;             /**< GL_UNSIGNED_SHORT o GL_UNSIGNED_INT */
+        private final int elementSize;
+        private final int[] segmentStart;   /**< Primer índice de cada tramo, y el total al final */
+        private final int[] segmentBase;    /**< Vértice base de cada tramo */
+
+        private Indices(Buffer buffer, int type, int elementSize, int[] segmentStart, int[] segmentBase) {
+            this.buffer = buffer;
+            this.type = type;
+            this.elementSize = elementSize;
+            this.segmentStart = segmentStart;
+            this.segmentBase = segmentBase;
+        }
+
+        /**
+         * @brief Obtén el tamaño de los índices en OpenGL
+         * @return  El tamaño en bytes
+         */
+        public long getByteSize() {
+            return (long) buffer.capacity() * elementSize;
+        }
+    }
 
     private int[] bufferID;
+    private Indices indices;    /**< Copia en CPU, para restaurar el IBO */
+
+    /**
+     * @brief Comprueba si el contexto admite índices de 32 bits (debe llamarse desde el hilo de OpenGL)
+     * @details El resultado se guarda para que los hilos de carga sepan si tienen que partir los
+     * modelos grandes (ver isUintSupported)
+     */
+    public static void initialize() {
+        GL gl = GL.get();
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+        uintSupported = (version != null && version.startsWith("OpenGL ES 3")) ||
+                (extensions != null && extensions.contains("GL_OES_element_index_uint"));
+        boundBuffer = 0;
+    }
+
+    /**
+     * @brief Selecciona un buffer de índices, si no estaba ya seleccionado
+     * @param buffer    Identificador del buffer (0 para ninguno)
+     */
+    public static void bind(int buffer) {
+        if(buffer == boundBuffer) return;
+        GL.get().glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffer);
+        boundBuffer = buffer;
+    }
+
+    /**
+     * @brief Obtén si se pueden usar índices de 32 bits (se puede llamar desde cualquier hilo)
+     * @return  Si el último contexto creado admite índices de 32 bits
+     */
+    public static boolean isUintSupported() {
+        return uintSupported;
+    }
 
     /**
      * @brief Constructor de un IBO
      * @param buffer    Buffer con los índices
      */
     public IBO(short[] buffer) {
+        this(new Indices(createBuffer(buffer), GLES20.GL_UNSIGNED_SHORT, Short.BYTES,
+                new int[] {0, buffer.length}, new int[] {0}));
+    }
+
+    /**
+     * @brief Constructor de un IBO
+     * @param buffer    Buffer con los índices (de 32 bits, se guardan en el formato más pequeño posible)
+     */
+    public IBO(int[] buffer) {
+        this(prepare(buffer));
+    }
 
+    /**
+     * @brief Constructor de un IBO a partir de unos índices ya preparados
+     * @param indices   Los índices (ver prepare)
+     */
+    public IBO(Indices indices) {
+        this.indices = indices;
+        bufferID = new int[1];
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() {
+        GL gl = GL.get();
+        gl.glGenBuffers(1, bufferID, 0);
+        bind(bufferID[0]);
+        gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, (int) indices.getByteSize(), indices.buffer, GLES20.GL_STATIC_DRAW);
+    }
+
+    /**
+     * @brief Crea un buffer directo listo para subir a OpenGL (se puede llamar desde cualquier hilo)
+     * @param buffer    Índices
+     * @return  El buffer
+     */
+    public static ShortBuffer createBuffer(short[] buffer) {
         ByteBuffer bb = ByteBuffer.allocateDirect(buffer.length * Short.BYTES);
         bb.order(ByteOrder.nativeOrder());
         ShortBuffer shortBuffer = bb.asShortBuffer();
         shortBuffer.put(buffer);
         shortBuffer.position(0);
+        return shortBuffer;
+    }
 
-        bufferID = new int[1];
-        GLES20.glGenBuffers(1, bufferID, 0);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferID[0]);
-        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffer.length * Short.BYTES, shortBuffer, GLES20.GL_STATIC_DRAW);
+    /**
+     * @brief Prepara unos índices en el formato más pequeño posible (se puede llamar desde cualquier hilo)
+     * @param buffer    Índices
+     * @return  Los índices preparados
+     * @throws RuntimeException Si hay que partirlos y algún triángulo no cabe en un tramo
+     */
+    public static Indices prepare(int[] buffer) throws RuntimeException {
+
+        int maxIndex = 0;
+        for(int index : buffer) {
+            maxIndex = Math.max(maxIndex, index);
+        }
+
+        // Caben en 16 bits
+        if(maxIndex < MAX_SHORT_VERTICES) {
+            short[] shorts = new short[buffer.length];
+            for(int i = 0; i < buffer.length; i++) {
+                shorts[i] = (short) buffer[i];
+            }
+            return new Indices(createBuffer(shorts), GLES20.GL_UNSIGNED_SHORT, Short.BYTES,
+                    new int[] {0, buffer.length}, new int[] {0});
+        }
+
+        // Índices de 32 bits
+        if(uintSupported) {
+            ByteBuffer bb = ByteBuffer.allocateDirect(buffer.length * Integer.BYTES);
+            bb.order(ByteOrder.nativeOrder());
+            IntBuffer intBuffer = bb.asIntBuffer();
+            intBuffer.put(buffer);
+            intBuffer.position(0);
+            return new Indices(intBuffer, GLES20.GL_UNSIGNED_INT, Integer.BYTES,
+                    new int[] {0, buffer.length}, new int[] {0});
+        }
+
+        // Tramos de 16 bits: se empieza uno nuevo cuando un triángulo se sale de la ventana
+        int[] segmentStart = new int[buffer.length / 3 + 1];
+        int[] segmentBase = new int[buffer.length / 3 + 1];
+        int nsegments = 0;
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        for(int i = 0; i + 2 < buffer.length; i += 3) {
+            int triangleMin = Math.min(buffer[i], Math.min(buffer[i + 1], buffer[i + 2]));
+            int triangleMax = Math.max(buffer[i], Math.max(buffer[i + 1], buffer[i + 2]));
+            if(triangleMax - triangleMin >= MAX_SHORT_VERTICES) {
+                throw new RuntimeException("Triangle doesn't fit in 16-bit indices: " + triangleMin + "-" + triangleMax);
+            }
+            if(nsegments == 0 || Math.max(max, triangleMax) - Math.min(min, triangleMin) >= MAX_SHORT_VERTICES) {
+                if(nsegments > 0) {
+                    segmentBase[nsegments - 1] = min;
+                }
+                segmentStart[nsegments++] = i;
+                min = triangleMin;
+                max = triangleMax;
+            } else {
+                min = Math.min(min, triangleMin);
+                max = Math.max(max, triangleMax);
+            }
+        }
+        segmentBase[nsegments - 1] = min;
+        segmentStart[nsegments] = buffer.length;
+
+        short[] shorts = new short[buffer.length];
+        for(int s = 0; s < nsegments; s++) {
+            for(int i = segmentStart[s]; i < segmentStart[s + 1]; i++) {
+                shorts[i] = (short) (buffer[i] - segmentBase[s]);
+            }
+        }
+        int[] starts = new int[nsegments + 1];
+        int[] bases = new int[nsegments];
+        System.arraycopy(segmentStart, 0, starts, 0, nsegments + 1);
+        System.arraycopy(segmentBase, 0, bases, 0, nsegments);
+        return new Indices(createBuffer(shorts), GLES20.GL_UNSIGNED_SHORT, Short.BYTES, starts, bases);
     }
 
     /**
@@ -45,12 +227,22 @@ public class IBO {
      */
     public void draw(VBO[] vboArray, int start, int end) {
 
-        for(int i = 0; i < vboArray.length; i++) {
-            vboArray[i].beginDraw(i);
+        GL gl = GL.get();
+        int[] segmentStart = indices.segmentStart;
+        int segment = 0;
+        while(segmentStart[segment + 1] <= start && segment + 2 < segmentStart.length) {
+            segment++;
         }
 
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferID[0]);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, end - start, GLES20.GL_UNSIGNED_SHORT, start * Short.BYTES);
+        bind(bufferID[0]);
+        for(; segment + 1 < segmentStart.length && segmentStart[segment] < end; segment++) {
+            int from = Math.max(start, segmentStart[segment]);
+            int to = Math.min(end, segmentStart[segment + 1]);
+            for(int i = 0; i < vboArray.length; i++) {
+                vboArray[i].beginDraw(i, indices.segmentBase[segment]);
+            }
+            gl.glDrawElements(GLES20.GL_TRIANGLES, to - from, indices.type, from * indices.elementSize);
+        }
 
         for(int i = 0; i < vboArray.length; i++) {
             vboArray[i].endDraw(i);
@@ -61,6 +253,10 @@ public class IBO {
      * @brief Borra el IBO
      */
     public void delete() {
-        GLES20.glDeleteBuffers(1, bufferID, 0);
+        if(boundBuffer == bufferID[0]) {
+            boundBuffer = 0;
+        }
+        GL.get().glDeleteBuffers(1, bufferID, 0);
+        ResourceManager.getInstance().untrack(this);
     }
 }
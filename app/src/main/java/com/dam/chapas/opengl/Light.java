@@ -64,7 +64,7 @@ public class Light {
      * @param shader    Shader a actualizar
      */
     public void enable(ShaderProgram shader) {
-        shader.setUniform3fv("lightPos", position);
-        shader.setUniform3fv("lightColor", color);
+        shader.setUniform3fv(ShaderProgram.LIGHT_POS, position);
+        shader.setUniform3fv(ShaderProgram.LIGHT_COLOR, color);
     }
 }
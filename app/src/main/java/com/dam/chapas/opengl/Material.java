@@ -6,8 +6,6 @@ package com.dam.chapas.opengl;
  * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
  */
 
-import android.opengl.GLES20;
-
 /**
  * @class Material
  */
@@ -20,6 +18,7 @@ public class Material {
     private float shininess;
     private float alpha;
     private Texture texture;
+    private float[] atlasRegion;    /**< Rectángulo de la textura en el atlas (null si no usa el atlas) */
 
     /**
      * @brief Constructor del material
@@ -42,6 +41,7 @@ public class Material {
         m.setAlpha(alpha);
         m.setShininess(shininess);
         m.setTexture(texture);
+        m.setAtlasRegion(atlasRegion);
         return m;
     }
 
@@ -52,31 +52,42 @@ public class Material {
     public void enable(ShaderProgram shader) {
 
         shader.enable();
-        shader.setUniform3fv("ambient", ambient);
-        shader.setUniform3fv("diffuse", diffuse);
-        shader.setUniform3fv("specular", specular);
-        shader.setUniform3fv("emissive", emissive);
-        shader.setUniform1f("alpha", alpha);
-        shader.setUniform1f("shininess", shininess);
+        shader.setUniform3fv(ShaderProgram.AMBIENT, ambient);
+        shader.setUniform3fv(ShaderProgram.DIFFUSE, diffuse);
+        shader.setUniform3fv(ShaderProgram.SPECULAR, specular);
+        shader.setUniform3fv(ShaderProgram.EMISSIVE, emissive);
+        shader.setUniform1f(ShaderProgram.ALPHA, alpha);
+        shader.setUniform1f(ShaderProgram.SHININESS, shininess);
 
         // La textura es opcional
         if(texture != null) {
-            texture.enable(shader, GLES20.GL_TEXTURE0);
+            texture.enable(shader);
+        } else {
+            Texture.disable();
         }
     }
 
+    /**
+     * @brief Obtén si el material es transparente
+     * @return  Si el material necesita mezcla de colores
+     */
+    public boolean isTransparent() {
+        return alpha < 1.0f;
+    }
+
     /**
      * @brief Desactiva el material
      */
     public void disable() {
-        Texture.disable(GLES20.GL_TEXTURE0);
+        Texture.disable();
     }
 
     /**
      * @brief Borra el material
+     * @details Las texturas compartidas (ver ResourceManager) sólo se liberan
      */
     public void delete() {
-        if(texture != null) {
+        if(texture != null && !ResourceManager.getInstance().release(texture)) {
             texture.delete();
         }
     }
@@ -202,4 +213,20 @@ public class Material {
     public void setTexture(Texture texture) {
         this.texture = texture;
     }
+
+    /**
+     * @brief Obtén el rectángulo de la textura dentro del atlas
+     * @return  El rectángulo (s0, t0, s1, t1), o null si no usa el atlas
+     */
+    public float[] getAtlasRegion() {
+        return atlasRegion;
+    }
+
+    /**
+     * @brief Establece el rectángulo de la textura dentro del atlas
+     * @param atlasRegion   El rectángulo (s0, t0, s1, t1), o null si no usa el atlas
+     */
+    public void setAtlasRegion(float[] atlasRegion) {
+        this.atlasRegion = atlasRegion;
+    }
 }
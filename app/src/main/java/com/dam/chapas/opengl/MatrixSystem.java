@@ -15,14 +15,14 @@ import android.opengl.Matrix;
 public class MatrixSystem {
 
     private float[] projectionMatrix = new float[16];
-    private float[] modelMatrix = new float[16];
     private float[] vpMatrix = new float[16];
     private float[] mvpMatrix = new float[16];
-    private float[] translateMatrix = new float[16];
-    private float[] rotateMatrix = new float[16];
-    private float[] trMatrix = new float[16];
-    private float[] scaleMatrix = new float[16];
+    private float[] modelMatrix = null;
     private float[] viewMatrix = null;
+    private Frustum frustum = new Frustum();
+    private Camera lastCamera = null;
+    private boolean projectionDirty;
+    private float pixelScale = 1.0f;
 
     /**
      * @brief Constructor de MatrixSystem
@@ -30,40 +30,92 @@ public class MatrixSystem {
     public MatrixSystem() {
 
         Matrix.setIdentityM(projectionMatrix, 0);
-        Matrix.setIdentityM(modelMatrix, 0);
         Matrix.setIdentityM(vpMatrix, 0);
         Matrix.setIdentityM(mvpMatrix, 0);
+        projectionDirty = true;
     }
 
     /**
-     * @brief Aplica una transformación elemental
+     * @brief Calcula una matriz de modelado (traslación * rotación * escala)
+     * @param out   Matriz de salida
      * @param pos   Posición
-     * @param rot   Rotación (cuaternión)
+     * @param rot   Rotación (ángulo en grados y eje)
      * @param scale Escala
      */
-    public void setTransformation(float[] pos, float[] rot, float[] scale) {
-
-        Matrix.setIdentityM(translateMatrix, 0);
-        Matrix.translateM(translateMatrix, 0, pos[0], pos[1], pos[2]);
-        Matrix.setRotateM(rotateMatrix, 0, rot[0], rot[1], rot[2], rot[3]);
-        Matrix.setIdentityM(scaleMatrix, 0);
-        Matrix.scaleM(scaleMatrix, 0, scale[0], scale[1], scale[2]);
+    public static void composeTransformation(float[] out, float[] pos, float[] rot, float[] scale) {
+
+        // Normaliza el eje de rotación
+        float x = rot[1];
+        float y = rot[2];
+        float z = rot[3];
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        float a = (float) Math.toRadians(rot[0]);
+        float s = 0.0f;
+        float c = 1.0f;
+        if(len > 0.0f) {
+            x /= len;
+            y /= len;
+            z /= len;
+            s = (float) Math.sin(a);
+            c = (float) Math.cos(a);
+        }
+        float nc = 1.0f - c;
+        float xy = x * y;
+        float yz = y * z;
+        float zx = z * x;
+        float xs = x * s;
+        float ys = y * s;
+        float zs = z * s;
+
+        // Columnas de la rotación, escaladas
+        out[0] = (x * x * nc + c) * scale[0];
+        out[1] = (xy * nc + zs) * scale[0];
+        out[2] = (zx * nc - ys) * scale[0];
+        out[3] = 0.0f;
+
+        out[4] = (xy * nc - zs) * scale[1];
+        out[5] = (y * y * nc + c) * scale[1];
+        out[6] = (yz * nc + xs) * scale[1];
+        out[7] = 0.0f;
+
+        out[8] = (zx * nc + ys) * scale[2];
+        out[9] = (yz * nc - xs) * scale[2];
+        out[10] = (z * z * nc + c) * scale[2];
+        out[11] = 0.0f;
+
+        // Traslación
+        out[12] = pos[0];
+        out[13] = pos[1];
+        out[14] = pos[2];
+        out[15] = 1.0f;
+    }
 
-        Matrix.multiplyMM(trMatrix, 0, translateMatrix, 0, rotateMatrix, 0);
-        Matrix.multiplyMM(modelMatrix, 0, trMatrix, 0, scaleMatrix, 0);
+    /**
+     * @brief Recalcula la matriz vista-proyección si la cámara ha cambiado
+     * @param camera    La cámara a usar
+     */
+    public void updateViewProjection(Camera camera) {
+        if(projectionDirty || camera != lastCamera || camera.isDirty()) {
+            viewMatrix = camera.computeView();
+            Matrix.multiplyMM(vpMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+            frustum.update(vpMatrix);
+            lastCamera = camera;
+            projectionDirty = false;
+        }
     }
 
     /**
      * @brief Actualiza las matrices en el shader
-     * @param shader    El shader a actualizar
-     * @param camera    La cámara a usar
+     * @param shader        El shader a actualizar
+     * @param camera        La cámara a usar
+     * @param modelMatrix   La matriz de modelado del objeto
      */
-    public void update(ShaderProgram shader, Camera camera) {
-        viewMatrix = camera.computeView();
-        Matrix.multiplyMM(vpMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+    public void update(ShaderProgram shader, Camera camera, float[] modelMatrix) {
+        updateViewProjection(camera);
+        this.modelMatrix = modelMatrix;
         Matrix.multiplyMM(mvpMatrix, 0, vpMatrix, 0, modelMatrix, 0);
-        shader.setUniformMatrix4fv("m", modelMatrix);
-        shader.setUniformMatrix4fv("mvp", mvpMatrix);
+        shader.setUniformMatrix4fv(ShaderProgram.M, modelMatrix);
+        shader.setUniformMatrix4fv(ShaderProgram.MVP, mvpMatrix);
     }
 
     /**
@@ -72,13 +124,24 @@ public class MatrixSystem {
      * @param height    Nuevo alto de la pantalla
      */
     public void onSurfaceChanged(int width, int height) {
-        GLES20.glViewport(0, 0, width, height);
+        GL.get().glViewport(0, 0, width, height);
 
         //float fov = 45.0f * (float)Math.PI / 180.0f;
         float aspect = (float) width / (float) height;
 
         Matrix.frustumM(projectionMatrix, 0, -aspect, aspect, -1, 1, 1.0f, 1000.0f);
         //Matrix.perspectiveM(projectionMatrix, 0, fov, aspect, 1.0f, 1000.0f);
+        pixelScale = projectionMatrix[5] * height / 2.0f;
+        projectionDirty = true;
+    }
+
+    /**
+     * @brief Obtén cuántos píxeles ocupa una unidad a distancia 1 de la cámara
+     * @details Un objeto de tamaño s a distancia d ocupa s * getPixelScale() / d píxeles
+     * @return  La escala en píxeles
+     */
+    public float getPixelScale() {
+        return pixelScale;
     }
 
     /**
@@ -97,6 +160,22 @@ public class MatrixSystem {
         return viewMatrix;
     }
 
+    /**
+     * @brief Obtén la matriz vista-proyección del fotograma actual
+     * @return  La matriz vista-proyección
+     */
+    public float[] getViewProjectionMatrix() {
+        return vpMatrix;
+    }
+
+    /**
+     * @brief Obtén el volumen de visión del fotograma actual
+     * @return  El volumen de visión
+     */
+    public Frustum getFrustum() {
+        return frustum;
+    }
+
     /**
      * @brief Obtén la matriz de modelado
      * @return  La matriz de modelado
@@ -6,7 +6,8 @@ package com.dam.chapas.opengl;
  * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
  */
 
-import android.util.Pair;
+import android.util.Log;
+import androidx.core.util.Pair;
 
 import com.dam.chapas.app.MainApplication;
 import com.dam.chapas.physics.RigidBody;
@@ -22,12 +23,35 @@ public class Mesh {
     protected IBO ibo;
     protected ArrayList<Pair<Integer, Material>> materialGroups;
     protected Material[] materials;
+    protected float[] vertexData;
+    protected float[] texcoordData;
+    protected float[] normalData;
+    protected int[] indexData;
+    protected float[] bounds;
+    private int nchunks;
+    private int[] chunkStart;
+    private int[] chunkEnd;
+    private float[] chunkBounds;
+    private boolean[] chunkVisible;
+    private MeshChunks chunks;          /**< Trozos y niveles de detalle aplicados (null si no hay) */
+    private int nlevels;                /**< Niveles de detalle, contando el original */
+    private IBO lodIbo;                 /**< Índices de los niveles simplificados (null si no hay) */
+    private int[] lodStart;             /**< Inicio de cada nivel (a partir del 1), grupo y trozo en lodIbo */
+    private int[] lodEnd;               /**< Fin de cada nivel (a partir del 1), grupo y trozo en lodIbo */
+    private float[] chunkError;         /**< Error geométrico de cada nivel y trozo */
+    private int[] chunkLod;             /**< Nivel elegido para cada trozo */
+    private float lodBias;
     private float[] pos;
     private float[] rot;
     private float[] scale;
+    private float[] modelMatrix;
+    private boolean transformDirty;
     private boolean cloned;
     private RigidBody rigidBody;
 
+    private static final float LOD_PIXELS = 1.0f;       /**< Error en pantalla admitido, en píxeles */
+    private static final float LOD_MIN_DISTANCE = 1.0f; /**< Distancia mínima para elegir nivel (plano cercano) */
+
     /**
      * @brief Constructor de un Mesh
      */
@@ -36,9 +60,19 @@ public class Mesh {
         ibo = null;
         materials = null;
         materialGroups = null;
+        vertexData = null;
+        texcoordData = null;
+        normalData = null;
+        indexData = null;
+        bounds = null;
+        nchunks = 0;
+        nlevels = 1;
+        lodBias = 1.0f;
         pos = new float[] {0.0f, 0.0f, 0.0f};
         rot = new float[] {0.0f, 1.0f, 0.0f, 0.0f};
         scale = new float[] {1.0f, 1.0f, 1.0f};
+        modelMatrix = new float[16];
+        transformDirty = true;
         cloned = false;
         rigidBody = null;
     }
@@ -49,11 +83,23 @@ public class Mesh {
      * @param ibo               IBO
      * @param materials         Materiales a usar
      * @param materialGroups    Grupos de materiales
+     * @param source            Mesh original (para compartir los datos en CPU)
      */
-    private Mesh(VBO[] vbos, IBO ibo, Material[] materials, ArrayList<Pair<Integer, Material>> materialGroups) {
+    private Mesh(VBO[] vbos, IBO ibo, Material[] materials, ArrayList<Pair<Integer, Material>> materialGroups, Mesh source) {
         this.vbos = vbos;
         this.ibo = ibo;
         this.materials = materials;
+        this.vertexData = source.vertexData;
+        this.texcoordData = source.texcoordData;
+        this.normalData = source.normalData;
+        this.indexData = source.indexData;
+        this.bounds = source.bounds;
+        this.nchunks = 0;
+        this.nlevels = 1;
+        this.lodBias = 1.0f;
+        if(source.chunks != null) {
+            shareChunks(source);
+        }
         this.materialGroups = new ArrayList<>();
         for(Pair<Integer, Material> m : materialGroups) {
             this.materialGroups.add(new Pair<>(m.first, m.second));
@@ -61,6 +107,8 @@ public class Mesh {
         pos = new float[] {0.0f, 0.0f, 0.0f};
         rot = new float[] {0.0f, 1.0f, 0.0f, 0.0f};
         scale = new float[] {1.0f, 1.0f, 1.0f};
+        modelMatrix = new float[16];
+        transformDirty = true;
         cloned = true;
     }
 
@@ -70,23 +118,288 @@ public class Mesh {
      * @param cam       Cámara a usar
      */
     public void draw(ShaderProgram shader, Camera cam) {
+        for(int g = 0; g < materialGroups.size(); g++) {
+            drawGroup(shader, cam, g);
+        }
+    }
+
+    /**
+     * @brief Dibuja un grupo de material del modelo 3D
+     * @param shader    Shader a usar
+     * @param cam       Cámara a usar
+     * @param group     Índice del grupo de material
+     * @return  El número de llamadas de dibujado realizadas
+     */
+    public int drawGroup(ShaderProgram shader, Camera cam, int group) {
 
         // Activa el shader
         shader.enable();
 
         // Realiza las transformaciones
         MatrixSystem mtx = MainApplication.getInstance().getMatrixSystem();
-        mtx.setTransformation(pos, rot, scale);
-        mtx.update(shader, cam);
+        mtx.update(shader, cam, getModelMatrix());
+
+        // Dibuja el grupo
+        Pair<Integer, Material> matGroup = materialGroups.get(group);
+        matGroup.second.enable(shader);
+        if(nchunks == 0) {
+            ibo.draw(vbos, getGroupStart(group), matGroup.first);
+            return 1;
+        }
+
+        // Dibuja sólo los trozos visibles, juntando los consecutivos del mismo nivel
+        int drawCalls = 0;
+        int c = 0;
+        while(c < nchunks) {
+            if(!chunkVisible[c]) {
+                c ++;
+                continue;
+            }
+            int level = chunkLod[c];
+            IBO drawIbo = (level == 0) ? ibo : lodIbo;
+            int[] starts = (level == 0) ? chunkStart : lodStart;
+            int[] ends = (level == 0) ? chunkEnd : lodEnd;
+            int offset = (level == 0) ? 0 : (level - 1) * materialGroups.size() * nchunks;
+            int start = starts[offset + group * nchunks + c];
+            while(c < nchunks && chunkVisible[c] && chunkLod[c] == level) c ++;
+            int end = ends[offset + group * nchunks + c - 1];
+            if(end > start) {
+                drawIbo.draw(vbos, start, end);
+                drawCalls ++;
+            }
+        }
+        return drawCalls;
+    }
+
+    /**
+     * @brief Comprueba si el Mesh es visible, actualizando la visibilidad de sus trozos
+     * @param frustum   Volumen de visión de la cámara
+     * @return  Si alguna parte del Mesh es visible
+     */
+    public boolean isVisible(Frustum frustum) {
+
+        // Sin esfera envolvente se dibuja siempre
+        if(bounds == null) return true;
 
-        // Dibuja el modelo 3D
-        int start = 0;
-        for(Pair<Integer, Material> matGroup : materialGroups) {
-            matGroup.second.enable(shader);
-            ibo.draw(vbos, start, matGroup.first);
-            matGroup.second.disable();
-            start = matGroup.first;
+        float[] m = getModelMatrix();
+        float maxScale = getMaxScale();
+        if(!sphereVisible(frustum, m, bounds, 0, maxScale)) {
+            return false;
         }
+
+        // Comprueba cada trozo por separado
+        if(nchunks == 0) return true;
+        boolean visible = false;
+        for(int c = 0; c < nchunks; c++) {
+            chunkVisible[c] = sphereVisible(frustum, m, chunkBounds, c * 4, maxScale);
+            visible |= chunkVisible[c];
+        }
+        return visible;
+    }
+
+    /**
+     * @brief Elige el nivel de detalle de cada trozo según su error proyectado en pantalla
+     * @details Se usa el nivel más simplificado cuyo error, visto desde el punto más cercano del
+     * trozo, no llega a LOD_PIXELS píxeles (multiplicados por el sesgo de calidad)
+     * @param cameraPos     Posición de la cámara
+     * @param pixelScale    Píxeles que ocupa una unidad a distancia 1 de la cámara
+     */
+    public void selectLods(float[] cameraPos, float pixelScale) {
+
+        if(nlevels < 2) return;
+
+        float[] m = getModelMatrix();
+        float maxScale = getMaxScale();
+        for(int c = 0; c < nchunks; c++) {
+            float x = chunkBounds[c * 4];
+            float y = chunkBounds[c * 4 + 1];
+            float z = chunkBounds[c * 4 + 2];
+            float dx = m[0] * x + m[4] * y + m[8] * z + m[12] - cameraPos[0];
+            float dy = m[1] * x + m[5] * y + m[9] * z + m[13] - cameraPos[1];
+            float dz = m[2] * x + m[6] * y + m[10] * z + m[14] - cameraPos[2];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - chunkBounds[c * 4 + 3] * maxScale;
+            distance = Math.max(distance, LOD_MIN_DISTANCE);
+
+            // Error máximo admitido en unidades del modelo
+            float maxError = LOD_PIXELS * lodBias * distance / (pixelScale * maxScale);
+            int level = 0;
+            while(level + 1 < nlevels && chunkError[(level + 1) * nchunks + c] <= maxError) {
+                level ++;
+            }
+            chunkLod[c] = level;
+        }
+    }
+
+    /**
+     * @brief Establece el sesgo de los niveles de detalle
+     * @param bias  Multiplicador del error en pantalla admitido (1 para no notar la diferencia)
+     */
+    public void setLodBias(float bias) {
+        lodBias = bias;
+    }
+
+    /**
+     * @brief Obtén la escala máxima del Mesh en los tres ejes
+     * @return  La escala máxima
+     */
+    private float getMaxScale() {
+        return Math.max(Math.abs(scale[0]), Math.max(Math.abs(scale[1]), Math.abs(scale[2])));
+    }
+
+    /**
+     * @brief Comprueba si una esfera en coordenadas locales es visible
+     * @param frustum   Volumen de visión de la cámara
+     * @param m         Matriz de modelado
+     * @param sphere    Array con las esferas (x, y, z, radio)
+     * @param offset    Índice de la esfera en el array
+     * @param maxScale  Escala máxima del Mesh
+     * @return  Si la esfera es visible
+     */
+    private static boolean sphereVisible(Frustum frustum, float[] m, float[] sphere, int offset, float maxScale) {
+        float x = sphere[offset];
+        float y = sphere[offset + 1];
+        float z = sphere[offset + 2];
+        return frustum.intersectsSphere(m[0] * x + m[4] * y + m[8] * z + m[12],
+                                        m[1] * x + m[5] * y + m[9] * z + m[13],
+                                        m[2] * x + m[6] * y + m[10] * z + m[14],
+                                        sphere[offset + 3] * maxScale);
+    }
+
+    /**
+     * @brief Calcula la esfera envolvente a partir de los vértices en CPU
+     */
+    protected void computeBounds() {
+        bounds = new float[4];
+        MeshGeometry.computeSphere(vertexData, null, 0, 0, bounds, 0);
+    }
+
+    /**
+     * @brief Divide el Mesh en una rejilla de trozos en el plano XZ para descartar los no visibles
+     * @details Calcula los trozos y sus niveles de detalle en este hilo; para modelos grandes es
+     * mejor precalcularlos en el hilo de carga con ObjMesh.Asset
+     * @param nx    Número de trozos en el eje X
+     * @param nz    Número de trozos en el eje Z
+     */
+    public void splitIntoChunks(int nx, int nz) {
+
+        if(cloned || indexData == null || vertexData == null) return;
+
+        int[] groupEnds = new int[materialGroups.size()];
+        for(int g = 0; g < groupEnds.length; g++) {
+            groupEnds[g] = materialGroups.get(g).first;
+        }
+        setChunks(new MeshChunks(vertexData, normalData, texcoordData, indexData, groupEnds, nx, nz, MeshChunks.LOD_ERRORS));
+    }
+
+    /**
+     * @brief Aplica una división en trozos ya calculada, con sus niveles de detalle
+     * @details Reemplaza el IBO por el de los índices reordenados por trozo. Los grupos de
+     * material no cambian, así que el Mesh se sigue pudiendo dibujar entero o agrupado
+     * @param chunks    Los trozos, calculados con los datos de este Mesh
+     */
+    public void setChunks(MeshChunks chunks) {
+
+        if(cloned || chunks == this.chunks) return;
+
+        this.chunks = chunks;
+        nchunks = chunks.nchunks;
+        nlevels = chunks.nlevels;
+        chunkStart = chunks.start;
+        chunkEnd = chunks.end;
+        chunkBounds = chunks.bounds;
+        chunkError = chunks.errors;
+        chunkVisible = new boolean[nchunks];
+        chunkLod = new int[nchunks];
+        for(int c = 0; c < nchunks; c++) {
+            chunkVisible[c] = true;
+        }
+
+        // Sube los índices reordenados y los niveles simplificados
+        indexData = chunks.indices;
+        ibo.delete();
+        ibo = new IBO(chunks.indices);
+        deleteLods();
+        if(nlevels > 1) {
+            lodStart = chunks.lodStart;
+            lodEnd = chunks.lodEnd;
+            lodIbo = new IBO(chunks.lodIndices);
+        }
+        Log.d("CHAPAS", "Mesh split into " + nchunks + " chunks, triangles per level: " + getLevelTriangles());
+    }
+
+    /**
+     * @brief Comparte los trozos y niveles de detalle de otro Mesh (al clonarlo)
+     * @details Los índices son del original; el clon sólo tiene su propia visibilidad y niveles
+     * @param source    Mesh original
+     */
+    private void shareChunks(Mesh source) {
+        chunks = source.chunks;
+        nchunks = source.nchunks;
+        nlevels = source.nlevels;
+        chunkStart = source.chunkStart;
+        chunkEnd = source.chunkEnd;
+        chunkBounds = source.chunkBounds;
+        chunkError = source.chunkError;
+        lodIbo = source.lodIbo;
+        lodStart = source.lodStart;
+        lodEnd = source.lodEnd;
+        chunkVisible = new boolean[nchunks];
+        chunkLod = new int[nchunks];
+        for(int c = 0; c < nchunks; c++) {
+            chunkVisible[c] = true;
+        }
+    }
+
+    /**
+     * @brief Obtén el número de triángulos de cada nivel, para el registro
+     * @return  Los números separados por flechas
+     */
+    private String getLevelTriangles() {
+        StringBuilder sb = new StringBuilder();
+        for(int l = 0; l < nlevels; l++) {
+            sb.append(l == 0 ? "" : " -> ").append(chunks.getTriangleCount(l));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @brief Borra los niveles simplificados, si los hay
+     */
+    private void deleteLods() {
+        if(lodIbo != null) {
+            lodIbo.delete();
+            lodIbo = null;
+        }
+    }
+
+    /**
+     * @brief Obtén el primer índice de un grupo de material
+     * @param group Índice del grupo de material
+     * @return  El primer índice del grupo
+     */
+    public int getGroupStart(int group) {
+        return (group == 0) ? 0 : materialGroups.get(group - 1).first;
+    }
+
+    /**
+     * @brief Obtén la matriz de modelado, recalculándola sólo si el Mesh se ha movido
+     * @return  La matriz de modelado
+     */
+    public float[] getModelMatrix() {
+        if(transformDirty) {
+            transformDirty = false;
+            MatrixSystem.composeTransformation(modelMatrix, pos, rot, scale);
+        }
+        return modelMatrix;
+    }
+
+    /**
+     * @brief Comprueba si dos Mesh comparten la misma geometría (uno es clon del otro)
+     * @param other El otro Mesh
+     * @return  Si comparten VBOs e IBO
+     */
+    public boolean sharesGeometry(Mesh other) {
+        return vbos == other.vbos && ibo == other.ibo;
     }
 
     /**
@@ -101,6 +414,7 @@ public class Mesh {
             vbo.delete();
         }
         ibo.delete();
+        deleteLods();
     }
 
     /**
@@ -113,6 +427,7 @@ public class Mesh {
         pos[0] = x;
         pos[1] = y;
         pos[2] = z;
+        transformDirty = true;
     }
 
     /**
@@ -151,6 +466,7 @@ public class Mesh {
         rot[1] = x;
         rot[2] = y;
         rot[3] = z;
+        transformDirty = true;
     }
 
     /**
@@ -163,6 +479,7 @@ public class Mesh {
         scale[0] = x;
         scale[1] = y;
         scale[2] = z;
+        transformDirty = true;
     }
 
     /**
@@ -175,6 +492,15 @@ public class Mesh {
         pos[0] += x;
         pos[1] += y;
         pos[2] += z;
+        transformDirty = true;
+    }
+
+    /**
+     * @brief Marca la transformación del Mesh como modificada
+     * @details Necesario si se modifican directamente los arrays de posición, rotación o escala
+     */
+    public void invalidateTransform() {
+        transformDirty = true;
     }
 
     /**
@@ -195,10 +521,12 @@ public class Mesh {
 
     /**
      * @brief Clona un Mesh
+     * @details El clon comparte los buffers, materiales y trozos del original, pero tiene su propia
+     * transformación, cuerpo rígido y nivel de detalle
      * @return  El clon del Mesh
      */
     public Mesh clone() {
-        return new Mesh(vbos, ibo, materials, materialGroups);
+        return new Mesh(vbos, ibo, materials, materialGroups, this);
     }
 
     /**
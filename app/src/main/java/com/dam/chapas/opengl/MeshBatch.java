@@ -0,0 +1,274 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshBatch.java
+ * @brief Dibujado agrupado de varios clones de un mismo Mesh
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+import androidx.core.util.Pair;
+
+import com.dam.chapas.app.MainApplication;
+
+import java.util.ArrayList;
+
+/**
+ * @class MeshBatch
+ * @details Replica la geometría del Mesh una vez por instancia, marcando cada vértice con su
+ * número de instancia. Las matrices de modelado y el color difuso de cada instancia se suben en
+ * un array de uniforms, de forma que cada grupo de material se dibuja con una única llamada.
+ * Las instancias sólo pueden diferir en su transformación y en el color difuso de sus materiales.
+ */
+public class MeshBatch {
+
+    public static final int MAX_INSTANCES = 16;     /**< Debe coincidir con instanceM[16] e instanceDiffuse[16] de scene.vs.glsl */
+
+    private static final int UNIFORM_VECTORS_NEEDED = MAX_INSTANCES * 5 + 8;
+
+    private Mesh[] instances;
+    private Mesh[] visible;
+    private int visibleCount;
+    private VBO[] vbos;
+    private IBO ibo;
+    private int capacity;
+    private int[] groupStart;
+    private int[] groupEnd;
+    private float[] instanceMatrices;
+    private float[] instanceDiffuse;
+
+    /**
+     * @brief Comprueba si el hardware soporta el dibujado agrupado
+     * @return  Si hay suficientes uniforms en el vertex shader
+     */
+    public static boolean isSupported() {
+        int[] maxVectors = new int[1];
+        GL.get().glGetIntegerv(GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS, maxVectors, 0);
+        return maxVectors[0] >= UNIFORM_VECTORS_NEEDED;
+    }
+
+    /**
+     * @brief Constructor de un MeshBatch
+     * @param instances Clones de un mismo Mesh
+     */
+    public MeshBatch(Mesh[] instances) {
+
+        this.instances = instances;
+        this.visible = instances.clone();
+        this.visibleCount = instances.length;
+        this.capacity = computeCapacity(instances);
+        if(capacity < 2) {
+            return;     // No merece la pena agrupar, se dibujarán por separado
+        }
+
+        Mesh source = instances[0];
+        ArrayList<Pair<Integer, Material>> groups = source.getMaterialGroups();
+        int nvertices = source.vertexData.length / VBO.VERTICES;
+
+        // Replica los vértices una vez por instancia
+        float[] vertices = new float[source.vertexData.length * capacity];
+        float[] texcoords = new float[source.texcoordData.length * capacity];
+        float[] normals = new float[source.normalData.length * capacity];
+        float[] instanceIDs = new float[nvertices * capacity];
+        for(int i = 0; i < capacity; i++) {
+            System.arraycopy(source.vertexData, 0, vertices, i * source.vertexData.length, source.vertexData.length);
+            System.arraycopy(source.texcoordData, 0, texcoords, i * source.texcoordData.length, source.texcoordData.length);
+            System.arraycopy(source.normalData, 0, normals, i * source.normalData.length, source.normalData.length);
+            for(int j = 0; j < nvertices; j++) {
+                instanceIDs[i * nvertices + j] = i;
+            }
+        }
+
+        // Replica los índices, dejando juntas todas las instancias de un mismo grupo de material
+        short[] indices = new short[source.indexData.length * capacity];
+        groupStart = new int[groups.size()];
+        groupEnd = new int[groups.size()];
+        int start = 0;
+        int k = 0;
+        for(int g = 0; g < groups.size(); g++) {
+            int end = groups.get(g).first;
+            groupStart[g] = k;
+            for(int i = 0; i < capacity; i++) {
+                for(int j = start; j < end; j++) {
+                    indices[k++] = (short) (source.indexData[j] + i * nvertices);
+                }
+            }
+            groupEnd[g] = k;
+            start = end;
+        }
+
+        // Crea los buffers
+        vbos = new VBO[4];
+        vbos[0] = new VBO(vertices, VBO.VERTICES);
+        vbos[1] = new VBO(texcoords, VBO.TEXCOORDS);
+        vbos[2] = new VBO(normals, VBO.NORMALS);
+        vbos[3] = new VBO(instanceIDs, 1);
+        ibo = new IBO(indices);
+
+        instanceMatrices = new float[16 * MAX_INSTANCES];
+        instanceDiffuse = new float[3 * MAX_INSTANCES];
+    }
+
+    /**
+     * @brief Calcula cuántas instancias caben en una llamada de dibujado
+     * @param instances Instancias a agrupar
+     * @return  Número de instancias por llamada (menos de 2 si no se pueden agrupar)
+     */
+    private static int computeCapacity(Mesh[] instances) {
+
+        Mesh source = instances[0];
+        if(instances.length < 2 || source.vertexData == null || source.indexData == null) {
+            return 0;
+        }
+
+        // Todas las instancias deben compartir geometría, grupos y texturas
+        ArrayList<Pair<Integer, Material>> groups = source.getMaterialGroups();
+        for(Mesh mesh : instances) {
+            ArrayList<Pair<Integer, Material>> meshGroups = mesh.getMaterialGroups();
+            if(!mesh.sharesGeometry(source) || meshGroups.size() != groups.size()) {
+                return 0;
+            }
+            for(int g = 0; g < groups.size(); g++) {
+                if(!meshGroups.get(g).first.equals(groups.get(g).first) ||
+                        meshGroups.get(g).second.getTexture() != groups.get(g).second.getTexture()) {
+                    return 0;
+                }
+            }
+        }
+
+        // Los índices replicados deben caber en 16 bits
+        int nvertices = source.vertexData.length / VBO.VERTICES;
+        int maxByIndices = IBO.MAX_SHORT_VERTICES / Math.max(nvertices, 1);
+        return Math.min(Math.min(MAX_INSTANCES, instances.length), maxByIndices);
+    }
+
+    /**
+     * @brief Descarta las instancias que quedan fuera del volumen de visión
+     * @param frustum   Volumen de visión de la cámara
+     * @return  El número de instancias visibles
+     */
+    public int cull(Frustum frustum) {
+        visibleCount = 0;
+        for(Mesh mesh : instances) {
+            if(mesh.isVisible(frustum)) {
+                visible[visibleCount++] = mesh;
+            }
+        }
+        return visibleCount;
+    }
+
+    /**
+     * @brief Dibuja todas las instancias visibles
+     * @param batchShader   Shader de dibujado agrupado (null si no está soportado)
+     * @param shader        Shader normal, usado si no se puede agrupar
+     * @param cam           Cámara a usar
+     */
+    public void draw(ShaderProgram batchShader, ShaderProgram shader, Camera cam) {
+        for(int g = 0; g < getGroupCount(); g++) {
+            drawGroup(batchShader, shader, cam, g);
+        }
+    }
+
+    /**
+     * @brief Dibuja un grupo de material de todas las instancias visibles
+     * @param batchShader   Shader de dibujado agrupado (null si no está soportado)
+     * @param shader        Shader normal, usado si no se puede agrupar
+     * @param cam           Cámara a usar
+     * @param group         Índice del grupo de material
+     * @return  El número de llamadas de dibujado realizadas
+     */
+    public int drawGroup(ShaderProgram batchShader, ShaderProgram shader, Camera cam, int group) {
+
+        // Si no se puede agrupar, dibuja cada instancia por separado
+        int drawCalls = 0;
+        if(!isBatched(batchShader)) {
+            for(int i = 0; i < visibleCount; i++) {
+                drawCalls += visible[i].drawGroup(shader, cam, group);
+            }
+            return drawCalls;
+        }
+        if(visibleCount == 0) return 0;
+
+        batchShader.enable();
+
+        MatrixSystem mtx = MainApplication.getInstance().getMatrixSystem();
+        mtx.updateViewProjection(cam);
+        batchShader.setUniformMatrix4fv(ShaderProgram.VP, mtx.getViewProjectionMatrix());
+
+        int groupLength = (groupEnd[group] - groupStart[group]) / capacity;
+        Material mat = instances[0].getMaterialGroups().get(group).second;
+        mat.enable(batchShader);
+
+        for(int first = 0; first < visibleCount; first += capacity) {
+
+            int count = Math.min(capacity, visibleCount - first);
+
+            // Sube las matrices y colores de este bloque de instancias
+            for(int i = 0; i < count; i++) {
+                Mesh mesh = visible[first + i];
+                float[] diffuse = mesh.getMaterialGroups().get(group).second.getDiffuse();
+                System.arraycopy(mesh.getModelMatrix(), 0, instanceMatrices, i * 16, 16);
+                System.arraycopy(diffuse, 0, instanceDiffuse, i * 3, 3);
+            }
+            batchShader.setUniformMatrix4fv(ShaderProgram.INSTANCE_M, count, instanceMatrices);
+            batchShader.setUniform3fv(ShaderProgram.INSTANCE_DIFFUSE, count, instanceDiffuse);
+
+            // Dibuja el grupo de material de todas las instancias de una vez
+            ibo.draw(vbos, groupStart[group], groupStart[group] + groupLength * count);
+            drawCalls ++;
+        }
+        return drawCalls;
+    }
+
+    /**
+     * @brief Obtén si las instancias se dibujan agrupadas
+     * @param batchShader   Shader de dibujado agrupado (null si no está soportado)
+     * @return  Si se dibujan con una llamada por grupo de material
+     */
+    public boolean isBatched(ShaderProgram batchShader) {
+        return batchShader != null && ibo != null;
+    }
+
+    /**
+     * @brief Obtén el número de grupos de material
+     * @return  El número de grupos de material de las instancias
+     */
+    public int getGroupCount() {
+        return instances[0].getMaterialGroups().size();
+    }
+
+    /**
+     * @brief Obtén las instancias visibles tras el último descarte
+     * @return  Array con las instancias visibles (sólo son válidas las primeras getVisibleCount())
+     */
+    public Mesh[] getVisible() {
+        return visible;
+    }
+
+    /**
+     * @brief Obtén el número de instancias visibles tras el último descarte
+     * @return  El número de instancias visibles
+     */
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+    /**
+     * @brief Obtén las instancias del grupo
+     * @return  Las instancias
+     */
+    public Mesh[] getInstances() {
+        return instances;
+    }
+
+    /**
+     * @brief Borra los buffers del MeshBatch (las instancias no se borran)
+     */
+    public void delete() {
+        if(ibo == null) return;
+        for(VBO vbo : vbos) {
+            vbo.delete();
+        }
+        ibo.delete();
+    }
+}
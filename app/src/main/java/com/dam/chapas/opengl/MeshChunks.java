@@ -0,0 +1,222 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshChunks.java
+ * @brief División de un modelo en trozos con varios niveles de detalle
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * @class MeshChunks
+ * @details Reparte los triángulos de un modelo en una rejilla de trozos en el plano XZ y genera,
+ * para cada trozo, una cadena de niveles simplificados con MeshSimplifier. Los índices quedan
+ * ordenados por grupo de material y, dentro de cada grupo, por trozo, así que los trozos
+ * consecutivos de un mismo nivel se dibujan de una vez. Sólo usa memoria de CPU y no depende de
+ * Android: meshes.gradle la calcula en tiempo de compilación para los modelos que se dividen (ver
+ * MeshGeometry.getChunks) y Mesh.setChunks la sube a OpenGL.
+ */
+public class MeshChunks {
+
+    /** Error máximo de cada nivel simplificado, en unidades del modelo */
+    public static final float[] LOD_ERRORS = new float[] {0.002f, 0.02f, 0.1f, 0.3f};
+
+    final int nchunks;
+    final int nlevels;          /**< Niveles, contando el original */
+    final int[] indices;        /**< Índices del nivel 0, ordenados por grupo y trozo */
+    final int[] start;          /**< Inicio de cada grupo y trozo en indices */
+    final int[] end;            /**< Fin de cada grupo y trozo en indices */
+    final float[] bounds;       /**< Esfera envolvente de cada trozo (x, y, z, radio) */
+    final int[] lodIndices;     /**< Índices de los niveles simplificados, uno detrás de otro */
+    final int[] lodStart;       /**< Inicio de cada nivel (a partir del 1), grupo y trozo en lodIndices */
+    final int[] lodEnd;         /**< Fin de cada nivel (a partir del 1), grupo y trozo en lodIndices */
+    final float[] errors;       /**< Error geométrico de cada nivel y trozo */
+
+    /**
+     * @brief Divide un modelo y genera sus niveles de detalle (se puede llamar desde cualquier hilo)
+     * @param vertices  Vértices del modelo
+     * @param normals   Normales del modelo
+     * @param texcoords Coordenadas de textura del modelo
+     * @param indexData Índices del modelo
+     * @param groupEnds Último índice (no incluido) de cada grupo de material
+     * @param nx        Número de trozos en el eje X
+     * @param nz        Número de trozos en el eje Z
+     * @param lodErrors Error máximo de cada nivel simplificado, de menor a mayor
+     */
+    public MeshChunks(float[] vertices, float[] normals, float[] texcoords, int[] indexData,
+                      int[] groupEnds, int nx, int nz, float[] lodErrors) {
+
+        float[] sphere = new float[4];
+        MeshGeometry.computeSphere(vertices, null, 0, 0, sphere, 0);
+        float minX = sphere[0] - sphere[3];
+        float minZ = sphere[2] - sphere[3];
+        float sizeX = 2.0f * sphere[3] / nx;
+        float sizeZ = 2.0f * sphere[3] / nz;
+
+        int ngroups = groupEnds.length;
+        nchunks = nx * nz;
+        nlevels = lodErrors.length + 1;
+        start = new int[ngroups * nchunks];
+        end = new int[ngroups * nchunks];
+        bounds = new float[nchunks * 4];
+
+        // Asigna cada triángulo a un trozo según su centro
+        int ntriangles = indexData.length / 3;
+        int[] triangleChunk = new int[ntriangles];
+        for(int t = 0; t < ntriangles; t++) {
+            float x = 0.0f;
+            float z = 0.0f;
+            for(int j = 0; j < 3; j++) {
+                int v = indexData[t * 3 + j];
+                x += vertices[v * 3] / 3.0f;
+                z += vertices[v * 3 + 2] / 3.0f;
+            }
+            int cx = Math.max(0, Math.min(nx - 1, (int) ((x - minX) / sizeX)));
+            int cz = Math.max(0, Math.min(nz - 1, (int) ((z - minZ) / sizeZ)));
+            triangleChunk[t] = cz * nx + cx;
+        }
+
+        // Reordena los triángulos de cada grupo por trozo
+        indices = new int[indexData.length];
+        int k = 0;
+        for(int g = 0; g < ngroups; g++) {
+            int groupStart = (g == 0) ? 0 : groupEnds[g - 1] / 3;
+            int groupEnd = groupEnds[g] / 3;
+            for(int c = 0; c < nchunks; c++) {
+                start[g * nchunks + c] = k;
+                for(int t = groupStart; t < groupEnd; t++) {
+                    if(triangleChunk[t] == c) {
+                        indices[k++] = indexData[t * 3];
+                        indices[k++] = indexData[t * 3 + 1];
+                        indices[k++] = indexData[t * 3 + 2];
+                    }
+                }
+                end[g * nchunks + c] = k;
+            }
+        }
+
+        // Calcula la esfera envolvente de cada trozo (con los triángulos de todos los grupos)
+        int[] chunkIndices = new int[indices.length];
+        for(int c = 0; c < nchunks; c++) {
+            int n = 0;
+            for(int g = 0; g < ngroups; g++) {
+                int length = end[g * nchunks + c] - start[g * nchunks + c];
+                System.arraycopy(indices, start[g * nchunks + c], chunkIndices, n, length);
+                n += length;
+            }
+            MeshGeometry.computeSphere(vertices, chunkIndices, 0, n, bounds, c * 4);
+        }
+
+        // Simplifica cada trozo por separado (sus bordes no se mueven, así que siguen encajando)
+        MeshSimplifier simplifier = new MeshSimplifier(vertices, normals, texcoords, indices);
+        int[][][][] levels = new int[nchunks][lodErrors.length][ngroups][];
+        errors = new float[nlevels * nchunks];
+        int[] chunkStart = new int[ngroups];
+        int[] chunkEnd = new int[ngroups];
+        int lodLength = 0;
+        for(int c = 0; c < nchunks; c++) {
+            for(int g = 0; g < ngroups; g++) {
+                chunkStart[g] = start[g * nchunks + c];
+                chunkEnd[g] = end[g * nchunks + c];
+            }
+            float[] chunkErrors = simplifier.simplify(chunkStart, chunkEnd, lodErrors, levels[c]);
+            for(int l = 0; l < lodErrors.length; l++) {
+                errors[(l + 1) * nchunks + c] = chunkErrors[l];
+                for(int g = 0; g < ngroups; g++) {
+                    lodLength += levels[c][l][g].length;
+                }
+            }
+        }
+
+        // Junta los niveles con el mismo orden que el nivel 0
+        int nranges = ngroups * nchunks;
+        lodIndices = new int[lodLength];
+        lodStart = new int[lodErrors.length * nranges];
+        lodEnd = new int[lodErrors.length * nranges];
+        k = 0;
+        for(int l = 0; l < lodErrors.length; l++) {
+            for(int g = 0; g < ngroups; g++) {
+                for(int c = 0; c < nchunks; c++) {
+                    int[] range = levels[c][l][g];
+                    lodStart[l * nranges + g * nchunks + c] = k;
+                    System.arraycopy(range, 0, lodIndices, k, range.length);
+                    k += range.length;
+                    lodEnd[l * nranges + g * nchunks + c] = k;
+                }
+            }
+        }
+    }
+
+    /**
+     * @brief Constructor a partir de una división ya calculada (ver read)
+     */
+    private MeshChunks(int nchunks, int nlevels, int[] indices, int[] start, int[] end, float[] bounds,
+                       int[] lodIndices, int[] lodStart, int[] lodEnd, float[] errors) {
+        this.nchunks = nchunks;
+        this.nlevels = nlevels;
+        this.indices = indices;
+        this.start = start;
+        this.end = end;
+        this.bounds = bounds;
+        this.lodIndices = lodIndices;
+        this.lodStart = lodStart;
+        this.lodEnd = lodEnd;
+        this.errors = errors;
+    }
+
+    /**
+     * @brief Lee una división guardada con write
+     * @param in    Archivo de entrada
+     * @return  Los trozos y sus niveles de detalle
+     * @throws IOException  Si el archivo está incompleto
+     */
+    static MeshChunks read(DataInputStream in) throws IOException {
+        int nchunks = in.readInt();
+        int nlevels = in.readInt();
+        int[] indices = MeshGeometry.readInts(in, in.readInt());
+        int[] start = MeshGeometry.readInts(in, in.readInt());
+        int[] end = MeshGeometry.readInts(in, start.length);
+        float[] bounds = MeshGeometry.readFloats(in, nchunks * 4);
+        int[] lodIndices = MeshGeometry.readInts(in, in.readInt());
+        int[] lodStart = MeshGeometry.readInts(in, in.readInt());
+        int[] lodEnd = MeshGeometry.readInts(in, lodStart.length);
+        float[] errors = MeshGeometry.readFloats(in, nlevels * nchunks);
+        return new MeshChunks(nchunks, nlevels, indices, start, end, bounds, lodIndices, lodStart, lodEnd, errors);
+    }
+
+    /**
+     * @brief Guarda la división (ver MeshGeometry)
+     * @param out   Archivo de salida
+     * @throws IOException  Si no se puede escribir
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(nchunks);
+        out.writeInt(nlevels);
+        out.writeInt(indices.length);
+        MeshGeometry.writeInts(out, indices);
+        out.writeInt(start.length);
+        MeshGeometry.writeInts(out, start);
+        MeshGeometry.writeInts(out, end);
+        MeshGeometry.writeFloats(out, bounds);
+        out.writeInt(lodIndices.length);
+        MeshGeometry.writeInts(out, lodIndices);
+        out.writeInt(lodStart.length);
+        MeshGeometry.writeInts(out, lodStart);
+        MeshGeometry.writeInts(out, lodEnd);
+        MeshGeometry.writeFloats(out, errors);
+    }
+
+    /**
+     * @brief Obtén el número de triángulos de un nivel
+     * @param level El nivel (0 es el original)
+     * @return  El número de triángulos
+     */
+    public int getTriangleCount(int level) {
+        if(level == 0) return indices.length / 3;
+        int nranges = start.length;
+        return (lodEnd[level * nranges - 1] - lodStart[(level - 1) * nranges]) / 3;
+    }
+}
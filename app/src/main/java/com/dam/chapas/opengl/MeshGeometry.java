@@ -0,0 +1,452 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshGeometry.java
+ * @brief Geometría de un modelo OBJ en CPU y su versión optimizada (.cmesh)
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @class MeshGeometry
+ * @details Lee los vértices, triángulos y grupos de material de un OBJ y los prepara para la GPU
+ * (ver MeshOptimizer). No depende de Android ni de OpenGL: meshes.gradle usa esta misma clase para
+ * hacerlo en tiempo de compilación y guardar el resultado en un archivo .cmesh, y ObjMesh sólo
+ * repite el proceso al cargar si ese archivo no existe. El formato es (enteros y floats de 32 bits
+ * big-endian, cadenas en UTF modificado):
+ *
+ *   "CMSH" | versión | mtllib | grupos | por cada grupo: material y último índice
+ *   vértices | posiciones (x, y, z) | coordenadas de textura (s, t) | normales (x, y, z)
+ *   índices | índices
+ *   divisiones | por cada división: nx | nz | trozos y niveles de detalle (ver MeshChunks.write)
+ */
+public class MeshGeometry {
+
+    private static final int MAGIC = ('C' << 24) | ('M' << 16) | ('S' << 8) | 'H';
+    private static final int VERSION = 2;
+
+    String mtllib;              /**< Librería de materiales, relativa al OBJ (null si no hay) */
+    float[] vertices;
+    float[] texcoords;
+    float[] normals;
+    int[] indices;
+    int[] groupEnds;            /**< Último índice (no incluido) de cada grupo de material */
+    String[] groupMaterials;    /**< Material de cada grupo ("" si no tiene) */
+    private final HashMap<String, MeshChunks> chunks = new HashMap<>();     /**< Divisiones ya calculadas */
+
+    /**
+     * @brief Lee un modelo en formato OBJ (se puede llamar desde cualquier hilo)
+     * @details Los vértices no se comparten entre materiales, ya que sus coordenadas de textura
+     * pueden ir a regiones distintas del atlas (ver remapTexcoords); los que acaben siendo iguales
+     * se sueldan después con optimize
+     * @param reader    Archivo OBJ abierto
+     * @param path      Ruta del archivo, para los mensajes de error
+     * @return  La geometría, sin optimizar
+     * @throws IOException  Si no se puede leer el archivo
+     */
+    public static MeshGeometry parseObj(BufferedReader reader, String path) throws IOException {
+
+        MeshGeometry mesh = new MeshGeometry();
+
+        // Arrays temporales
+        ArrayList<Float> vertices = new ArrayList<>();
+        ArrayList<Float> texcoords = new ArrayList<>();
+        ArrayList<Float> normals = new ArrayList<>();
+        ArrayList<Integer> indices = new ArrayList<>();
+        HashMap<String, Integer> indicesMap = new HashMap<>();
+        ArrayList<Float> finalVertices = new ArrayList<>();
+        ArrayList<Float> finalTexcoords = new ArrayList<>();
+        ArrayList<Float> finalNormals = new ArrayList<>();
+        ArrayList<Integer> groupEnds = new ArrayList<>();
+        ArrayList<String> groupMaterials = new ArrayList<>();
+
+        // Variables de lectura
+        String line;
+        int nobjects = 0;
+        int nelements = 0;
+        boolean grouped = false;
+        String lastMaterialName = "";
+
+        // Lee el archivo línea por línea
+        while ((line = reader.readLine()) != null) {
+
+            String[] lineTokens = line.split(" ");
+            if(lineTokens.length == 0) continue;
+
+            if(lineTokens[0].equals("#")) {
+                continue;
+            } else if(lineTokens[0].equals("mtllib")) {
+                mesh.mtllib = lineTokens[1];
+            } else if(lineTokens[0].equals("o")) {
+
+                // Nuevo objeto
+                if(nobjects > 0) {
+                    throw new RuntimeException("More than one object in ObjMesh: " + path);
+                } else {
+                    nobjects ++;
+                }
+            } else if(lineTokens[0].equals("v")) {
+
+                // Nuevo vértice
+                vertices.add(Float.parseFloat(lineTokens[1]));
+                vertices.add(Float.parseFloat(lineTokens[2]));
+                vertices.add(Float.parseFloat(lineTokens[3]));
+            } else if(lineTokens[0].equals("vt")) {
+
+                // Nueva coordenada de textura
+                texcoords.add(Float.parseFloat(lineTokens[1]));
+                texcoords.add(1.0f - Float.parseFloat(lineTokens[2]));
+            } else if(lineTokens[0].equals("vn")) {
+
+                // Nueva normal
+                normals.add(Float.parseFloat(lineTokens[1]));
+                normals.add(Float.parseFloat(lineTokens[2]));
+                normals.add(Float.parseFloat(lineTokens[3]));
+            } else if(lineTokens[0].equals("f")) {
+
+                // Nuevo triángulo
+                for(int i = 0; i < 3; i++) {
+                    String token = lineTokens[i + 1];
+                    String key = lastMaterialName + " " + token;
+                    if(indicesMap.containsKey(key)) {
+                        indices.add(indicesMap.get(key));
+                    } else {
+                        indices.add(indicesMap.size());
+                        indicesMap.put(key, indicesMap.size());
+                        String[] subtoken = token.split("/");
+                        int vertex = Integer.parseInt(subtoken[0]) - 1;
+                        int texcoord = Integer.parseInt(subtoken[1]) - 1;
+                        int normal = Integer.parseInt(subtoken[2]) - 1;
+                        for(int j = 0; j < 3; j++) {
+                            finalVertices.add(vertices.get(vertex * 3 + j));
+                        }
+                        finalTexcoords.add(texcoords.get(texcoord * 2));
+                        finalTexcoords.add(texcoords.get(texcoord * 2 + 1));
+                        for(int j = 0; j < 3; j++) {
+                            finalNormals.add(normals.get(normal * 3 + j));
+                        }
+                    }
+                }
+                nelements += 3;
+            } else if(lineTokens[0].equals("usemtl")) {
+
+                // Nuevo grupo de material (los triángulos anteriores al primero van con él)
+                if(grouped) {
+                    groupEnds.add(nelements);
+                    groupMaterials.add(lastMaterialName);
+                }
+                grouped = true;
+                lastMaterialName = lineTokens[1];
+            }
+        }
+
+        // Añade el último grupo de material
+        groupEnds.add(nelements);
+        groupMaterials.add(lastMaterialName);
+
+        // Convierte las listas en arrays
+        mesh.vertices = toFloatArray(finalVertices);
+        mesh.texcoords = toFloatArray(finalTexcoords);
+        mesh.normals = toFloatArray(finalNormals);
+        mesh.indices = toIntArray(indices);
+        mesh.groupEnds = toIntArray(groupEnds);
+        mesh.groupMaterials = groupMaterials.toArray(new String[groupMaterials.size()]);
+        return mesh;
+    }
+
+    /**
+     * @brief Lleva las coordenadas de textura de cada grupo a la región del atlas de su material
+     * @param regions   Rectángulo (s0, t0, s1, t1) de cada material que usa el atlas
+     */
+    public void remapTexcoords(Map<String, float[]> regions) {
+        boolean[] remapped = new boolean[vertices.length / 3];
+        for(int g = 0; g < groupEnds.length; g++) {
+            float[] region = regions.get(groupMaterials[g]);
+            if(region == null) continue;
+            int start = (g == 0) ? 0 : groupEnds[g - 1];
+            for(int i = start; i < groupEnds[g]; i++) {
+                int v = indices[i];
+                if(remapped[v]) continue;
+                remapped[v] = true;
+
+                // Las texturas usaban GL_CLAMP_TO_EDGE, así que se recortan a [0, 1]
+                float s = Math.min(Math.max(texcoords[v * 2], 0.0f), 1.0f);
+                float t = Math.min(Math.max(texcoords[v * 2 + 1], 0.0f), 1.0f);
+                texcoords[v * 2] = region[0] + s * (region[2] - region[0]);
+                texcoords[v * 2 + 1] = region[1] + t * (region[3] - region[1]);
+            }
+        }
+    }
+
+    /**
+     * @brief Suelda los vértices iguales y reordena los triángulos y vértices (ver MeshOptimizer)
+     * @param maxSegmentVertices    Máximo de vértices por tramo (ver MeshOptimizer.reorderVertices)
+     */
+    public void optimize(int maxSegmentVertices) {
+        MeshOptimizer optimizer = new MeshOptimizer(vertices, texcoords, normals, indices);
+        optimizer.optimize(groupEnds, maxSegmentVertices);
+        vertices = optimizer.getVertices();
+        texcoords = optimizer.getTexcoords();
+        normals = optimizer.getNormals();
+        indices = optimizer.getIndices();
+        chunks.clear();
+    }
+
+    /**
+     * @brief Obtén la división en trozos del modelo, calculándola la primera vez
+     * @details Se guarda con la geometría, así que las siguientes partidas (o, si se ha calculado
+     * en tiempo de compilación, todas) no la vuelven a calcular
+     * @param nx    Número de trozos en el eje X
+     * @param nz    Número de trozos en el eje Z
+     * @return  Los trozos y sus niveles de detalle
+     */
+    public synchronized MeshChunks getChunks(int nx, int nz) {
+        String key = nx + "x" + nz;
+        MeshChunks result = chunks.get(key);
+        if(result == null) {
+            result = new MeshChunks(vertices, normals, texcoords, indices, groupEnds, nx, nz, MeshChunks.LOD_ERRORS);
+            chunks.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @brief Lee una geometría ya optimizada (generada por meshes.gradle)
+     * @param is    Archivo .cmesh abierto (se cierra al terminar)
+     * @return  La geometría
+     * @throws IOException  Si el archivo no es válido
+     */
+    public static MeshGeometry read(InputStream is) throws IOException {
+
+        MeshGeometry mesh = new MeshGeometry();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid mesh file");
+            }
+            String mtllib = in.readUTF();
+            mesh.mtllib = mtllib.isEmpty() ? null : mtllib;
+
+            int ngroups = in.readInt();
+            mesh.groupEnds = new int[ngroups];
+            mesh.groupMaterials = new String[ngroups];
+            for(int g = 0; g < ngroups; g++) {
+                mesh.groupMaterials[g] = in.readUTF();
+                mesh.groupEnds[g] = in.readInt();
+            }
+
+            int nvertices = in.readInt();
+            mesh.vertices = readFloats(in, nvertices * 3);
+            mesh.texcoords = readFloats(in, nvertices * 2);
+            mesh.normals = readFloats(in, nvertices * 3);
+            mesh.indices = readInts(in, in.readInt());
+
+            int nsplits = in.readInt();
+            for(int i = 0; i < nsplits; i++) {
+                int nx = in.readInt();
+                int nz = in.readInt();
+                mesh.chunks.put(nx + "x" + nz, MeshChunks.read(in));
+            }
+        } finally {
+            in.close();
+        }
+        return mesh;
+    }
+
+    /**
+     * @brief Guarda la geometría en formato .cmesh
+     * @param os    Archivo de salida (se cierra al terminar)
+     * @throws IOException  Si no se puede escribir
+     */
+    public void write(OutputStream os) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mtllib != null ? mtllib : "");
+
+            out.writeInt(groupEnds.length);
+            for(int g = 0; g < groupEnds.length; g++) {
+                out.writeUTF(groupMaterials[g]);
+                out.writeInt(groupEnds[g]);
+            }
+
+            out.writeInt(getVertexCount());
+            writeFloats(out, vertices);
+            writeFloats(out, texcoords);
+            writeFloats(out, normals);
+            out.writeInt(indices.length);
+            writeInts(out, indices);
+
+            out.writeInt(chunks.size());
+            for(Map.Entry<String, MeshChunks> split : chunks.entrySet()) {
+                String[] size = split.getKey().split("x");
+                out.writeInt(Integer.parseInt(size[0]));
+                out.writeInt(Integer.parseInt(size[1]));
+                split.getValue().write(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @brief Calcula una esfera envolvente (centro de la caja envolvente y distancia máxima)
+     * @param vertices  Vértices del modelo
+     * @param indices   Índices de los triángulos a usar (null para todos los vértices)
+     * @param start     Primer índice
+     * @param end       Último índice (no incluido)
+     * @param out       Array de salida (x, y, z, radio)
+     * @param offset    Posición en el array de salida
+     */
+    public static void computeSphere(float[] vertices, int[] indices, int start, int end, float[] out, int offset) {
+
+        int count = (indices == null) ? vertices.length / 3 : end - start;
+        float[] min = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for(int i = 0; i < count; i++) {
+            int v = (indices == null) ? i : indices[start + i];
+            for(int j = 0; j < 3; j++) {
+                min[j] = Math.min(min[j], vertices[v * 3 + j]);
+                max[j] = Math.max(max[j], vertices[v * 3 + j]);
+            }
+        }
+        if(count == 0) {
+            out[offset] = out[offset + 1] = out[offset + 2] = out[offset + 3] = 0.0f;
+            return;
+        }
+
+        float cx = (min[0] + max[0]) / 2.0f;
+        float cy = (min[1] + max[1]) / 2.0f;
+        float cz = (min[2] + max[2]) / 2.0f;
+        float radius2 = 0.0f;
+        for(int i = 0; i < count; i++) {
+            int v = (indices == null) ? i : indices[start + i];
+            float x = vertices[v * 3] - cx;
+            float y = vertices[v * 3 + 1] - cy;
+            float z = vertices[v * 3 + 2] - cz;
+            radius2 = Math.max(radius2, x * x + y * y + z * z);
+        }
+
+        out[offset] = cx;
+        out[offset + 1] = cy;
+        out[offset + 2] = cz;
+        out[offset + 3] = (float) Math.sqrt(radius2);
+    }
+
+    /**
+     * @brief Obtén la librería de materiales
+     * @return  La ruta de la librería, relativa al OBJ (null si no hay)
+     */
+    public String getMtllib() {
+        return mtllib;
+    }
+
+    /**
+     * @brief Obtén el número de vértices
+     * @return  El número de vértices
+     */
+    public int getVertexCount() {
+        return vertices.length / 3;
+    }
+
+    /**
+     * @brief Obtén el número de triángulos
+     * @return  El número de triángulos
+     */
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+
+    /**
+     * @brief Convierte una lista de floats en un array
+     * @param list  La lista
+     * @return  El array
+     */
+    private static float[] toFloatArray(ArrayList<Float> list) {
+        float[] array = new float[list.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @brief Convierte una lista de enteros en un array
+     * @param list  La lista
+     * @return  El array
+     */
+    private static int[] toIntArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @brief Lee un array de floats
+     * @param in    Archivo de entrada
+     * @param count Número de floats
+     * @return  El array
+     * @throws IOException  Si el archivo está incompleto
+     */
+    static float[] readFloats(DataInputStream in, int count) throws IOException {
+        float[] array = new float[count];
+        for(int i = 0; i < count; i++) {
+            array[i] = in.readFloat();
+        }
+        return array;
+    }
+
+    /**
+     * @brief Lee un array de enteros
+     * @param in    Archivo de entrada
+     * @param count Número de enteros
+     * @return  El array
+     * @throws IOException  Si el archivo está incompleto
+     */
+    static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] array = new int[count];
+        for(int i = 0; i < count; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+
+    /**
+     * @brief Escribe un array de floats
+     * @param out   Archivo de salida
+     * @param array El array
+     * @throws IOException  Si no se puede escribir
+     */
+    static void writeFloats(DataOutputStream out, float[] array) throws IOException {
+        for(float f : array) {
+            out.writeFloat(f);
+        }
+    }
+
+    /**
+     * @brief Escribe un array de enteros
+     * @param out   Archivo de salida
+     * @param array El array
+     * @throws IOException  Si no se puede escribir
+     */
+    static void writeInts(DataOutputStream out, int[] array) throws IOException {
+        for(int i : array) {
+            out.writeInt(i);
+        }
+    }
+}
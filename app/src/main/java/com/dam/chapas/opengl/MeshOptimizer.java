@@ -0,0 +1,491 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshOptimizer.java
+ * @brief Optimización del orden de vértices y triángulos de un modelo
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * @class MeshOptimizer
+ * @details Prepara la geometría para la GPU en varios pasos, todos en CPU:
+ *  - Suelda los vértices con exactamente los mismos atributos.
+ *  - Reordena los triángulos de cada grupo de material para aprovechar la caché de vértices ya
+ *    transformados (algoritmo de Tom Forsyth, "Linear-Speed Vertex Cache Optimisation").
+ *  - Parte ese orden en grupos de triángulos y los ordena de fuera hacia dentro, para que lo que
+ *    tapa se dibuje antes que lo tapado (Sander et al., "Fast Triangle Reordering for Vertex
+ *    Locality and Reduced Overdraw"), siempre que la caché no empeore mucho.
+ *  - Renumera los vértices en el orden en que se usan, para leerlos de memoria en orden.
+ * Los grupos de material conservan sus rangos de índices.
+ */
+public class MeshOptimizer {
+
+    public static final int ACMR_CACHE_SIZE = 16;      /**< Caché FIFO con la que se mide el ACMR */
+
+    private static final int CACHE_SIZE = 32;           /**< Caché LRU que se simula al ordenar */
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final float OVERDRAW_MAX_ACMR = 1.05f;   /**< Empeoramiento del ACMR admitido al ordenar grupos */
+
+    private float[] vertices;
+    private float[] texcoords;
+    private float[] normals;
+    private int[] indices;
+
+    /**
+     * @brief Constructor del optimizador
+     * @param vertices  Vértices (x, y, z)
+     * @param texcoords Coordenadas de textura (s, t)
+     * @param normals   Normales (x, y, z)
+     * @param indices   Índices de los triángulos
+     */
+    public MeshOptimizer(float[] vertices, float[] texcoords, float[] normals, int[] indices) {
+        this.vertices = vertices;
+        this.texcoords = texcoords;
+        this.normals = normals;
+        this.indices = indices;
+    }
+
+    /**
+     * @brief Aplica todos los pasos
+     * @param groupEnds           Último índice (no incluido) de cada grupo de material
+     * @param maxSegmentVertices    Máximo de vértices por tramo (ver reorderVertices)
+     */
+    public void optimize(int[] groupEnds, int maxSegmentVertices) {
+        weld();
+        for(int g = 0; g < groupEnds.length; g++) {
+            int start = (g == 0) ? 0 : groupEnds[g - 1];
+            reorderForCache(start, groupEnds[g]);
+            reorderForOverdraw(start, groupEnds[g]);
+        }
+        reorderVertices(maxSegmentVertices);
+    }
+
+    /**
+     * @brief Suelda los vértices con la misma posición, coordenada de textura y normal
+     */
+    public void weld() {
+
+        int nvertices = vertices.length / 3;
+        int[] remap = new int[nvertices];
+        HashMap<String, Integer> unique = new HashMap<>();
+        StringBuilder key = new StringBuilder();
+        for(int v = 0; v < nvertices; v++) {
+            key.setLength(0);
+            for(int j = 0; j < 3; j++) {
+                key.append(Float.floatToIntBits(vertices[v * 3 + j])).append(' ');
+                key.append(Float.floatToIntBits(normals[v * 3 + j])).append(' ');
+            }
+            key.append(Float.floatToIntBits(texcoords[v * 2])).append(' ');
+            key.append(Float.floatToIntBits(texcoords[v * 2 + 1]));
+            String k = key.toString();
+            Integer id = unique.get(k);
+            if(id == null) {
+                id = unique.size();
+                unique.put(k, id);
+            }
+            remap[v] = id;
+        }
+        if(unique.size() == nvertices) return;
+
+        for(int i = 0; i < indices.length; i++) {
+            indices[i] = remap[indices[i]];
+        }
+        float[] newVertices = new float[unique.size() * 3];
+        float[] newTexcoords = new float[unique.size() * 2];
+        float[] newNormals = new float[unique.size() * 3];
+        for(int v = 0; v < nvertices; v++) {
+            System.arraycopy(vertices, v * 3, newVertices, remap[v] * 3, 3);
+            System.arraycopy(texcoords, v * 2, newTexcoords, remap[v] * 2, 2);
+            System.arraycopy(normals, v * 3, newNormals, remap[v] * 3, 3);
+        }
+        vertices = newVertices;
+        texcoords = newTexcoords;
+        normals = newNormals;
+    }
+
+    /**
+     * @brief Reordena los triángulos de un rango para aprovechar la caché de vértices (Forsyth)
+     * @param start Primer índice del rango
+     * @param end   Último índice del rango (no incluido)
+     */
+    public void reorderForCache(int start, int end) {
+
+        int ntriangles = (end - start) / 3;
+        if(ntriangles < 2) return;
+        int nvertices = vertices.length / 3;
+
+        // Triángulos de cada vértice
+        int[] valence = new int[nvertices];
+        for(int i = start; i < end; i++) {
+            valence[indices[i]]++;
+        }
+        int[] firstTriangle = new int[nvertices + 1];
+        for(int v = 0; v < nvertices; v++) {
+            firstTriangle[v + 1] = firstTriangle[v] + valence[v];
+        }
+        int[] vertexTriangles = new int[end - start];
+        int[] fill = Arrays.copyOf(firstTriangle, nvertices);
+        for(int t = 0; t < ntriangles; t++) {
+            for(int j = 0; j < 3; j++) {
+                int v = indices[start + t * 3 + j];
+                vertexTriangles[fill[v]++] = t;
+            }
+        }
+
+        // Puntuación inicial de vértices y triángulos
+        int[] remaining = valence;
+        int[] cachePosition = new int[nvertices];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[nvertices];
+        for(int v = 0; v < nvertices; v++) {
+            vertexScore[v] = score(-1, remaining[v]);
+        }
+        float[] triangleScore = new float[ntriangles];
+        boolean[] added = new boolean[ntriangles];
+        for(int t = 0; t < ntriangles; t++) {
+            for(int j = 0; j < 3; j++) {
+                triangleScore[t] += vertexScore[indices[start + t * 3 + j]];
+            }
+        }
+
+        int[] cache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int[] output = new int[end - start];
+        int best = bestTriangle(triangleScore, added, 0);
+        int scan = 0;
+        for(int n = 0; n < ntriangles; n++) {
+
+            // Sin candidatos en la caché se busca el mejor triángulo que quede
+            if(best < 0) {
+                while(added[scan]) scan++;
+                best = bestTriangle(triangleScore, added, scan);
+            }
+
+            // Añade el triángulo y pone sus vértices al principio de la caché
+            added[best] = true;
+            int newCount = 0;
+            for(int j = 0; j < 3; j++) {
+                int v = indices[start + best * 3 + j];
+                output[n * 3 + j] = v;
+                remaining[v]--;
+                for(int i = firstTriangle[v]; i < firstTriangle[v + 1]; i++) {
+                    if(vertexTriangles[i] == best) {
+                        vertexTriangles[i] = vertexTriangles[firstTriangle[v] + remaining[v]];
+                        vertexTriangles[firstTriangle[v] + remaining[v]] = best;
+                        break;
+                    }
+                }
+                newCache[newCount++] = v;
+            }
+            for(int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if(v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            // Actualiza las puntuaciones de los vértices en la caché (y de los que salen de ella)
+            for(int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                cachePosition[v] = (i < CACHE_SIZE) ? i : -1;
+                float newScore = score(cachePosition[v], remaining[v]);
+                float delta = newScore - vertexScore[v];
+                vertexScore[v] = newScore;
+                for(int k = firstTriangle[v]; k < firstTriangle[v] + remaining[v]; k++) {
+                    triangleScore[vertexTriangles[k]] += delta;
+                }
+            }
+            cacheCount = Math.min(cacheCount, CACHE_SIZE);
+
+            // El siguiente es el mejor triángulo con algún vértice en la caché
+            best = -1;
+            for(int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                for(int k = firstTriangle[v]; k < firstTriangle[v] + remaining[v]; k++) {
+                    int t = vertexTriangles[k];
+                    if(best < 0 || triangleScore[t] > triangleScore[best]) {
+                        best = t;
+                    }
+                }
+            }
+        }
+
+        System.arraycopy(output, 0, indices, start, output.length);
+    }
+
+    /**
+     * @brief Puntuación de un vértice según su posición en la caché y los triángulos que le quedan
+     * @param position  Posición en la caché (-1 si no está)
+     * @param remaining Triángulos del vértice que quedan por añadir
+     * @return  La puntuación
+     */
+    private static float score(int position, int remaining) {
+        if(remaining == 0) return -1.0f;
+
+        float score = 0.0f;
+        if(position >= 0) {
+            if(position < 3) {
+                score = LAST_TRIANGLE_SCORE;    // Los del último triángulo, sin preferencia
+            } else {
+                float scaler = 1.0f / (CACHE_SIZE - 3);
+                score = (float) Math.pow(1.0f - (position - 3) * scaler, CACHE_DECAY_POWER);
+            }
+        }
+
+        // Los vértices con pocos triángulos se terminan antes
+        return score + VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER);
+    }
+
+    /**
+     * @brief Busca el triángulo sin añadir con mayor puntuación
+     * @param triangleScore Puntuación de cada triángulo
+     * @param added         Triángulos ya añadidos
+     * @param first         Primer triángulo a mirar
+     * @return  El triángulo, o -1 si no queda ninguno
+     */
+    private static int bestTriangle(float[] triangleScore, boolean[] added, int first) {
+        int best = -1;
+        for(int t = first; t < triangleScore.length; t++) {
+            if(!added[t] && (best < 0 || triangleScore[t] > triangleScore[best])) {
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @brief Ordena los grupos de triángulos de un rango de fuera hacia dentro
+     * @details Los grupos se cortan donde la caché se vacía (un triángulo sin ningún vértice en
+     * caché), así que su orden interno se mantiene. Se ordenan por lo que apunta su normal media
+     * hacia fuera desde el centro del rango: los grupos exteriores que miran hacia fuera son los
+     * que suelen tapar al resto. Si el ACMR empeora más de OVERDRAW_MAX_ACMR se deja como estaba
+     * @param start Primer índice del rango
+     * @param end   Último índice del rango (no incluido)
+     */
+    public void reorderForOverdraw(int start, int end) {
+
+        int ntriangles = (end - start) / 3;
+        if(ntriangles < 2) return;
+
+        // Corta los grupos donde un triángulo no tiene ningún vértice en caché
+        int[] clusterStart = new int[ntriangles + 1];
+        int nclusters = 0;
+        int[] fifo = new int[ACMR_CACHE_SIZE];
+        Arrays.fill(fifo, -1);
+        int head = 0;
+        for(int t = 0; t < ntriangles; t++) {
+            int misses = 0;
+            for(int j = 0; j < 3; j++) {
+                int v = indices[start + t * 3 + j];
+                if(!contains(fifo, v)) {
+                    fifo[head] = v;
+                    head = (head + 1) % fifo.length;
+                    misses++;
+                }
+            }
+            if(t == 0 || misses == 3) {
+                clusterStart[nclusters++] = t;
+            }
+        }
+        clusterStart[nclusters] = ntriangles;
+        if(nclusters < 2) return;
+
+        // Centro del rango
+        float[] center = new float[3];
+        for(int i = start; i < end; i++) {
+            int v = indices[i];
+            for(int j = 0; j < 3; j++) {
+                center[j] += vertices[v * 3 + j] / (end - start);
+            }
+        }
+
+        // Cuánto mira cada grupo hacia fuera
+        final float[] potential = new float[nclusters];
+        Integer[] order = new Integer[nclusters];
+        float[] normal = new float[3];
+        float[] centroid = new float[3];
+        for(int c = 0; c < nclusters; c++) {
+            Arrays.fill(normal, 0.0f);
+            Arrays.fill(centroid, 0.0f);
+            for(int t = clusterStart[c]; t < clusterStart[c + 1]; t++) {
+                int a = indices[start + t * 3] * 3;
+                int b = indices[start + t * 3 + 1] * 3;
+                int d = indices[start + t * 3 + 2] * 3;
+                float ux = vertices[b] - vertices[a];
+                float uy = vertices[b + 1] - vertices[a + 1];
+                float uz = vertices[b + 2] - vertices[a + 2];
+                float vx = vertices[d] - vertices[a];
+                float vy = vertices[d + 1] - vertices[a + 1];
+                float vz = vertices[d + 2] - vertices[a + 2];
+                normal[0] += uy * vz - uz * vy;
+                normal[1] += uz * vx - ux * vz;
+                normal[2] += ux * vy - uy * vx;
+                for(int j = 0; j < 3; j++) {
+                    centroid[j] += (vertices[a + j] + vertices[b + j] + vertices[d + j]) / 3.0f;
+                }
+            }
+            int count = clusterStart[c + 1] - clusterStart[c];
+            float length = (float) Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+            if(length > 0.0f) {
+                for(int j = 0; j < 3; j++) {
+                    potential[c] += (centroid[j] / count - center[j]) * normal[j] / length;
+                }
+            }
+            order[c] = c;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(potential[b], potential[a]);
+            }
+        });
+
+        // Copia los grupos en el nuevo orden y se queda con él si la caché no empeora mucho
+        int[] output = new int[end - start];
+        int k = 0;
+        for(int c = 0; c < nclusters; c++) {
+            int from = start + clusterStart[order[c]] * 3;
+            int length = (clusterStart[order[c] + 1] - clusterStart[order[c]]) * 3;
+            System.arraycopy(indices, from, output, k, length);
+            k += length;
+        }
+        float before = computeAcmr(indices, start, end, ACMR_CACHE_SIZE);
+        float after = computeAcmr(output, 0, output.length, ACMR_CACHE_SIZE);
+        if(after <= before * OVERDRAW_MAX_ACMR) {
+            System.arraycopy(output, 0, indices, start, output.length);
+        }
+    }
+
+    /**
+     * @brief Renumera los vértices en el orden en que los usan los índices
+     * @param maxSegmentVertices    Máximo de vértices seguidos que puede usar un tramo de triángulos
+     * @details Si los índices tienen que caber en tramos de 16 bits (ver IBO.prepare), cuando un
+     * triángulo se sale de la ventana del tramo actual se empieza otro, y los vértices que ya se
+     * usaron en tramos anteriores se duplican en el nuevo.
+     */
+    public void reorderVertices(int maxSegmentVertices) {
+
+        int nvertices = vertices.length / 3;
+        int[] remap = new int[nvertices];
+        int[] remapSegment = new int[nvertices];
+        Arrays.fill(remapSegment, -1);
+        int[] source = new int[Math.max(nvertices, indices.length)];
+        int next = 0;
+        int segment = 0;
+        int segmentBase = 0;
+        for(int i = 0; i < indices.length; i += 3) {
+            int added = 0;
+            for(int j = 0; j < 3; j++) {
+                if(remapSegment[indices[i + j]] != segment) added++;
+            }
+            if(next + added - segmentBase > maxSegmentVertices) {
+                segment++;
+                segmentBase = next;
+            }
+            for(int j = 0; j < 3; j++) {
+                int v = indices[i + j];
+                if(remapSegment[v] != segment) {
+                    remapSegment[v] = segment;
+                    remap[v] = next;
+                    source[next++] = v;
+                }
+                indices[i + j] = remap[v];
+            }
+        }
+
+        // Los vértices que no usa ningún triángulo se descartan
+        float[] newVertices = new float[next * 3];
+        float[] newTexcoords = new float[next * 2];
+        float[] newNormals = new float[next * 3];
+        for(int v = 0; v < next; v++) {
+            System.arraycopy(vertices, source[v] * 3, newVertices, v * 3, 3);
+            System.arraycopy(texcoords, source[v] * 2, newTexcoords, v * 2, 2);
+            System.arraycopy(normals, source[v] * 3, newNormals, v * 3, 3);
+        }
+        vertices = newVertices;
+        texcoords = newTexcoords;
+        normals = newNormals;
+    }
+
+    /**
+     * @brief Calcula el ACMR (vértices transformados por triángulo) con una caché FIFO
+     * @param indices   Índices de los triángulos
+     * @param start     Primer índice
+     * @param end       Último índice (no incluido)
+     * @param cacheSize Tamaño de la caché
+     * @return  El ACMR, entre 0.5 (ideal) y 3
+     */
+    public static float computeAcmr(int[] indices, int start, int end, int cacheSize) {
+        if(end <= start) return 0.0f;
+        int[] fifo = new int[cacheSize];
+        Arrays.fill(fifo, -1);
+        int head = 0;
+        int misses = 0;
+        for(int i = start; i < end; i++) {
+            int v = indices[i];
+            if(!contains(fifo, v)) {
+                fifo[head] = v;
+                head = (head + 1) % cacheSize;
+                misses++;
+            }
+        }
+        return misses / ((end - start) / 3.0f);
+    }
+
+    /**
+     * @brief Comprueba si un vértice está en la caché
+     * @param cache La caché
+     * @param v     El vértice
+     * @return  Si está
+     */
+    private static boolean contains(int[] cache, int v) {
+        for(int c : cache) {
+            if(c == v) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @brief Obtén los vértices optimizados
+     * @return  Los vértices
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    /**
+     * @brief Obtén las coordenadas de textura optimizadas
+     * @return  Las coordenadas de textura
+     */
+    public float[] getTexcoords() {
+        return texcoords;
+    }
+
+    /**
+     * @brief Obtén las normales optimizadas
+     * @return  Las normales
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * @brief Obtén los índices optimizados (el mismo array que se pasó al constructor)
+     * @return  Los índices
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+}
@@ -0,0 +1,541 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshSimplifier.java
+ * @brief Simplificación de modelos por colapso de aristas
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * @class MeshSimplifier
+ * @details Colapsa aristas de menor a mayor error cuadrático (cuádricas de Garland-Heckbert),
+ * moviendo siempre un vértice sobre otro que ya existe: los niveles sólo cambian los índices y
+ * comparten los VBOs del modelo original. Trabaja sobre las posiciones soldadas, ya que ObjMesh
+ * duplica los vértices con distinta normal, coordenada de textura o material. Cada vértice
+ * duplicado se lleva al vértice del otro extremo con el que comparte arista, o si no la comparte
+ * (un pliegue que no sigue la arista) a uno con la misma normal y coordenada de textura. Si no hay
+ * ninguno el colapso no se hace, así que los pliegues y costuras se conservan. Los bordes abiertos
+ * del modelo pueden deslizarse a lo largo de sí mismos (con planos perpendiculares de mucho peso),
+ * pero los que separan el conjunto de triángulos del resto del modelo no se mueven nunca, así que
+ * los trozos simplificados por separado siguen encajando.
+ * Sólo usa memoria de CPU, así que se puede llamar desde cualquier hilo.
+ */
+public class MeshSimplifier {
+
+    private static final double BORDER_WEIGHT = 100.0;     /**< Peso de los planos de los bordes abiertos */
+
+    private final float[] vertices;
+    private final float[] normals;
+    private final float[] texcoords;
+    private final int[] indices;
+    private final int[] positionId;     /**< Posición soldada de cada vértice */
+    private final int[][] positionVertices;     /**< Vértices de cada posición soldada */
+    private final int npositions;
+    private final HashMap<Long, Integer> edgeCount;     /**< Triángulos de cada arista en todo el modelo */
+
+    /**
+     * @class Collapse
+     * @brief Colapso candidato de la posición from sobre la posición to
+     */
+    private static class Collapse implements Comparable<Collapse> {
+        final double cost;
+        final int from;
+        final int to;
+        final int fromVersion;
+        final int toVersion;
+
+        Collapse(double cost, int from, int to, int fromVersion, int toVersion) {
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    /**
+     * @brief Constructor del simplificador, que suelda los vértices con la misma posición
+     * @param vertices  Vértices del modelo (x, y, z)
+     * @param normals   Normales del modelo (x, y, z)
+     * @param texcoords Coordenadas de textura del modelo (s, t)
+     * @param indices   Índices de los triángulos
+     */
+    public MeshSimplifier(float[] vertices, float[] normals, float[] texcoords, int[] indices) {
+        this.vertices = vertices;
+        this.normals = normals;
+        this.texcoords = texcoords;
+        this.indices = indices;
+
+        int nvertices = vertices.length / 3;
+        positionId = new int[nvertices];
+        HashMap<String, Integer> welded = new HashMap<>();
+        for(int v = 0; v < nvertices; v++) {
+            String key = vertices[v * 3] + " " + vertices[v * 3 + 1] + " " + vertices[v * 3 + 2];
+            Integer id = welded.get(key);
+            if(id == null) {
+                id = welded.size();
+                welded.put(key, id);
+            }
+            positionId[v] = id;
+        }
+        npositions = welded.size();
+
+        int[] count = new int[npositions];
+        for(int v = 0; v < nvertices; v++) {
+            count[positionId[v]]++;
+        }
+        positionVertices = new int[npositions][];
+        for(int p = 0; p < npositions; p++) {
+            positionVertices[p] = new int[count[p]];
+            count[p] = 0;
+        }
+        for(int v = 0; v < nvertices; v++) {
+            positionVertices[positionId[v]][count[positionId[v]]++] = v;
+        }
+
+        edgeCount = new HashMap<>();
+        for(int i = 0; i + 2 < indices.length; i += 3) {
+            int a = positionId[indices[i]];
+            int b = positionId[indices[i + 1]];
+            int c = positionId[indices[i + 2]];
+            countEdge(edgeCount, a, b);
+            countEdge(edgeCount, b, c);
+            countEdge(edgeCount, c, a);
+        }
+    }
+
+    /**
+     * @brief Genera una cadena de niveles simplificados de un conjunto de triángulos
+     * @details Se simplifica de forma continua y se guarda una copia cada vez que el siguiente
+     * colapso superaría el error máximo de un nivel, así que cada nivel parte del anterior
+     * @param starts    Primer índice de cada rango (por ejemplo, cada grupo de material de un trozo)
+     * @param ends      Último índice de cada rango (no incluido)
+     * @param maxErrors Error máximo de cada nivel, de menor a mayor
+     * @param out       Salida: índices de cada nivel y rango, out[nivel][rango]
+     * @return  El error geométrico de cada nivel (distancia máxima estimada a la superficie original,
+     * nunca mayor que su error máximo)
+     */
+    public float[] simplify(int[] starts, int[] ends, float[] maxErrors, int[][][] out) {
+
+        // Copia los triángulos de los rangos
+        int ntriangles = 0;
+        for(int r = 0; r < starts.length; r++) {
+            ntriangles += (ends[r] - starts[r]) / 3;
+        }
+        int[] corners = new int[ntriangles * 3];
+        int[] triangleRange = new int[ntriangles];
+        boolean[] dead = new boolean[ntriangles];
+        int t = 0;
+        for(int r = 0; r < starts.length; r++) {
+            for(int i = starts[r]; i + 2 < ends[r]; i += 3) {
+                corners[t * 3] = indices[i];
+                corners[t * 3 + 1] = indices[i + 1];
+                corners[t * 3 + 2] = indices[i + 2];
+                triangleRange[t++] = r;
+            }
+        }
+
+        // Numera las posiciones usadas por estos triángulos
+        int[] local = new int[npositions];
+        Arrays.fill(local, -1);
+        int[] global = new int[npositions];
+        int np = 0;
+        for(int c = 0; c < corners.length; c++) {
+            int p = positionId[corners[c]];
+            if(local[p] < 0) {
+                global[np] = p;
+                local[p] = np++;
+            }
+        }
+        float[] position = new float[np * 3];
+        for(int c = 0; c < corners.length; c++) {
+            int p = local[positionId[corners[c]]];
+            System.arraycopy(vertices, corners[c] * 3, position, p * 3, 3);
+        }
+
+        // Triángulos de cada posición
+        int[][] adjacent = new int[np][];
+        int[] adjacentCount = new int[np];
+        for(int i = 0; i < np; i++) {
+            adjacent[i] = new int[8];
+        }
+        for(t = 0; t < ntriangles; t++) {
+            for(int j = 0; j < 3; j++) {
+                addAdjacent(adjacent, adjacentCount, local[positionId[corners[t * 3 + j]]], t);
+            }
+        }
+
+        // Cuádricas de los planos de cada triángulo y de los bordes abiertos
+        double[] quadric = new double[np * 10];
+        HashMap<Long, Integer> localEdgeCount = new HashMap<>();
+        float[] normal = new float[3];
+        float[] border = new float[3];
+        for(t = 0; t < ntriangles; t++) {
+            int[] p = new int[] {local[positionId[corners[t * 3]]],
+                                 local[positionId[corners[t * 3 + 1]]],
+                                 local[positionId[corners[t * 3 + 2]]]};
+            boolean valid = triangleNormal(position, p[0], p[1], p[2], normal) > 0.0f;
+            if(valid) {
+                double d = -(normal[0] * position[p[0] * 3] + normal[1] * position[p[0] * 3 + 1] + normal[2] * position[p[0] * 3 + 2]);
+                for(int j = 0; j < 3; j++) {
+                    addPlane(quadric, p[j], normal, d, 1.0);
+                }
+            }
+            for(int j = 0; j < 3; j++) {
+                int a = p[j];
+                int b = p[(j + 1) % 3];
+                countEdge(localEdgeCount, a, b);
+                if(valid && getEdgeCount(edgeCount, global[a], global[b]) == 1) {
+                    float ex = position[b * 3] - position[a * 3];
+                    float ey = position[b * 3 + 1] - position[a * 3 + 1];
+                    float ez = position[b * 3 + 2] - position[a * 3 + 2];
+                    border[0] = ey * normal[2] - ez * normal[1];
+                    border[1] = ez * normal[0] - ex * normal[2];
+                    border[2] = ex * normal[1] - ey * normal[0];
+                    float length = (float) Math.sqrt(border[0] * border[0] + border[1] * border[1] + border[2] * border[2]);
+                    if(length > 0.0f) {
+                        border[0] /= length;
+                        border[1] /= length;
+                        border[2] /= length;
+                        double d = -(border[0] * position[a * 3] + border[1] * position[a * 3 + 1] + border[2] * position[a * 3 + 2]);
+                        addPlane(quadric, a, border, d, BORDER_WEIGHT);
+                        addPlane(quadric, b, border, d, BORDER_WEIGHT);
+                    }
+                }
+            }
+        }
+
+        // Bloquea las aristas compartidas con el resto del modelo y las de más de dos triángulos
+        boolean[] locked = new boolean[np];
+        for(HashMap.Entry<Long, Integer> edge : localEdgeCount.entrySet()) {
+            int a = (int) (edge.getKey() >> 32);
+            int b = (int) (edge.getKey() & 0xFFFFFFFFL);
+            int count = getEdgeCount(edgeCount, global[a], global[b]);
+            if(edge.getValue() != count || count > 2) {
+                locked[a] = true;
+                locked[b] = true;
+            }
+        }
+
+        // Colapsos candidatos de todas las aristas
+        int[] version = new int[np];
+        boolean[] removed = new boolean[np];
+        PriorityQueue<Collapse> queue = new PriorityQueue<>();
+        for(Long edge : localEdgeCount.keySet()) {
+            int a = (int) (edge >> 32);
+            int b = (int) (edge & 0xFFFFFFFFL);
+            pushCollapse(queue, quadric, position, locked, version, a, b);
+            pushCollapse(queue, quadric, position, locked, version, b, a);
+        }
+
+        // Colapsa hasta llegar a cada nivel
+        float[] errors = new float[maxErrors.length];
+        double maxCost = 0.0;
+        int[] wedgeFrom = new int[16];
+        int[] wedgeTo = new int[16];
+        for(int level = 0; level < maxErrors.length; level++) {
+            double maxLevelCost = (double) maxErrors[level] * maxErrors[level];
+            while(!queue.isEmpty()) {
+                Collapse collapse = queue.peek();
+                int u = collapse.from;
+                int v = collapse.to;
+                if(removed[u] || removed[v] || version[u] != collapse.fromVersion || version[v] != collapse.toVersion) {
+                    queue.poll();
+                    continue;
+                }
+                if(collapse.cost > maxLevelCost) break;     // Queda para el siguiente nivel
+                queue.poll();
+
+                // Empareja los vértices de u con los de v a través de los triángulos de la arista
+                if(wedgeFrom.length < adjacentCount[u]) {
+                    wedgeFrom = new int[adjacentCount[u]];
+                    wedgeTo = new int[adjacentCount[u]];
+                }
+                int nwedges = 0;
+                boolean valid = true;
+                for(int i = 0; i < adjacentCount[u] && valid; i++) {
+                    int tri = adjacent[u][i];
+                    if(dead[tri]) continue;
+                    int cu = -1;
+                    int cv = -1;
+                    for(int j = 0; j < 3; j++) {
+                        int p = local[positionId[corners[tri * 3 + j]]];
+                        if(p == u) cu = corners[tri * 3 + j];
+                        if(p == v) cv = corners[tri * 3 + j];
+                    }
+                    if(cv < 0) continue;
+                    int w = indexOf(wedgeFrom, nwedges, cu);
+                    if(w < 0) {
+                        wedgeFrom[nwedges] = cu;
+                        wedgeTo[nwedges++] = cv;
+                    } else if(wedgeTo[w] != cv) {
+                        valid = false;      // Costura en v que no llega a u
+                    }
+                }
+
+                // El resto de triángulos de u no deben darse la vuelta ni cambiar de atributos
+                for(int i = 0; i < adjacentCount[u] && valid; i++) {
+                    int tri = adjacent[u][i];
+                    if(dead[tri]) continue;
+                    int a = local[positionId[corners[tri * 3]]];
+                    int b = local[positionId[corners[tri * 3 + 1]]];
+                    int c = local[positionId[corners[tri * 3 + 2]]];
+                    if(a == v || b == v || c == v) continue;
+                    for(int j = 0; j < 3 && valid; j++) {
+                        int cu = corners[tri * 3 + j];
+                        if(local[positionId[cu]] != u || indexOf(wedgeFrom, nwedges, cu) >= 0) continue;
+                        int cv = findEqualVertex(cu, global[v]);
+                        if(cv < 0) {
+                            valid = false;
+                        } else {
+                            wedgeFrom[nwedges] = cu;
+                            wedgeTo[nwedges++] = cv;
+                        }
+                    }
+                    valid = valid && !flips(position, a, b, c, u, v, normal);
+                }
+                if(!valid) continue;
+
+                // Aplica el colapso
+                for(int i = 0; i < adjacentCount[u]; i++) {
+                    int tri = adjacent[u][i];
+                    if(dead[tri]) continue;
+                    boolean degenerate = false;
+                    for(int j = 0; j < 3; j++) {
+                        degenerate |= local[positionId[corners[tri * 3 + j]]] == v;
+                    }
+                    if(degenerate) {
+                        dead[tri] = true;
+                        continue;
+                    }
+                    for(int j = 0; j < 3; j++) {
+                        int w = indexOf(wedgeFrom, nwedges, corners[tri * 3 + j]);
+                        if(w >= 0) corners[tri * 3 + j] = wedgeTo[w];
+                    }
+                    addAdjacent(adjacent, adjacentCount, v, tri);
+                }
+                removed[u] = true;
+                for(int k = 0; k < 10; k++) {
+                    quadric[v * 10 + k] += quadric[u * 10 + k];
+                }
+                maxCost = Math.max(maxCost, collapse.cost);
+
+                // Vuelve a calcular los colapsos de las aristas de v
+                version[v]++;
+                for(int i = 0; i < adjacentCount[v]; i++) {
+                    int tri = adjacent[v][i];
+                    if(dead[tri]) continue;
+                    for(int j = 0; j < 3; j++) {
+                        int w = local[positionId[corners[tri * 3 + j]]];
+                        if(w != v) {
+                            pushCollapse(queue, quadric, position, locked, version, v, w);
+                            pushCollapse(queue, quadric, position, locked, version, w, v);
+                        }
+                    }
+                }
+            }
+
+            // Guarda el nivel
+            errors[level] = (float) Math.sqrt(maxCost);
+            int[] rangeCount = new int[starts.length];
+            for(t = 0; t < ntriangles; t++) {
+                if(!dead[t]) rangeCount[triangleRange[t]] += 3;
+            }
+            for(int r = 0; r < starts.length; r++) {
+                out[level][r] = new int[rangeCount[r]];
+                rangeCount[r] = 0;
+            }
+            for(t = 0; t < ntriangles; t++) {
+                if(dead[t]) continue;
+                int[] range = out[level][triangleRange[t]];
+                int k = rangeCount[triangleRange[t]];
+                range[k] = corners[t * 3];
+                range[k + 1] = corners[t * 3 + 1];
+                range[k + 2] = corners[t * 3 + 2];
+                rangeCount[triangleRange[t]] = k + 3;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @brief Busca un vértice en una posición con la misma normal y coordenada de textura que otro
+     * @param vertex    El vértice
+     * @param position  La posición soldada
+     * @return  El vértice encontrado, o -1 si no hay ninguno
+     */
+    private int findEqualVertex(int vertex, int position) {
+        for(int v : positionVertices[position]) {
+            if(normals[v * 3] == normals[vertex * 3] && normals[v * 3 + 1] == normals[vertex * 3 + 1] &&
+                    normals[v * 3 + 2] == normals[vertex * 3 + 2] &&
+                    texcoords[v * 2] == texcoords[vertex * 2] && texcoords[v * 2 + 1] == texcoords[vertex * 2 + 1]) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @brief Añade un triángulo a la lista de una posición
+     * @param adjacent      Listas de triángulos
+     * @param adjacentCount Tamaño de cada lista
+     * @param p             La posición
+     * @param t             El triángulo
+     */
+    private static void addAdjacent(int[][] adjacent, int[] adjacentCount, int p, int t) {
+        if(adjacentCount[p] == adjacent[p].length) {
+            adjacent[p] = Arrays.copyOf(adjacent[p], adjacentCount[p] * 2);
+        }
+        adjacent[p][adjacentCount[p]++] = t;
+    }
+
+    /**
+     * @brief Cuenta los triángulos de una arista
+     * @param edgeCount Triángulos de cada arista (clave con la posición menor en los bits altos)
+     * @param a         Primera posición
+     * @param b         Segunda posición
+     */
+    private static void countEdge(HashMap<Long, Integer> edgeCount, int a, int b) {
+        long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+        Integer count = edgeCount.get(key);
+        edgeCount.put(key, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * @brief Obtén los triángulos de una arista
+     * @param edgeCount Triángulos de cada arista
+     * @param a         Primera posición
+     * @param b         Segunda posición
+     * @return  El número de triángulos
+     */
+    private static int getEdgeCount(HashMap<Long, Integer> edgeCount, int a, int b) {
+        Integer count = edgeCount.get(((long) Math.min(a, b) << 32) | Math.max(a, b));
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * @brief Añade la cuádrica de un plano a una posición
+     * @param quadric   Cuádricas (matriz simétrica de 4x4, 10 valores por posición)
+     * @param p         La posición
+     * @param n         Normal del plano (unitaria)
+     * @param d         Distancia del plano al origen
+     * @param weight    Peso del plano
+     */
+    private static void addPlane(double[] quadric, int p, float[] n, double d, double weight) {
+        int q = p * 10;
+        quadric[q] += weight * n[0] * n[0];
+        quadric[q + 1] += weight * n[0] * n[1];
+        quadric[q + 2] += weight * n[0] * n[2];
+        quadric[q + 3] += weight * n[0] * d;
+        quadric[q + 4] += weight * n[1] * n[1];
+        quadric[q + 5] += weight * n[1] * n[2];
+        quadric[q + 6] += weight * n[1] * d;
+        quadric[q + 7] += weight * n[2] * n[2];
+        quadric[q + 8] += weight * n[2] * d;
+        quadric[q + 9] += weight * d * d;
+    }
+
+    /**
+     * @brief Añade a la cola el colapso de una posición sobre otra, si se puede mover
+     * @details El coste es la suma de distancias al cuadrado de la posición destino a los planos
+     * de ambas posiciones
+     * @param queue     Cola de colapsos
+     * @param quadric   Cuádricas de las posiciones
+     * @param position  Posiciones
+     * @param locked    Posiciones que no se pueden mover
+     * @param version   Versión de cada posición (cambia al colapsar sobre ella)
+     * @param from      Posición que se mueve
+     * @param to        Posición destino
+     */
+    private static void pushCollapse(PriorityQueue<Collapse> queue, double[] quadric, float[] position,
+                                     boolean[] locked, int[] version, int from, int to) {
+        if(locked[from]) return;
+        double x = position[to * 3];
+        double y = position[to * 3 + 1];
+        double z = position[to * 3 + 2];
+        int a = from * 10;
+        int b = to * 10;
+        double cost = (quadric[a] + quadric[b]) * x * x
+                + 2 * (quadric[a + 1] + quadric[b + 1]) * x * y
+                + 2 * (quadric[a + 2] + quadric[b + 2]) * x * z
+                + 2 * (quadric[a + 3] + quadric[b + 3]) * x
+                + (quadric[a + 4] + quadric[b + 4]) * y * y
+                + 2 * (quadric[a + 5] + quadric[b + 5]) * y * z
+                + 2 * (quadric[a + 6] + quadric[b + 6]) * y
+                + (quadric[a + 7] + quadric[b + 7]) * z * z
+                + 2 * (quadric[a + 8] + quadric[b + 8]) * z
+                + (quadric[a + 9] + quadric[b + 9]);
+        queue.add(new Collapse(Math.max(cost, 0.0), from, to, version[from], version[to]));
+    }
+
+    /**
+     * @brief Calcula la normal unitaria de un triángulo
+     * @param position  Posiciones
+     * @param a         Primera posición
+     * @param b         Segunda posición
+     * @param c         Tercera posición
+     * @param out       Normal (salida)
+     * @return  El doble del área del triángulo
+     */
+    private static float triangleNormal(float[] position, int a, int b, int c, float[] out) {
+        float ux = position[b * 3] - position[a * 3];
+        float uy = position[b * 3 + 1] - position[a * 3 + 1];
+        float uz = position[b * 3 + 2] - position[a * 3 + 2];
+        float vx = position[c * 3] - position[a * 3];
+        float vy = position[c * 3 + 1] - position[a * 3 + 1];
+        float vz = position[c * 3 + 2] - position[a * 3 + 2];
+        out[0] = uy * vz - uz * vy;
+        out[1] = uz * vx - ux * vz;
+        out[2] = ux * vy - uy * vx;
+        float length = (float) Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+        if(length > 0.0f) {
+            out[0] /= length;
+            out[1] /= length;
+            out[2] /= length;
+        }
+        return length;
+    }
+
+    /**
+     * @brief Comprueba si un triángulo se da la vuelta (o queda sin área) al mover u sobre v
+     * @param position  Posiciones
+     * @param a         Primera posición del triángulo
+     * @param b         Segunda posición del triángulo
+     * @param c         Tercera posición del triángulo
+     * @param u         Posición que se mueve
+     * @param v         Posición destino
+     * @param scratch   Array temporal de 3 elementos
+     * @return  Si el colapso estropea el triángulo
+     */
+    private static boolean flips(float[] position, int a, int b, int c, int u, int v, float[] scratch) {
+        triangleNormal(position, a, b, c, scratch);
+        float nx = scratch[0];
+        float ny = scratch[1];
+        float nz = scratch[2];
+        float area = triangleNormal(position, (a == u) ? v : a, (b == u) ? v : b, (c == u) ? v : c, scratch);
+        return area <= 0.0f || nx * scratch[0] + ny * scratch[1] + nz * scratch[2] < 0.2f;
+    }
+
+    /**
+     * @brief Busca un valor en las primeras posiciones de un array
+     * @param array El array
+     * @param count Número de elementos usados
+     * @param value El valor
+     * @return  Su índice, o -1 si no está
+     */
+    private static int indexOf(int[] array, int count, int value) {
+        for(int i = 0; i < count; i++) {
+            if(array[i] == value) return i;
+        }
+        return -1;
+    }
+}
@@ -7,13 +7,15 @@ package com.dam.chapas.opengl;
  */
 
 import android.util.Log;
-import android.util.Pair;
+import androidx.core.util.Pair;
 
 import com.dam.chapas.app.MainApplication;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,157 +26,272 @@ import java.util.Scanner;
  */
 public class ObjMesh extends Mesh {
 
+    /**
+     * @class Data
+     * @brief Modelo ya leído en CPU, con los buffers listos para subir a OpenGL
+     */
+    public static class Data {
+        private float[] vertices;
+        private float[] texcoords;
+        private float[] normals;
+        private int[] indices;
+        private FloatBuffer vertexBuffer;
+        private FloatBuffer texcoordBuffer;
+        private FloatBuffer normalBuffer;
+        private IBO.Indices indexBuffer;
+        private ArrayList<Pair<Integer, Material>> materialGroups = new ArrayList<>();
+        private Material[] materials;
+        private HashMap<Material, String> texturePaths = new HashMap<>();   /**< Textura de cada material */
+        private MeshGeometry geometry;      /**< Geometría leída, con sus divisiones en trozos */
+
+        /**
+         * @brief Obtén el tamaño aproximado de los datos en CPU
+         * @return  El tamaño en bytes
+         */
+        public long getByteSize() {
+            return 2 * getGpuByteSize();    // Arrays y buffers directos
+        }
+
+        /**
+         * @brief Obtén el tamaño aproximado de la geometría en OpenGL
+         * @return  El tamaño en bytes
+         */
+        public long getGpuByteSize() {
+            return 4L * (vertices.length + texcoords.length + normals.length) + indexBuffer.getByteSize();
+        }
+
+        /**
+         * @brief Obtén la división en trozos del modelo
+         * @details Los modelos optimizados en compilación ya la traen (ver meshes.gradle); si no, se
+         * calcula la primera vez y se guarda con la geometría
+         * @param nx    Número de trozos en el eje X
+         * @param nz    Número de trozos en el eje Z
+         * @return  Los trozos y sus niveles de detalle
+         */
+        public MeshChunks getChunks(int nx, int nz) {
+            return geometry.getChunks(nx, nz);
+        }
+    }
+
+    /**
+     * @class Asset
+     * @brief Carga de un ObjMesh en dos fases, para usar con AssetLoader
+     */
+    public static class Asset implements AssetLoader.Asset {
+
+        private final String path;
+        private final int chunksX;
+        private final int chunksZ;
+        private MeshChunks chunks;
+        private ObjMesh mesh;
+
+        /**
+         * @brief Constructor de la carga
+         * @param path  Ruta del modelo
+         */
+        public Asset(String path) {
+            this(path, 0, 0);
+        }
+
+        /**
+         * @brief Constructor de la carga de un modelo dividido en trozos (ver Mesh.setChunks)
+         * @param path      Ruta del modelo
+         * @param chunksX   Número de trozos en el eje X
+         * @param chunksZ   Número de trozos en el eje Z
+         */
+        public Asset(String path, int chunksX, int chunksZ) {
+            this.path = path;
+            this.chunksX = chunksX;
+            this.chunksZ = chunksZ;
+        }
+
+        /**
+         * @inheritDoc
+         */
+        @Override
+        public void decode() throws IOException {
+            Data data = ResourceManager.getInstance().getMeshData(path);
+            if(chunksX > 0 && chunksZ > 0) {
+                chunks = data.getChunks(chunksX, chunksZ);      // Lo más costoso, fuera del hilo de OpenGL
+            }
+        }
+
+        /**
+         * @inheritDoc
+         */
+        @Override
+        public void upload() {
+            try {
+                mesh = ResourceManager.getInstance().acquireMesh(path);
+            } catch(IOException e) {
+                throw new RuntimeException("Couldn't load " + path, e);
+            }
+            if(chunks != null) {
+                mesh.setChunks(chunks);
+            }
+        }
+
+        /**
+         * @brief Obtén el modelo cargado
+         * @details El modelo es de ResourceManager: hay que liberarlo con release()
+         * @return  El modelo (null si todavía no se ha subido)
+         */
+        public ObjMesh getMesh() {
+            return mesh;
+        }
+    }
+
     /**
      * @brief Carga un modelo 3D en formato OBJ
      * @param path          Ruta del archivo
      * @throws IOException  Si no se encuentra el archivo
      */
     public ObjMesh(String path) throws IOException {
+        this(parse(path));
+    }
 
-        // Abre el archivo
-        BufferedReader reader = new BufferedReader(new InputStreamReader(MainApplication.getInstance().getAssets().open(path)));
-
-        // Arrays temporales
-        ArrayList<Float> vertices = new ArrayList<>();
-        ArrayList<Float> texcoords = new ArrayList<>();
-        ArrayList<Float> normals = new ArrayList<>();
-        ArrayList<Integer> indices = new ArrayList<>();
-        HashMap<String, Integer> indicesMap = new HashMap<>();
-        HashMap<String, Material> materials = new HashMap<>();
-        ArrayList<Float> finalVertices = new ArrayList<>();
-        ArrayList<Float> finalTexcoords = new ArrayList<>();
-        ArrayList<Float> finalNormals = new ArrayList<>();
+    /**
+     * @brief Sube a OpenGL un modelo ya leído (debe llamarse desde el hilo de OpenGL)
+     * @details Los datos no se modifican, así que se pueden volver a subir (ver ResourceManager)
+     * @param data  Datos del modelo
+     * @throws IOException  Si no se encuentra alguna textura
+     */
+    public ObjMesh(Data data) throws IOException {
+
+        // Copia los materiales, que guardan la textura de este contexto OpenGL
+        HashMap<Material, Material> copies = new HashMap<>();
+        materials = new Material[data.materials.length];
+        for(int i = 0; i < materials.length; i++) {
+            materials[i] = data.materials[i].clone();
+            copies.put(data.materials[i], materials[i]);
+        }
         materialGroups = new ArrayList<>();
+        for(Pair<Integer, Material> group : data.materialGroups) {
+            materialGroups.add(new Pair<>(group.first, copies.get(group.second)));
+        }
 
-        // Variables de lectura
-        String line;
-        int nobjects = 0;
-        int nelements = 0;
-        int groupStart = -1;
-        Material lastMaterial = null;
-
-        // Lee el archivo línea por línea
-        while ((line = reader.readLine()) != null) {
+        // Obtén las texturas (compartidas con otros modelos) o la del atlas
+        ResourceManager resources = ResourceManager.getInstance();
+        for(int i = 0; i < materials.length; i++) {
+            Material mat = materials[i];
+            if(mat.getAtlasRegion() != null) {
+                mat.setTexture(resources.acquireTexture(TextureAtlas.getInstance().getPagePath()));
+            } else if(data.texturePaths.containsKey(data.materials[i])) {
+                mat.setTexture(resources.acquireTexture(data.texturePaths.get(data.materials[i])));
+            }
+        }
 
-            String[] lineTokens = line.split(" ");
-            if(lineTokens.length == 0) continue;
+        // Guarda una copia en CPU de la geometría
+        vertexData = data.vertices;
+        texcoordData = data.texcoords;
+        normalData = data.normals;
+        indexData = data.indices;
 
-            if(lineTokens[0].equals("#")) {
-                continue;
-            } else if(lineTokens[0].equals("mtllib")) {
+        // Crea los VBO
+        vbos = new VBO[3];
+        vbos[0] = new VBO(data.vertexBuffer, VBO.VERTICES);
+        vbos[1] = new VBO(data.texcoordBuffer, VBO.TEXCOORDS);
+        vbos[2] = new VBO(data.normalBuffer, VBO.NORMALS);
 
-                // Ruta de la librería de materiales
-                String basepath = "";
-                int slashIndex = path.lastIndexOf('/');
-                if(slashIndex != -1) {
-                    basepath = path.substring(0, slashIndex + 1);
-                }
-                this.loadMtl(basepath + lineTokens[1], materials);
-            } else if(lineTokens[0].equals("o")) {
+        // Crea el IBO
+        ibo = new IBO(data.indexBuffer);
 
-                // Nuevo objeto
-                if(nobjects > 0) {
-                    throw new RuntimeException("More than one object in ObjMesh: " + path);
-                } else {
-                    nobjects ++;
-                }
-            } else if(lineTokens[0].equals("v")) {
-
-                // Nuevo vértice
-                vertices.add(Float.parseFloat(lineTokens[1]));
-                vertices.add(Float.parseFloat(lineTokens[2]));
-                vertices.add(Float.parseFloat(lineTokens[3]));
-            } else if(lineTokens[0].equals("vt")) {
-
-                // Nueva coordenada de textura
-                texcoords.add(Float.parseFloat(lineTokens[1]));
-                texcoords.add(1.0f - Float.parseFloat(lineTokens[2]));
-            } else if(lineTokens[0].equals("vn")) {
-
-                // Nueva normal
-                normals.add(Float.parseFloat(lineTokens[1]));
-                normals.add(Float.parseFloat(lineTokens[2]));
-                normals.add(Float.parseFloat(lineTokens[3]));
-            } else if(lineTokens[0].equals("f")) {
-
-                // Nuevo triángulo
-                for(int i = 0; i < 3; i++) {
-                    String token = lineTokens[i + 1];
-                    if(indicesMap.containsKey(token)) {
-                        indices.add(indicesMap.get(token));
-                    } else {
-                        indices.add(indicesMap.size());
-                        indicesMap.put(token, indicesMap.size());
-                        String[] subtoken = token.split("/");
-                        Integer vertex = Integer.parseInt(subtoken[0]) - 1;
-                        Integer texcoord = Integer.parseInt(subtoken[1]) - 1;
-                        Integer normal = Integer.parseInt(subtoken[2]) - 1;
-                        for(int j = 0; j < 3; j++) {
-                            finalVertices.add(vertices.get(vertex * 3 + j));
-                        }
-                        for(int j = 0; j < 2; j++) {
-                            finalTexcoords.add(texcoords.get(texcoord * 2 + j));
-                        }
-                        for(int j = 0; j < 3; j++) {
-                            finalNormals.add(normals.get(normal * 3 + j));
-                        }
-                    }
-                }
-                nelements += 3;
-            } else if(lineTokens[0].equals("usemtl")) {
+        // Calcula la esfera envolvente para descartar el modelo si no se ve
+        computeBounds();
+    }
 
-                // Nuevo grupo de material
-                if(groupStart == -1) {
-                    groupStart = nelements;
-                    lastMaterial = materials.get(lineTokens[1]);
-                } else {
-                    materialGroups.add(new Pair<Integer, Material>(nelements, lastMaterial));
-                    lastMaterial = materials.get(lineTokens[1]);
-                }
+    /**
+     * @brief Lee un modelo 3D en formato OBJ y sus materiales (se puede llamar desde cualquier hilo)
+     * @details Si hay una versión optimizada en tiempo de compilación (ver meshes.gradle) se usa esa
+     * @param path          Ruta del archivo
+     * @return  Los datos del modelo
+     * @throws IOException  Si no se encuentra el archivo
+     */
+    public static Data parse(String path) throws IOException {
+
+        Data data = new Data();
+
+        // Lee la geometría
+        MeshGeometry geometry = openBaked(path);
+        boolean baked = (geometry != null);
+        if(!baked) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(MainApplication.getInstance().getAssets().open(path)));
+            try {
+                geometry = MeshGeometry.parseObj(reader, path);
+            } finally {
+                reader.close();
             }
         }
 
-        // Añade el último grupo de material
-        materialGroups.add(new Pair<Integer, Material>(nelements, lastMaterial));
-
-        // Cierra el archivo
-        reader.close();
-
-        // Convierte las listas en arrays
-        float[] verticesArray = new float[finalVertices.size()];
-        float[] texcoordsArray = new float[finalTexcoords.size()];
-        float[] normalsArray = new float[finalNormals.size()];
-        for(int i = 0; i < verticesArray.length; i++) {
-            verticesArray[i] = finalVertices.get(i);
+        // Lee la librería de materiales, que está junto al modelo
+        HashMap<String, Material> materials = new HashMap<>();
+        if(geometry.getMtllib() != null) {
+            String basepath = "";
+            int slashIndex = path.lastIndexOf('/');
+            if(slashIndex != -1) {
+                basepath = path.substring(0, slashIndex + 1);
+            }
+            loadMtl(basepath + geometry.getMtllib(), materials, data);
         }
-        for(int i = 0; i < texcoordsArray.length; i++) {
-            texcoordsArray[i] = finalTexcoords.get(i);
+
+        // Sin versión optimizada, las coordenadas de textura se llevan al atlas y se suelda y
+        // reordena aquí (si no hay índices de 32 bits, en tramos direccionables con 16 bits)
+        if(!baked) {
+            HashMap<String, float[]> regions = new HashMap<>();
+            for(Map.Entry<String, Material> m : materials.entrySet()) {
+                if(m.getValue().getAtlasRegion() != null) {
+                    regions.put(m.getKey(), m.getValue().getAtlasRegion());
+                }
+            }
+            geometry.remapTexcoords(regions);
+            geometry.optimize(IBO.isUintSupported() ? Integer.MAX_VALUE : IBO.MAX_SHORT_VERTICES);
         }
-        for(int i = 0; i < normalsArray.length; i++) {
-            normalsArray[i] = finalNormals.get(i);
+
+        // Grupos de material
+        for(int g = 0; g < geometry.groupEnds.length; g++) {
+            data.materialGroups.add(new Pair<>(geometry.groupEnds[g], materials.get(geometry.groupMaterials[g])));
         }
 
-        // Crea los VBO
-        vbos = new VBO[3];
-        vbos[0] = new VBO(verticesArray, VBO.VERTICES);
-        vbos[1] = new VBO(texcoordsArray, VBO.TEXCOORDS);
-        vbos[2] = new VBO(normalsArray, VBO.NORMALS);
+        // Guarda la geometría y prepara los buffers para OpenGL
+        data.geometry = geometry;
+        data.vertices = geometry.vertices;
+        data.texcoords = geometry.texcoords;
+        data.normals = geometry.normals;
+        data.indices = geometry.indices;
+        data.vertexBuffer = VBO.createBuffer(data.vertices);
+        data.texcoordBuffer = VBO.createBuffer(data.texcoords);
+        data.normalBuffer = VBO.createBuffer(data.normals);
+        data.indexBuffer = IBO.prepare(data.indices);
+
+        return data;
+    }
 
-        // Crea el IBO
-        short[] indicesArray = new short[indices.size()];
-        for(int i = 0; i < indicesArray.length; i++) {
-            indicesArray[i] = indices.get(i).shortValue();
+    /**
+     * @brief Lee la versión optimizada (.cmesh) de un modelo, si existe
+     * @param path  Ruta del modelo original
+     * @return  La geometría optimizada, o null si no existe
+     * @throws IOException  Si el archivo no es válido
+     */
+    private static MeshGeometry openBaked(String path) throws IOException {
+        int dot = path.lastIndexOf('.');
+        if(dot < 0) return null;
+        InputStream is;
+        try {
+            is = MainApplication.getInstance().getAssets().open(path.substring(0, dot) + ".cmesh");
+        } catch(IOException e) {
+            return null;
         }
-        ibo = new IBO(indicesArray);
+        return MeshGeometry.read(is);
     }
 
     /**
      * @brief Carga una librería de materiales en formato MTL
      * @param path          Ruta del archivo MTL
      * @param materials     Lista de materiales (salida)
+     * @param data          Datos del modelo (salida)
      * @throws IOException  Si no se encuentra el archivo
      */
-    private void loadMtl(String path, HashMap<String, Material> materials) throws IOException {
+    private static void loadMtl(String path, HashMap<String, Material> materials, Data data) throws IOException {
 
         // Abre el archivo
         BufferedReader reader = new BufferedReader(new InputStreamReader(MainApplication.getInstance().getAssets().open(path)));
@@ -205,17 +322,25 @@ public class ObjMesh extends Mesh {
             } else if(lineTokens[0].equals("d")) {
                 curMaterial.setAlpha(Float.parseFloat(lineTokens[1]));
             } else if(lineTokens[0].equals("map_Kd")) {
-                curMaterial.setTexture(new Texture("texture/" + lineTokens[1]));
+                TextureAtlas atlas = TextureAtlas.getInstance();
+                float[] region = (atlas != null) ? atlas.getRegion(lineTokens[1]) : null;
+                if(region != null) {
+                    curMaterial.setAtlasRegion(region);
+                } else {
+                    String texturePath = "texture/" + lineTokens[1];
+                    data.texturePaths.put(curMaterial, texturePath);
+                    ResourceManager.getInstance().getTextureData(texturePath);  // Decodifica ya
+                }
             } else if(lineTokens[0].equals("Ns")) {
                 curMaterial.setShininess(Float.parseFloat(lineTokens[1]));
             }
         }
 
         // Guarda los materiales
-        this.materials = new Material[materials.size()];
+        data.materials = new Material[materials.size()];
         int i = 0;
         for(Map.Entry<String, Material> m : materials.entrySet()) {
-            this.materials[i] = m.getValue();
+            data.materials[i] = m.getValue();
             i++;
         }
 
@@ -0,0 +1,328 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file ParticleSystem.java
+ * @brief Partículas de los goles (confeti) y de los choques fuertes (chispas)
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+
+import com.dam.chapas.app.MainApplication;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * @class ParticleSystem
+ * @details Las partículas vivas se guardan compactadas al principio de arrays de tamaño fijo (al
+ * morir una, la última ocupa su hueco) y se dibujan como puntos en una sola llamada, con un
+ * StreamVBO. No se reserva memoria por fotograma. El coste está acotado: nunca hay más de
+ * getBudget() partículas vivas y cada fotograma crea como mucho MAX_SPAWN_PER_FRAME, así que una
+ * ráfaga grande se reparte entre varios fotogramas. Los efectos se pueden pedir desde cualquier
+ * hilo; se crean en el siguiente update.
+ */
+public class ParticleSystem {
+
+    public static final int MAX_PARTICLES = 1024;
+    private static final int MAX_SPAWN_PER_FRAME = 96;
+    private static final int MAX_EMITTERS = 8;              /**< Efectos pendientes a la vez */
+    private static final int FLOATS_PER_VERTEX = 8;         /**< x, y, z, tamaño, r, g, b, a */
+    private static final float MAX_STEP = 0.1f;             /**< Paso máximo de la simulación, en segundos */
+    private static final float GRAVITY = -9.8f;
+    private static final float FADE_TIME = 0.5f;            /**< Segundos de desvanecimiento al final */
+
+    private static final int CONFETTI = 0;
+    private static final int CONFETTI_COUNT = 400;
+    private static final float CONFETTI_SPEED = 5.0f;
+    private static final float CONFETTI_DRAG = 2.5f;        /**< Frenado del aire, cae despacio */
+    private static final float CONFETTI_SIZE = 0.06f;
+    private static final float CONFETTI_LIFE = 3.0f;
+    private static final float[] CONFETTI_COLORS = new float[] {
+            1.0f, 0.85f, 0.1f,   0.9f, 0.15f, 0.2f,   0.15f, 0.45f, 1.0f,
+            0.2f, 0.85f, 0.3f,   1.0f, 1.0f, 1.0f,    1.0f, 0.4f, 0.8f,
+    };
+
+    private static final int SPARKS = 1;
+    private static final float SPARKS_PER_SPEED = 12.0f;    /**< Chispas por unidad de velocidad del choque */
+    private static final int MAX_SPARKS = 48;
+    private static final float SPARK_SPEED = 1.5f;          /**< Velocidad de las chispas por unidad de velocidad del choque */
+    private static final float SPARK_DRAG = 3.0f;
+    private static final float SPARK_SIZE = 0.03f;
+    private static final float SPARK_LIFE = 0.4f;
+
+    // Partículas vivas
+    private final float[] position = new float[MAX_PARTICLES * 3];
+    private final float[] velocity = new float[MAX_PARTICLES * 3];
+    private final float[] color = new float[MAX_PARTICLES * 3];
+    private final float[] size = new float[MAX_PARTICLES];
+    private final float[] drag = new float[MAX_PARTICLES];
+    private final float[] life = new float[MAX_PARTICLES];  /**< Segundos que le quedan */
+    private int count = 0;
+    private int budget = MAX_PARTICLES;
+
+    // Efectos pendientes de crear
+    private final int[] emitterType = new int[MAX_EMITTERS];
+    private final float[] emitterPosition = new float[MAX_EMITTERS * 3];
+    private final float[] emitterStrength = new float[MAX_EMITTERS];
+    private final int[] emitterRemaining = new int[MAX_EMITTERS];
+    private int nemitters = 0;
+
+    private final float[] vertices = new float[MAX_PARTICLES * FLOATS_PER_VERTEX];
+    private final StreamVBO vbo;
+    private final ShaderProgram shader;
+    private final Random random = new Random();
+
+    /**
+     * @brief Constructor del sistema de partículas (debe llamarse desde el hilo de OpenGL)
+     * @throws IOException      Si no se encuentra el shader
+     * @throws RuntimeException Si no se ha podido cargar el shader
+     */
+    public ParticleSystem() throws IOException, RuntimeException {
+        shader = ResourceManager.getInstance().acquireShader("shader/particle.vs.glsl", "shader/particle.fs.glsl");
+        vbo = new StreamVBO(MAX_PARTICLES * 2, FLOATS_PER_VERTEX);
+    }
+
+    /**
+     * @brief Lanza confeti desde un punto (se puede llamar desde cualquier hilo)
+     * @param x Posición X
+     * @param y Posición Y
+     * @param z Posición Z
+     */
+    public synchronized void emitConfetti(float x, float y, float z) {
+        addEmitter(CONFETTI, x, y, z, 1.0f, CONFETTI_COUNT);
+    }
+
+    /**
+     * @brief Lanza chispas desde un choque (se puede llamar desde cualquier hilo)
+     * @param x     Posición X
+     * @param y     Posición Y
+     * @param z     Posición Z
+     * @param speed Velocidad relativa del choque
+     */
+    public synchronized void emitSparks(float x, float y, float z, float speed) {
+        addEmitter(SPARKS, x, y, z, speed, Math.min(MAX_SPARKS, (int) (speed * SPARKS_PER_SPEED)));
+    }
+
+    /**
+     * @brief Añade un efecto pendiente (si hay demasiados, se descarta)
+     */
+    private void addEmitter(int type, float x, float y, float z, float strength, int particles) {
+        if(nemitters == MAX_EMITTERS || particles <= 0) return;
+        emitterType[nemitters] = type;
+        emitterPosition[nemitters * 3] = x;
+        emitterPosition[nemitters * 3 + 1] = y;
+        emitterPosition[nemitters * 3 + 2] = z;
+        emitterStrength[nemitters] = strength;
+        emitterRemaining[nemitters] = particles;
+        nemitters++;
+    }
+
+    /**
+     * @brief Limita el número de partículas vivas (según el nivel de calidad)
+     * @param budget    Máximo de partículas, hasta MAX_PARTICLES
+     */
+    public synchronized void setBudget(int budget) {
+        this.budget = Math.max(0, Math.min(budget, MAX_PARTICLES));
+    }
+
+    /**
+     * @brief Obtén el máximo de partículas vivas
+     * @return  El máximo de partículas
+     */
+    public synchronized int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @brief Obtén si hay algún efecto en marcha
+     * @return  Si hay partículas vivas o pendientes de crear
+     */
+    public synchronized boolean isActive() {
+        return count > 0 || nemitters > 0;
+    }
+
+    /**
+     * @brief Crea las partículas pendientes y avanza la simulación
+     * @param delta Tiempo transcurrido, en segundos
+     */
+    public synchronized void update(float delta) {
+
+        delta = Math.min(delta, MAX_STEP);
+        spawn();
+
+        int i = 0;
+        while(i < count) {
+
+            // Las muertas se sustituyen por la última
+            life[i] -= delta;
+            if(life[i] <= 0.0f) {
+                count--;
+                copyParticle(count, i);
+                continue;
+            }
+
+            float damping = Math.max(0.0f, 1.0f - drag[i] * delta);
+            velocity[i * 3] *= damping;
+            velocity[i * 3 + 1] = (velocity[i * 3 + 1] + GRAVITY * delta) * damping;
+            velocity[i * 3 + 2] *= damping;
+            position[i * 3] += velocity[i * 3] * delta;
+            position[i * 3 + 1] += velocity[i * 3 + 1] * delta;
+            position[i * 3 + 2] += velocity[i * 3 + 2] * delta;
+
+            // Se quedan en el suelo hasta desvanecerse
+            if(position[i * 3 + 1] < 0.0f) {
+                position[i * 3 + 1] = 0.0f;
+                velocity[i * 3] = 0.0f;
+                velocity[i * 3 + 1] = 0.0f;
+                velocity[i * 3 + 2] = 0.0f;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * @brief Crea las partículas pendientes, sin pasarse del presupuesto por fotograma
+     */
+    private void spawn() {
+
+        int available = Math.min(MAX_SPAWN_PER_FRAME, budget - count);
+        int e = 0;
+        while(e < nemitters && available > 0) {
+
+            int n = Math.min(available, emitterRemaining[e]);
+            for(int k = 0; k < n; k++) {
+                if(emitterType[e] == CONFETTI) {
+                    spawnConfetti(e);
+                } else {
+                    spawnSpark(e);
+                }
+            }
+            available -= n;
+            emitterRemaining[e] -= n;
+
+            // Los efectos terminados se sustituyen por el último
+            if(emitterRemaining[e] == 0) {
+                nemitters--;
+                emitterType[e] = emitterType[nemitters];
+                System.arraycopy(emitterPosition, nemitters * 3, emitterPosition, e * 3, 3);
+                emitterStrength[e] = emitterStrength[nemitters];
+                emitterRemaining[e] = emitterRemaining[nemitters];
+            } else {
+                e++;
+            }
+        }
+    }
+
+    /**
+     * @brief Crea una partícula de confeti, hacia arriba y en abanico
+     * @param e Efecto que la crea
+     */
+    private void spawnConfetti(int e) {
+        int i = count++;
+        float angle = random.nextFloat() * 2.0f * (float) Math.PI;
+        float spread = random.nextFloat() * 0.5f;
+        float speed = CONFETTI_SPEED * (0.6f + 0.4f * random.nextFloat());
+        setParticle(i, e, speed * spread * (float) Math.cos(angle), speed,
+                speed * spread * (float) Math.sin(angle));
+        int c = random.nextInt(CONFETTI_COLORS.length / 3) * 3;
+        System.arraycopy(CONFETTI_COLORS, c, color, i * 3, 3);
+        size[i] = CONFETTI_SIZE * (0.7f + 0.6f * random.nextFloat());
+        drag[i] = CONFETTI_DRAG;
+        life[i] = CONFETTI_LIFE * (0.7f + 0.3f * random.nextFloat());
+    }
+
+    /**
+     * @brief Crea una chispa, en cualquier dirección del plano y algo hacia arriba
+     * @param e Efecto que la crea
+     */
+    private void spawnSpark(int e) {
+        int i = count++;
+        float angle = random.nextFloat() * 2.0f * (float) Math.PI;
+        float speed = SPARK_SPEED * emitterStrength[e] * (0.3f + 0.7f * random.nextFloat());
+        setParticle(i, e, speed * (float) Math.cos(angle), speed * random.nextFloat(),
+                speed * (float) Math.sin(angle));
+        color[i * 3] = 1.0f;
+        color[i * 3 + 1] = 0.6f + 0.4f * random.nextFloat();
+        color[i * 3 + 2] = 0.2f;
+        size[i] = SPARK_SIZE;
+        drag[i] = SPARK_DRAG;
+        life[i] = SPARK_LIFE * (0.5f + 0.5f * random.nextFloat());
+    }
+
+    /**
+     * @brief Coloca una partícula en la posición de un efecto
+     */
+    private void setParticle(int i, int e, float vx, float vy, float vz) {
+        System.arraycopy(emitterPosition, e * 3, position, i * 3, 3);
+        velocity[i * 3] = vx;
+        velocity[i * 3 + 1] = vy;
+        velocity[i * 3 + 2] = vz;
+    }
+
+    /**
+     * @brief Copia una partícula en otra posición de los arrays
+     */
+    private void copyParticle(int from, int to) {
+        System.arraycopy(position, from * 3, position, to * 3, 3);
+        System.arraycopy(velocity, from * 3, velocity, to * 3, 3);
+        System.arraycopy(color, from * 3, color, to * 3, 3);
+        size[to] = size[from];
+        drag[to] = drag[from];
+        life[to] = life[from];
+    }
+
+    /**
+     * @brief Dibuja todas las partículas en una llamada (debe llamarse desde el hilo de OpenGL)
+     * @details Se dibujan encima de la escena, sin escribir en el buffer de profundidad
+     */
+    public synchronized void draw() {
+
+        if(count == 0) return;
+        GL gl = GL.get();
+
+        int k = 0;
+        for(int i = 0; i < count; i++) {
+            vertices[k++] = position[i * 3];
+            vertices[k++] = position[i * 3 + 1];
+            vertices[k++] = position[i * 3 + 2];
+            vertices[k++] = size[i];
+            vertices[k++] = color[i * 3];
+            vertices[k++] = color[i * 3 + 1];
+            vertices[k++] = color[i * 3 + 2];
+            vertices[k++] = Math.min(1.0f, life[i] / FADE_TIME);
+        }
+        int base = vbo.begin(count);
+        vbo.put(vertices, 0, k);
+        vbo.end();
+
+        MatrixSystem mtx = MainApplication.getInstance().getMatrixSystem();
+        shader.enable();
+        shader.setUniformMatrix4fv(ShaderProgram.VP, mtx.getViewProjectionMatrix());
+        shader.setUniform1f(ShaderProgram.POINT_SCALE, mtx.getPixelScale());
+
+        gl.glEnable(GLES20.GL_BLEND);
+        gl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        gl.glDepthMask(false);
+
+        vbo.bind(0, 3, 0, 0);
+        vbo.bind(5, 1, 3, 0);
+        vbo.bind(4, 4, 4, 0);
+        gl.glDrawArrays(GLES20.GL_POINTS, base, count);
+        vbo.unbind(0);
+        vbo.unbind(5);
+        vbo.unbind(4);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        gl.glDepthMask(true);
+        gl.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * @brief Borra el sistema de partículas
+     */
+    public void delete() {
+        vbo.delete();
+        ResourceManager.getInstance().release(shader);
+    }
+}
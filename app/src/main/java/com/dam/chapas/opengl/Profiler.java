@@ -0,0 +1,296 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file Profiler.java
+ * @brief Medición del tiempo de cada fase del fotograma
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * @class Profiler
+ * @details Cada fase se mide con begin/end alrededor del código (debe llamarse desde el hilo de
+ * OpenGL). Se guarda la duración de cada fase en los últimos HISTORY fotogramas, de donde salen la
+ * media, el máximo y el histograma que muestra el overlay, y un anillo con los últimos eventos
+ * que se puede exportar en el formato de trazas de Chrome (chrome://tracing o Perfetto).
+ * Durante los fotogramas no se reserva memoria.
+ */
+public class Profiler {
+
+    public static final int FRAME = 0;          /**< Fotograma completo */
+    public static final int LOADING = 1;        /**< Carga de la partida */
+    public static final int QUEUE = 2;          /**< Llenado de la cola de dibujado */
+    public static final int UPDATE = 3;         /**< Actualización del estado del juego */
+    public static final int DRAW = 4;           /**< Dibujado de la escena */
+    public static final int HUD = 5;            /**< Dibujado de la interfaz */
+    public static final int PHYSICS = 6;        /**< Simulación de físicas */
+    public static final int GPU = 7;            /**< Tiempo de GPU, si se puede medir */
+    private static final int PHASES = 8;
+
+    private static final String[] NAMES = {
+            "frame", "loading", "queue", "update", "draw", "hud", "physics", "gpu"
+    };
+
+    private static final int HISTORY = 120;             /**< Fotogramas para las estadísticas */
+    private static final int MAX_EVENTS = 8192;         /**< Eventos para la traza */
+    private static final int OVERLAY_INTERVAL = 30;     /**< Fotogramas entre actualizaciones del overlay */
+    private static final float[] BUCKETS = { 1.0f, 2.0f, 4.0f, 8.0f, 16.0f, 33.0f };  /**< Límites del histograma, en ms */
+    private static final float OVERLAY_TEXT_SIZE = 14.0f;
+    private static final int OVERLAY_BACKGROUND = 0xA0000000;
+
+    // Fotograma actual
+    private final long[] phaseStart = new long[PHASES];
+    private final long[] frameTotal = new long[PHASES];
+    private final boolean[] frameRan = new boolean[PHASES];
+    private long frameStart = 0;
+
+    // Historial, en ms (-1 si la fase no se ejecutó)
+    private final float[][] history = new float[PHASES][HISTORY];
+    private int historyPos = 0;
+    private int frameCount = 0;
+
+    // Eventos para la traza
+    private final int[] eventPhase = new int[MAX_EVENTS];
+    private final long[] eventStart = new long[MAX_EVENTS];
+    private final long[] eventDuration = new long[MAX_EVENTS];
+    private int eventPos = 0;
+    private int eventCount = 0;
+
+    // GPU
+    private GpuTimer gpuTimer;
+
+    // Overlay
+    private final Hud hud;
+    private final int[] labels = new int[PHASES];
+    private final StringBuilder builder = new StringBuilder();
+    private final float[] histogram = new float[BUCKETS.length + 1];
+    private volatile boolean overlayVisible = false;
+
+    /**
+     * @brief Constructor del profiler
+     * @param hud   Interfaz en la que mostrar el overlay
+     */
+    public Profiler(Hud hud) {
+        this.hud = hud;
+        for(int phase = 0; phase < PHASES; phase++) {
+            labels[phase] = hud.addLabel(phase == 0 ? Hud.ANCHOR_TOP_RIGHT : Hud.ANCHOR_BELOW,
+                    phase == 0 ? -1 : labels[phase - 1], OVERLAY_TEXT_SIZE, Hud.STYLE_NORMAL,
+                    0xFFFFFFFF, OVERLAY_BACKGROUND);
+            for(int i = 0; i < HISTORY; i++) {
+                history[phase][i] = -1.0f;
+            }
+        }
+    }
+
+    /**
+     * @brief Crea las consultas de GPU (debe llamarse al crear cada contexto OpenGL)
+     */
+    public void onContextCreated() {
+        gpuTimer = new GpuTimer();
+    }
+
+    /**
+     * @brief Empieza un fotograma
+     */
+    public void beginFrame() {
+        for(int phase = 0; phase < PHASES; phase++) {
+            frameTotal[phase] = 0;
+            frameRan[phase] = false;
+        }
+        begin(FRAME);
+        frameStart = phaseStart[FRAME];
+        if(gpuTimer != null) {
+            gpuTimer.begin();
+        }
+    }
+
+    /**
+     * @brief Termina el fotograma y actualiza las estadísticas
+     */
+    public void endFrame() {
+        if(gpuTimer != null) {
+            gpuTimer.end();
+
+            // El resultado es de un fotograma anterior, se anota en el actual
+            long gpuTime = gpuTimer.poll();
+            if(gpuTime >= 0) {
+                frameTotal[GPU] = gpuTime;
+                frameRan[GPU] = true;
+                addEvent(GPU, frameStart, gpuTime);
+            }
+        }
+        end(FRAME);
+
+        for(int phase = 0; phase < PHASES; phase++) {
+            history[phase][historyPos] = frameRan[phase] ? frameTotal[phase] / 1000000.0f : -1.0f;
+        }
+        historyPos = (historyPos + 1) % HISTORY;
+
+        if(++frameCount % OVERLAY_INTERVAL == 0 && overlayVisible) {
+            updateOverlay();
+        }
+    }
+
+    /**
+     * @brief Empieza a medir una fase
+     * @param phase La fase
+     */
+    public void begin(int phase) {
+        phaseStart[phase] = System.nanoTime();
+    }
+
+    /**
+     * @brief Termina de medir una fase
+     * @param phase La fase
+     */
+    public void end(int phase) {
+        long duration = System.nanoTime() - phaseStart[phase];
+        frameTotal[phase] += duration;
+        frameRan[phase] = true;
+        addEvent(phase, phaseStart[phase], duration);
+    }
+
+    /**
+     * @brief Añade un evento al anillo de la traza
+     * @param phase     La fase
+     * @param start     Instante de inicio, en nanosegundos
+     * @param duration  Duración, en nanosegundos
+     */
+    private synchronized void addEvent(int phase, long start, long duration) {
+        eventPhase[eventPos] = phase;
+        eventStart[eventPos] = start;
+        eventDuration[eventPos] = duration;
+        eventPos = (eventPos + 1) % MAX_EVENTS;
+        eventCount = Math.min(eventCount + 1, MAX_EVENTS);
+    }
+
+    /**
+     * @brief Muestra u oculta el overlay (se puede llamar desde cualquier hilo)
+     * @param visible   Si se muestra
+     */
+    public void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+        for(int phase = 0; phase < PHASES; phase++) {
+            hud.setVisible(labels[phase], visible);
+        }
+    }
+
+    /**
+     * @brief Comprueba si el overlay está visible
+     * @return  Si está visible
+     */
+    public boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    /**
+     * @brief Escribe la media, el máximo y el histograma de cada fase en el overlay
+     */
+    private void updateOverlay() {
+        for(int phase = 0; phase < PHASES; phase++) {
+            float sum = 0.0f;
+            float max = 0.0f;
+            int samples = 0;
+            for(int b = 0; b < histogram.length; b++) {
+                histogram[b] = 0.0f;
+            }
+            for(int i = 0; i < HISTORY; i++) {
+                float ms = history[phase][i];
+                if(ms < 0.0f) continue;
+                sum += ms;
+                max = Math.max(max, ms);
+                samples++;
+                int b = 0;
+                while(b < BUCKETS.length && ms >= BUCKETS[b]) b++;
+                histogram[b]++;
+            }
+
+            builder.setLength(0);
+            builder.append(NAMES[phase]).append(' ');
+            if(samples == 0) {
+                builder.append('-');
+            } else {
+                appendMs(builder, sum / samples);
+                builder.append(" / ");
+                appendMs(builder, max);
+                builder.append(" ms");
+                for(int b = 0; b < histogram.length; b++) {
+                    histogram[b] /= samples;
+                }
+            }
+            hud.setText(labels[phase], builder);
+            hud.setBars(labels[phase], histogram, samples == 0 ? 0 : histogram.length);
+        }
+    }
+
+    /**
+     * @brief Añade un tiempo en ms con un decimal, sin reservar memoria
+     * @param sb    Donde añadirlo
+     * @param ms    El tiempo
+     */
+    private static void appendMs(StringBuilder sb, float ms) {
+        int tenths = Math.round(ms * 10.0f);
+        sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    /**
+     * @brief Exporta los últimos eventos en el formato de trazas de Chrome (se puede llamar desde cualquier hilo)
+     * @param file  Fichero de destino
+     * @throws IOException  Si no se ha podido escribir
+     */
+    public void exportTrace(File file) throws IOException {
+
+        // Copia los eventos para no bloquear el hilo de OpenGL mientras se escribe
+        int count;
+        int[] phases;
+        long[] starts;
+        long[] durations;
+        synchronized(this) {
+            count = eventCount;
+            phases = new int[count];
+            starts = new long[count];
+            durations = new long[count];
+            int first = (eventPos - count + MAX_EVENTS) % MAX_EVENTS;
+            for(int i = 0; i < count; i++) {
+                int e = (first + i) % MAX_EVENTS;
+                phases[i] = eventPhase[e];
+                starts[i] = eventStart[e];
+                durations[i] = eventDuration[e];
+            }
+        }
+
+        long origin = (count > 0) ? starts[0] : 0;
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("{\"traceEvents\":[\n");
+            for(int i = 0; i < count; i++) {
+                writer.write("{\"name\":\"" + NAMES[phases[i]] + "\",\"cat\":\"" +
+                        (phases[i] == GPU ? "gpu" : "cpu") + "\",\"ph\":\"X\",\"ts\":" +
+                        (starts[i] - origin) / 1000 + ",\"dur\":" + durations[i] / 1000 +
+                        ",\"pid\":1,\"tid\":" + (phases[i] == GPU ? 2 : 1) + "}");
+                writer.write(i + 1 < count ? ",\n" : "\n");
+            }
+            writer.write("],\"displayTimeUnit\":\"ms\"}\n");
+        } finally {
+            writer.close();
+        }
+        Log.d("CHAPAS", "Trace exported: " + count + " events to " + file.getPath());
+    }
+
+    /**
+     * @brief Libera las consultas de GPU
+     */
+    public void delete() {
+        if(gpuTimer != null) {
+            gpuTimer.delete();
+            gpuTimer = null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file ProgramBinaryCache.java
+ * @brief Caché en disco de los programas ya enlazados
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.dam.chapas.app.MainApplication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @class ProgramBinaryCache
+ * @details Guarda el binario de cada programa enlazado para no tener que compilarlo en los
+ * siguientes arranques. Java no expone las funciones de OES_get_program_binary, así que se usan
+ * glGetProgramBinary/glProgramBinary de OpenGL ES 3, que sólo están si el contexto es ES 3 y el
+ * driver ofrece algún formato binario. El nombre de cada fichero sale del código de los shaders
+ * y de la versión del driver, así que al actualizarse éste se vuelven a compilar. Todas las
+ * funciones deben llamarse desde el hilo de OpenGL.
+ */
+public final class ProgramBinaryCache {
+
+    private static final String DIRECTORY = "programs";
+    private static final int MAGIC = 0x43485052;        /**< "CHPR" */
+
+    private static Boolean supported = null;            /**< Se comprueba con el primer contexto */
+    private static String driver = null;
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * @brief Comprueba si el contexto permite guardar y cargar binarios
+     * @return  Si se pueden usar los binarios
+     */
+    public static boolean isSupported() {
+        if(supported == null) {
+            GL gl = GL.get();
+            String version = gl.glGetString(GLES20.GL_VERSION);
+            int[] formats = new int[1];
+            if(version != null && version.startsWith("OpenGL ES 3") && getDirectory() != null) {
+                gl.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+            }
+            supported = formats[0] > 0;
+            driver = gl.glGetString(GLES20.GL_RENDERER) + "|" + version;
+        }
+        return supported;
+    }
+
+    /**
+     * @brief Intenta crear un programa a partir de su binario guardado
+     * @param vertexSource      Código del vertex shader
+     * @param fragmentSource    Código del fragment shader
+     * @return  El programa enlazado, o 0 si no está en caché o el driver lo rechaza
+     */
+    public static int load(String vertexSource, String fragmentSource) {
+
+        if(!isSupported()) return 0;
+        File file = getFile(vertexSource, fragmentSource);
+        if(file == null || !file.exists()) return 0;
+
+        GL gl = GL.get();
+        int program = 0;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if(in.readInt() != MAGIC) {
+                    throw new IOException("Bad program binary header");
+                }
+                int format = in.readInt();
+                int length = in.readInt();
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+                binary.put(bytes).position(0);
+
+                program = gl.glCreateProgram();
+                gl.glProgramBinary(program, format, binary, length);
+                int[] linkStatus = new int[] {GLES20.GL_FALSE};
+                gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+                if(linkStatus[0] != GLES20.GL_TRUE) {
+                    throw new IOException("Program binary rejected by the driver");
+                }
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            Log.d("CHAPAS", "Program binary discarded: " + e.getMessage());
+            if(program != 0) {
+                gl.glDeleteProgram(program);
+            }
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * @brief Pide al driver que permita leer el binario (antes de enlazar)
+     * @param program   El programa
+     */
+    public static void prepare(int program) {
+        if(isSupported()) {
+            GL.get().glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+    }
+
+    /**
+     * @brief Guarda el binario de un programa recién enlazado
+     * @param program           El programa
+     * @param vertexSource      Código del vertex shader
+     * @param fragmentSource    Código del fragment shader
+     */
+    public static void store(int program, String vertexSource, String fragmentSource) {
+
+        if(!isSupported()) return;
+        File file = getFile(vertexSource, fragmentSource);
+        if(file == null) return;
+
+        GL gl = GL.get();
+        int[] length = new int[1];
+        int[] format = new int[1];
+        gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if(length[0] <= 0) return;
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        gl.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        byte[] bytes = new byte[length[0]];
+        binary.position(0);
+        binary.get(bytes);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(format[0]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } catch(IOException e) {
+            Log.e("CHAPAS", "Could not store program binary: " + e.toString());
+            file.delete();
+        }
+    }
+
+    /**
+     * @brief Obtén el directorio de la caché, creándolo si no existe
+     * @return  El directorio, o null si no hay contexto de la aplicación
+     */
+    private static File getDirectory() {
+        if(MainApplication.getInstance().getAppContext() == null) return null;
+        File dir = new File(MainApplication.getInstance().getAppContext().getCacheDir(), DIRECTORY);
+        if(!dir.isDirectory() && !dir.mkdirs()) return null;
+        return dir;
+    }
+
+    /**
+     * @brief Obtén el fichero de un programa
+     * @param vertexSource      Código del vertex shader
+     * @param fragmentSource    Código del fragment shader
+     * @return  El fichero, o null si no hay directorio
+     */
+    private static File getFile(String vertexSource, String fragmentSource) {
+        File dir = getDirectory();
+        if(dir == null) return null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(driver.getBytes("UTF-8"));
+            digest.update(vertexSource.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for(byte b : digest.digest()) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(dir, name.append(".bin").toString());
+        } catch(NoSuchAlgorithmException | IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file QualityGovernor.java
+ * @brief Elección del nivel de calidad según el tiempo de cada fotograma
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * @class QualityGovernor
+ * @details Cada nivel incluye los recortes de los anteriores. Se mide el intervalo medio entre
+ * fotogramas seguidos en ventanas de WINDOW fotogramas: si una ventana no llega a 55 fps se baja
+ * un nivel enseguida, y sólo se prueba a subir tras UPGRADE_WINDOWS ventanas seguidas a 60 fps.
+ * Si al subir se vuelve a bajar enseguida, la siguiente prueba espera el doble. Las ventanas
+ * justo después de un cambio no cuentan (compilación de shaders, cambio de resolución...). El
+ * nivel elegido se guarda por modelo de dispositivo, así que la siguiente partida empieza en él.
+ */
+public class QualityGovernor {
+
+    public static final int HIGH = 0;               /**< Calidad completa */
+    public static final int NO_SPECULAR = 1;        /**< Sin brillos especulares */
+    public static final int VERTEX_LIGHTING = 2;    /**< Iluminación por vértice */
+    public static final int LOW_RESOLUTION = 3;     /**< Superficie de dibujado reducida */
+    public static final int LOW_DETAIL = 4;         /**< Estadio con niveles de detalle más simplificados */
+    private static final int TIERS = 5;
+
+    private static final String PREFERENCES = "quality";
+    private static final int WINDOW = 60;                           /**< Fotogramas por medición */
+    private static final long DOWNGRADE_TIME = 1000000000L / 55;    /**< Intervalo medio a partir del que se baja */
+    private static final long UPGRADE_TIME = 1000000000L / 58;      /**< Intervalo medio por debajo del que se puede subir */
+    private static final int UPGRADE_WINDOWS = 20;                  /**< Ventanas buenas seguidas antes de subir */
+    private static final int MAX_UPGRADE_WINDOWS = 320;
+    private static final int COOLDOWN_WINDOWS = 2;                  /**< Ventanas ignoradas tras un cambio */
+
+    private final SharedPreferences preferences;
+    private final String key;
+    private int tier;
+    private long windowTime = 0;
+    private int windowFrames = 0;
+    private int goodWindows = 0;
+    private int upgradeWindows = UPGRADE_WINDOWS;
+    private int cooldown = COOLDOWN_WINDOWS;
+    private boolean upgraded = false;       /**< Si el último cambio fue una subida */
+
+    /**
+     * @brief Constructor del gobernador, que recupera el nivel guardado para este dispositivo
+     * @param context   Contexto de la aplicación
+     */
+    public QualityGovernor(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        key = "tier_" + Build.MANUFACTURER + "_" + Build.MODEL;
+        tier = Math.max(HIGH, Math.min(TIERS - 1, preferences.getInt(key, HIGH)));
+        upgradeWindows = preferences.getInt(key + "_wait", UPGRADE_WINDOWS);
+    }
+
+    /**
+     * @brief Obtén el nivel actual
+     * @return  El nivel de calidad
+     */
+    public int getTier() {
+        return tier;
+    }
+
+    /**
+     * @brief Anota el intervalo entre dos fotogramas seguidos (sin pausas entre medias)
+     * @param frameTime Intervalo en nanosegundos
+     * @return  Si ha cambiado el nivel
+     */
+    public boolean addFrame(long frameTime) {
+
+        windowTime += frameTime;
+        if(++windowFrames < WINDOW) {
+            return false;
+        }
+        long average = windowTime / windowFrames;
+        windowTime = 0;
+        windowFrames = 0;
+        if(cooldown > 0) {
+            cooldown--;
+            return false;
+        }
+
+        // Baja enseguida si no se llega a 55 fps
+        if(average > DOWNGRADE_TIME) {
+            goodWindows = 0;
+            if(tier == TIERS - 1) {
+                return false;
+            }
+
+            // Una subida que no aguanta hace esperar más a la siguiente
+            if(upgraded) {
+                upgradeWindows = Math.min(upgradeWindows * 2, MAX_UPGRADE_WINDOWS);
+            }
+            return setTier(tier + 1, false, average);
+        }
+
+        // Sube sólo tras mucho tiempo holgado
+        if(average < UPGRADE_TIME) {
+            if(++goodWindows >= upgradeWindows && tier > HIGH) {
+                goodWindows = 0;
+                return setTier(tier - 1, true, average);
+            }
+        } else {
+            goodWindows = 0;
+        }
+        return false;
+    }
+
+    /**
+     * @brief Cambia de nivel y lo guarda
+     * @param tier      El nuevo nivel
+     * @param upgrade   Si es una subida
+     * @param average   Intervalo medio medido, para el registro
+     * @return  Siempre true
+     */
+    private boolean setTier(int tier, boolean upgrade, long average) {
+        Log.d("CHAPAS", "Quality tier " + this.tier + " -> " + tier + " (" + average / 1000 + " us/frame)");
+        this.tier = tier;
+        upgraded = upgrade;
+        cooldown = COOLDOWN_WINDOWS;
+        preferences.edit().putInt(key, tier).putInt(key + "_wait", upgradeWindows).apply();
+        return true;
+    }
+
+    /**
+     * @brief Descarta la medición en curso (tras una pausa o una carga)
+     */
+    public void reset() {
+        windowTime = 0;
+        windowFrames = 0;
+        cooldown = Math.max(cooldown, 1);
+    }
+}
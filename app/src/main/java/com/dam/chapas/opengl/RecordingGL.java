@@ -0,0 +1,592 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file RecordingGL.java
+ * @brief Implementación de GL que no dibuja nada y cuenta las llamadas
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @class RecordingGL
+ * @details Sirve para ejecutar el renderizador en una JVM sin GPU: mide el coste en CPU de
+ * enviar un fotograma y permite comprobar cuántas llamadas de dibujado, cambios de estado y
+ * bytes subidos genera. Los objetos se crean con identificadores consecutivos, los shaders
+ * siempre compilan y las consultas de estado devuelven valores holgados. Los uniforms activos de
+ * un programa son los declarados en el código de sus shaders (sin tener en cuenta los #ifdef). Un cambio de estado
+ * que deja el mismo valor que había (incluido el valor de un uniform) se cuenta además como redundante. Opcionalmente guarda el
+ * nombre de cada llamada.
+ */
+public class RecordingGL extends GL {
+
+    private static final int MAX_INTEGER = 1024;    /**< Valor devuelto por glGetIntegerv */
+    private static final Pattern UNIFORM = Pattern.compile("uniform\\s+\\w+\\s+(\\w+)\\s*(\\[\\s*\\d+\\s*\\])?\\s*;");
+
+    // Contadores
+    private int calls = 0;
+    private int drawCalls = 0;
+    private int indices = 0;
+    private int stateChanges = 0;
+    private int redundantStateChanges = 0;
+    private long uploadedBytes = 0;
+
+    // Estado actual, para detectar cambios redundantes
+    private final HashSet<Integer> enabled = new HashSet<>();
+    private int program = 0;
+    private int activeTexture = GLES20.GL_TEXTURE0;
+    private final int[] boundTextures = new int[32];
+    private int arrayBuffer = 0;
+    private int elementBuffer = 0;
+    private boolean depthMask = true;
+    private final HashMap<Integer, float[]> uniformValues = new HashMap<>();   /**< Por posición (únicas entre programas) */
+
+    private int nextName = 1;
+    private final HashMap<Integer, String> shaderSources = new HashMap<>();
+    private final HashMap<Integer, List<String>> programUniforms = new HashMap<>();
+    private List<String> log = null;
+
+    /**
+     * @brief Activa o desactiva el registro de llamadas
+     * @param enabled   Si se guarda el nombre de cada llamada
+     */
+    public void setLogging(boolean enabled) {
+        log = enabled ? new ArrayList<String>() : null;
+    }
+
+    /**
+     * @brief Obtén las llamadas registradas desde el último reset
+     * @return  Los nombres de las llamadas, o null si no se registran
+     */
+    public List<String> getLog() {
+        return log;
+    }
+
+    /**
+     * @brief Pone a cero los contadores (el estado actual se conserva)
+     */
+    public void reset() {
+        calls = 0;
+        drawCalls = 0;
+        indices = 0;
+        stateChanges = 0;
+        redundantStateChanges = 0;
+        uploadedBytes = 0;
+        if(log != null) {
+            log.clear();
+        }
+    }
+
+    /**
+     * @brief Obtén el número total de llamadas
+     * @return  Las llamadas desde el último reset
+     */
+    public int getCalls() {
+        return calls;
+    }
+
+    /**
+     * @brief Obtén el número de llamadas de dibujado
+     * @return  Las llamadas de dibujado desde el último reset
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * @brief Obtén el número de índices dibujados
+     * @return  Los índices dibujados desde el último reset
+     */
+    public int getIndices() {
+        return indices;
+    }
+
+    /**
+     * @brief Obtén el número de cambios de estado (programas, texturas, buffers, capacidades...)
+     * @return  Los cambios de estado desde el último reset
+     */
+    public int getStateChanges() {
+        return stateChanges;
+    }
+
+    /**
+     * @brief Obtén cuántos de los cambios de estado no cambiaron nada
+     * @return  Los cambios redundantes desde el último reset
+     */
+    public int getRedundantStateChanges() {
+        return redundantStateChanges;
+    }
+
+    /**
+     * @brief Obtén los bytes subidos en buffers y texturas
+     * @return  Los bytes subidos desde el último reset
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * @brief Anota una llamada
+     * @param name  Nombre de la función
+     */
+    private void record(String name) {
+        calls++;
+        if(log != null) {
+            log.add(name);
+        }
+    }
+
+    /**
+     * @brief Guarda el valor de un uniform
+     * @param location  Posición del uniform
+     * @param v         Valores
+     * @param offset    Primer valor
+     * @param count     Número de valores
+     * @return  Si el valor es distinto del que tenía
+     */
+    private boolean setUniform(int location, float[] v, int offset, int count) {
+        float[] value = uniformValues.get(location);
+        if(value != null && value.length == count) {
+            boolean changed = false;
+            for(int i = 0; i < count; i++) {
+                if(value[i] != v[offset + i]) {
+                    value[i] = v[offset + i];
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+        value = new float[count];
+        System.arraycopy(v, offset, value, 0, count);
+        uniformValues.put(location, value);
+        return true;
+    }
+
+    /**
+     * @brief Anota un cambio de estado
+     * @param name      Nombre de la función
+     * @param changed   Si el valor es distinto del actual
+     */
+    private void recordState(String name, boolean changed) {
+        record(name);
+        stateChanges++;
+        if(!changed) {
+            redundantStateChanges++;
+        }
+    }
+
+    /**
+     * @brief Anota una subida de datos
+     * @param name  Nombre de la función
+     * @param bytes Bytes subidos
+     */
+    private void recordUpload(String name, long bytes) {
+        record(name);
+        uploadedBytes += bytes;
+    }
+
+    /**
+     * @brief Genera identificadores consecutivos
+     */
+    private void generate(int n, int[] names, int offset) {
+        for(int i = 0; i < n; i++) {
+            names[offset + i] = nextName++;
+        }
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        recordState("glEnable", enabled.add(cap));
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        recordState("glDisable", enabled.remove(cap));
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        recordState("glBlendFunc", true);
+    }
+
+    @Override
+    public void glDepthMask(boolean flag) {
+        recordState("glDepthMask", flag != depthMask);
+        depthMask = flag;
+    }
+
+    @Override
+    public void glDepthFunc(int func) {
+        recordState("glDepthFunc", true);
+    }
+
+    @Override
+    public void glFrontFace(int mode) {
+        recordState("glFrontFace", true);
+    }
+
+    @Override
+    public void glCullFace(int mode) {
+        recordState("glCullFace", true);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        recordState("glViewport", true);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        recordState("glClearColor", true);
+    }
+
+    @Override
+    public void glClearDepthf(float depth) {
+        recordState("glClearDepthf", true);
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record("glClear");
+    }
+
+    @Override
+    public Object getCurrentContext() {
+        return this;    // Cada RecordingGL es un contexto
+    }
+
+    @Override
+    public int glGetError() {
+        record("glGetError");
+        return GLES20.GL_NO_ERROR;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        record("glGetIntegerv");
+        params[offset] = MAX_INTEGER;
+    }
+
+    @Override
+    public String glGetString(int name) {
+        record("glGetString");
+        return (name == GLES20.GL_VERSION) ? "OpenGL ES 2.0 RecordingGL" : "";
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        record("glGenBuffers");
+        generate(n, buffers, offset);
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        record("glDeleteBuffers");
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        if(target == GLES20.GL_ARRAY_BUFFER) {
+            recordState("glBindBuffer", buffer != arrayBuffer);
+            arrayBuffer = buffer;
+        } else {
+            recordState("glBindBuffer", buffer != elementBuffer);
+            elementBuffer = buffer;
+        }
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        recordUpload("glBufferData", (data != null) ? size : 0);
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        recordUpload("glBufferSubData", size);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        recordState("glEnableVertexAttribArray", true);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        recordState("glDisableVertexAttribArray", true);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+        recordState("glVertexAttribPointer", true);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        record("glDrawElements");
+        drawCalls++;
+        indices += count;
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record("glDrawArrays");
+        drawCalls++;
+        indices += count;
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        record("glGenTextures");
+        generate(n, textures, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record("glDeleteTextures");
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        recordState("glActiveTexture", texture != activeTexture);
+        activeTexture = texture;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        int unit = activeTexture - GLES20.GL_TEXTURE0;
+        recordState("glBindTexture", texture != boundTextures[unit]);
+        boundTextures[unit] = texture;
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        recordState("glTexParameteri", true);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        recordUpload("glTexImage2D", (pixels != null) ? pixels.capacity() : 0);
+    }
+
+    @Override
+    public void glCompressedTexImage2D(int target, int level, int internalformat, int width, int height,
+                                       int border, int imageSize, Buffer data) {
+        recordUpload("glCompressedTexImage2D", imageSize);
+    }
+
+    @Override
+    public void glGenerateMipmap(int target) {
+        record("glGenerateMipmap");
+    }
+
+    @Override
+    public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        recordUpload("texImage2D", (long) bitmap.getRowBytes() * bitmap.getHeight());
+    }
+
+    @Override
+    public void loadTexture(int target, int level, int border, int fallbackFormat, int fallbackType,
+                            ETC1Util.ETC1Texture texture) {
+        recordUpload("loadTexture", texture.getData().capacity());
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        record("glCreateShader");
+        return nextName++;
+    }
+
+    @Override
+    public void glShaderSource(int shader, String source) {
+        record("glShaderSource");
+        shaderSources.put(shader, source);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        record("glCompileShader");
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        record("glGetShaderiv");
+        params[offset] = GLES20.GL_TRUE;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        record("glGetShaderInfoLog");
+        return "";
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        record("glDeleteShader");
+        shaderSources.remove(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        record("glCreateProgram");
+        return nextName++;
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        record("glAttachShader");
+        List<String> uniforms = programUniforms.get(program);
+        if(uniforms == null) {
+            uniforms = new ArrayList<>();
+            programUniforms.put(program, uniforms);
+        }
+        String source = shaderSources.get(shader);
+        if(source == null) return;
+
+        // Los arrays se devuelven como "nombre[0]", igual que los drivers
+        Matcher matcher = UNIFORM.matcher(source);
+        while(matcher.find()) {
+            String name = matcher.group(1) + (matcher.group(2) != null ? "[0]" : "");
+            if(!uniforms.contains(name)) {
+                uniforms.add(name);
+            }
+        }
+    }
+
+    @Override
+    public void glDetachShader(int program, int shader) {
+        record("glDetachShader");
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        record("glBindAttribLocation");
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        record("glLinkProgram");
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        record("glGetProgramiv");
+        List<String> uniforms = programUniforms.get(program);
+        if(pname == GLES20.GL_ACTIVE_UNIFORMS) {
+            params[offset] = (uniforms != null) ? uniforms.size() : 0;
+        } else {
+            params[offset] = GLES20.GL_TRUE;
+        }
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        record("glGetProgramInfoLog");
+        return "";
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        record("glDeleteProgram");
+        programUniforms.remove(program);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        recordState("glUseProgram", program != this.program);
+        this.program = program;
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record("glGetUniformLocation");
+        return nextName++;
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        recordState("glUniform1i", setUniform(location, new float[] {x}, 0, 1));
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        recordState("glUniform1f", setUniform(location, new float[] {x}, 0, 1));
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, float[] v, int offset) {
+        recordState("glUniform3fv", setUniform(location, v, offset, 3 * count));
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        recordState("glUniform4fv", setUniform(location, v, offset, 4 * count));
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        recordState("glUniformMatrix4fv", setUniform(location, value, offset, 16 * count));
+    }
+
+    @Override
+    public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+        record("glGetActiveUniform");
+        size[sizeOffset] = 1;
+        type[typeOffset] = 0;
+        return programUniforms.get(program).get(index);
+    }
+
+    @Override
+    public void glProgramParameteri(int program, int pname, int value) {
+        record("glProgramParameteri");
+    }
+
+    @Override
+    public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+                                   int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        record("glGetProgramBinary");
+        length[lengthOffset] = 0;
+    }
+
+    @Override
+    public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        recordUpload("glProgramBinary", length);
+    }
+
+    @Override
+    public void glGenQueries(int n, int[] ids, int offset) {
+        record("glGenQueries");
+        generate(n, ids, offset);
+    }
+
+    @Override
+    public void glDeleteQueries(int n, int[] ids, int offset) {
+        record("glDeleteQueries");
+    }
+
+    @Override
+    public void glBeginQuery(int target, int id) {
+        record("glBeginQuery");
+    }
+
+    @Override
+    public void glEndQuery(int target) {
+        record("glEndQuery");
+    }
+
+    @Override
+    public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        record("glGetQueryObjectuiv");
+        params[offset] = 0;
+    }
+}
@@ -0,0 +1,279 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file RenderQueue.java
+ * @brief Cola de dibujado ordenada por material y profundidad
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+
+import com.dam.chapas.app.MainApplication;
+
+import java.util.Arrays;
+
+/**
+ * @class RenderQueue
+ * @details Cada elemento es un grupo de material de un Mesh (o de un MeshBatch). Se ordenan con
+ * una clave de 64 bits. Los opacos se agrupan primero por estado, para cambiar de programa y
+ * textura lo menos posible, y dentro de cada estado van de delante a atrás:
+ *  - bit 62:       0 (opaco)
+ *  - bits 54-61:   programa
+ *  - bits 40-53:   textura
+ *  - bits 16-39:   distancia a la cámara
+ *  - bits 0-15:    índice del elemento en la cola
+ *
+ * Los transparentes van después y tienen que dibujarse de atrás a delante, así que en ellos la
+ * distancia manda sobre el estado:
+ *  - bit 62:       1 (transparente)
+ *  - bits 38-61:   distancia a la cámara, invertida
+ *  - bits 30-37:   programa
+ *  - bits 16-29:   textura
+ *  - bits 0-15:    índice del elemento en la cola
+ */
+public class RenderQueue {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float MAX_DEPTH = 100.0f;
+    private static final long DEPTH_MASK = (1L << 24) - 1;
+    private static final long PROGRAM_MASK = (1L << 8) - 1;
+    private static final long TEXTURE_MASK = (1L << 14) - 1;
+    private static final long INDEX_MASK = (1L << 16) - 1;
+    private static final long STATE_MASK = (PROGRAM_MASK << 14) | TEXTURE_MASK;   /**< Programa y textura */
+    private static final long TRANSPARENT_BIT = 1L << 62;
+
+    private long[] keys;
+    private Mesh[] meshes;
+    private MeshBatch[] batches;
+    private int[] groups;
+    private ShaderProgram[] shaders;
+    private ShaderProgram[] batchShaders;
+    private int count;
+    private Camera camera;
+    private Frustum frustum;
+    private float pixelScale;
+
+    private int drawCalls;
+    private int culled;
+    private int stateChanges;
+    private long sortTime;
+
+    /**
+     * @brief Constructor de la cola de dibujado
+     */
+    public RenderQueue() {
+        allocate(INITIAL_CAPACITY);
+        count = 0;
+    }
+
+    /**
+     * @brief Reserva espacio para los elementos de la cola
+     * @param capacity  Número máximo de elementos
+     */
+    private void allocate(int capacity) {
+        capacity = (int) Math.min(capacity, INDEX_MASK + 1);
+        keys = (keys == null) ? new long[capacity] : Arrays.copyOf(keys, capacity);
+        meshes = (meshes == null) ? new Mesh[capacity] : Arrays.copyOf(meshes, capacity);
+        batches = (batches == null) ? new MeshBatch[capacity] : Arrays.copyOf(batches, capacity);
+        groups = (groups == null) ? new int[capacity] : Arrays.copyOf(groups, capacity);
+        shaders = (shaders == null) ? new ShaderProgram[capacity] : Arrays.copyOf(shaders, capacity);
+        batchShaders = (batchShaders == null) ? new ShaderProgram[capacity] : Arrays.copyOf(batchShaders, capacity);
+    }
+
+    /**
+     * @brief Comienza un nuevo fotograma
+     * @param camera    Cámara desde la que se dibuja
+     */
+    public void begin(Camera camera) {
+        this.camera = camera;
+
+        // El volumen de visión se recalcula sólo si la cámara ha cambiado
+        MatrixSystem mtx = MainApplication.getInstance().getMatrixSystem();
+        mtx.updateViewProjection(camera);
+        frustum = mtx.getFrustum();
+        pixelScale = mtx.getPixelScale();
+        culled = 0;
+
+        for(int i = 0; i < count; i++) {
+            meshes[i] = null;
+            batches[i] = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * @brief Añade todos los grupos de material de un Mesh a la cola
+     * @param mesh      El Mesh a dibujar
+     * @param shader    Shader a usar (o su variante sin textura, según el material)
+     */
+    public void add(Mesh mesh, ShaderProgram shader) {
+        if(!mesh.isVisible(frustum)) {
+            culled ++;
+            return;
+        }
+        mesh.selectLods(camera.getPosition(), pixelScale);
+        float depth = distanceToCamera(mesh);
+        for(int g = 0; g < mesh.getMaterialGroups().size(); g++) {
+            Material mat = mesh.getMaterialGroups().get(g).second;
+            ShaderProgram program = shader.select(mat);
+            int i = push(mat, program, depth);
+            meshes[i] = mesh;
+            groups[i] = g;
+            shaders[i] = program;
+        }
+    }
+
+    /**
+     * @brief Añade todos los grupos de material de un MeshBatch a la cola
+     * @param batch         El MeshBatch a dibujar
+     * @param batchShader   Shader de dibujado agrupado (puede ser null)
+     * @param shader        Shader normal
+     */
+    public void add(MeshBatch batch, ShaderProgram batchShader, ShaderProgram shader) {
+
+        int visible = batch.cull(frustum);
+        culled += batch.getInstances().length - visible;
+        if(visible == 0) return;
+
+        // Usa la instancia visible más cercana a la cámara
+        float depth = Float.MAX_VALUE;
+        for(int i = 0; i < visible; i++) {
+            depth = Math.min(depth, distanceToCamera(batch.getVisible()[i]));
+        }
+
+        boolean batched = batch.isBatched(batchShader);
+        Mesh first = batch.getInstances()[0];
+        for(int g = 0; g < batch.getGroupCount(); g++) {
+            Material mat = first.getMaterialGroups().get(g).second;
+            ShaderProgram program = shader.select(mat);
+            ShaderProgram batchProgram = (batchShader != null) ? batchShader.select(mat) : null;
+            int i = push(mat, batched ? batchProgram : program, depth);
+            batches[i] = batch;
+            groups[i] = g;
+            shaders[i] = program;
+            batchShaders[i] = batchProgram;
+        }
+    }
+
+    /**
+     * @brief Ordena y dibuja todos los elementos de la cola
+     */
+    public void flush() {
+
+        GL gl = GL.get();
+
+        // Ordena las claves (el índice del elemento va en los bits bajos)
+        long startTime = System.nanoTime();
+        Arrays.sort(keys, 0, count);
+        sortTime = System.nanoTime() - startTime;
+
+        drawCalls = 0;
+        stateChanges = 0;
+        long lastState = -1;
+        boolean blending = false;
+
+        for(int k = 0; k < count; k++) {
+
+            long key = keys[k];
+            int i = (int) (key & INDEX_MASK);
+
+            // Cuenta los cambios de programa o textura
+            long state = ((key & TRANSPARENT_BIT) != 0) ? (key >>> 16) & STATE_MASK : (key >>> 40) & STATE_MASK;
+            if(state != lastState) {
+                stateChanges ++;
+                lastState = state;
+            }
+
+            // Los transparentes se mezclan y no escriben en el buffer de profundidad
+            if(!blending && (key & TRANSPARENT_BIT) != 0) {
+                gl.glEnable(GLES20.GL_BLEND);
+                gl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+                gl.glDepthMask(false);
+                blending = true;
+            }
+
+            if(batches[i] != null) {
+                drawCalls += batches[i].drawGroup(batchShaders[i], shaders[i], camera, groups[i]);
+            } else {
+                drawCalls += meshes[i].drawGroup(shaders[i], camera, groups[i]);
+            }
+        }
+
+        if(blending) {
+            gl.glDepthMask(true);
+            gl.glDisable(GLES20.GL_BLEND);
+        }
+    }
+
+    /**
+     * @brief Obtén el número de llamadas de dibujado del último fotograma
+     * @return  El número de llamadas de dibujado
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * @brief Obtén el número de cambios de programa o textura del último fotograma
+     * @return  El número de cambios de estado
+     */
+    public int getStateChanges() {
+        return stateChanges;
+    }
+
+    /**
+     * @brief Obtén el número de Meshes descartados por no ser visibles en el último fotograma
+     * @return  El número de Meshes descartados
+     */
+    public int getCulled() {
+        return culled;
+    }
+
+    /**
+     * @brief Obtén el tiempo de ordenación del último fotograma
+     * @return  El tiempo de ordenación, en nanosegundos
+     */
+    public long getSortTime() {
+        return sortTime;
+    }
+
+    /**
+     * @brief Reserva un hueco en la cola y calcula su clave
+     * @param mat       Material del elemento
+     * @param shader    Shader con el que se dibujará (la variante ya elegida con select)
+     * @param depth     Distancia a la cámara
+     * @return  El índice del elemento
+     */
+    private int push(Material mat, ShaderProgram shader, float depth) {
+
+        if(count == keys.length) {
+            allocate(keys.length * 2);
+        }
+
+        long depthKey = (long) (Math.min(depth / MAX_DEPTH, 1.0f) * DEPTH_MASK);
+        long stateKey = ((shader.getId() & PROGRAM_MASK) << 14) |
+                ((mat.getTexture() != null) ? (mat.getTexture().getId() & TEXTURE_MASK) : 0);
+
+        int i = count++;
+        if(mat.isTransparent()) {
+            keys[i] = TRANSPARENT_BIT | ((DEPTH_MASK - depthKey) << 38) | (stateKey << 16) | i;     // De atrás a delante
+        } else {
+            keys[i] = (stateKey << 40) | (depthKey << 16) | i;
+        }
+        return i;
+    }
+
+    /**
+     * @brief Calcula la distancia de un Mesh a la cámara
+     * @param mesh  El Mesh
+     * @return  La distancia
+     */
+    private float distanceToCamera(Mesh mesh) {
+        float[] pos = mesh.getPosition();
+        float[] camPos = camera.getPosition();
+        float x = pos[0] - camPos[0];
+        float y = pos[1] - camPos[1];
+        float z = pos[2] - camPos[2];
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+}
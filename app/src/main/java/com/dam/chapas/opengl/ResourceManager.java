@@ -0,0 +1,419 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file ResourceManager.java
+ * @brief Caché de modelos, texturas y shaders compartidos por ruta
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * @class ResourceManager
+ * @details Guarda dos niveles de caché:
+ *  - Datos en CPU (modelos leídos y texturas decodificadas). Sobreviven entre partidas y a la
+ *    pérdida del contexto OpenGL, así que una nueva partida no vuelve a leer ni decodificar nada.
+ *    Se puede usar desde cualquier hilo.
+ *  - Objetos OpenGL (ObjMesh, Texture, ShaderProgram) con contador de referencias. Los que no
+ *    usa nadie se mantienen mientras quepan en el presupuesto. Sólo desde el hilo de OpenGL.
+ * Ambos niveles descartan lo menos usado recientemente cuando se pasan de su presupuesto.
+ * Además lleva la cuenta de todos los objetos OpenGL vivos (ver GLResource), para volver a
+ * crearlos si se pierde el contexto sin perder la partida.
+ */
+public class ResourceManager {
+
+    private static final long CPU_BUDGET = 32L * 1024 * 1024;     /**< Bytes de datos en CPU */
+    private static final long GPU_BUDGET = 32L * 1024 * 1024;     /**< Bytes de objetos OpenGL sin usar */
+
+    /**
+     * @class Entry
+     * @brief Objeto OpenGL compartido
+     */
+    private static class Entry {
+        private final String key;
+        private final Object resource;
+        private final long size;
+        private int references;
+
+        Entry(String key, Object resource, long size) {
+            this.key = key;
+            this.resource = resource;
+            this.size = size;
+            this.references = 0;
+        }
+    }
+
+    private static ResourceManager instance = null;
+
+    // Datos en CPU, en orden de uso (el primero es el menos usado)
+    private final LinkedHashMap<String, ObjMesh.Data> meshData = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Texture.Data> textureData = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashSet<String> pinned = new HashSet<>();    /**< Claves de los objetos OpenGL que necesitan sus datos para restaurarse */
+    private long cpuSize = 0;
+
+    // Objetos OpenGL, en orden de uso
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final IdentityHashMap<Object, Entry> entriesByResource = new IdentityHashMap<>();
+    private long unusedSize = 0;
+
+    // Objetos OpenGL vivos en el contexto actual
+    private final WeakHashMap<GLResource, Long> tracked = new WeakHashMap<>();     /**< Con su orden de creación */
+    private long trackCount = 0;
+    private Object context = null;      /**< Contexto en el que están creados (ver GL.getCurrentContext) */
+
+    /**
+     * @brief Obtén la instancia del gestor de recursos
+     * @return  La instancia de este Singleton
+     */
+    public static synchronized ResourceManager getInstance() {
+        if(instance == null) {
+            instance = new ResourceManager();
+        }
+        return instance;
+    }
+
+    /**
+     * @brief Constructor del gestor de recursos
+     */
+    private ResourceManager() { }
+
+    /**
+     * @brief Obtén los datos en CPU de un modelo, leyéndolo si no está en caché
+     * @param path  Ruta del modelo
+     * @return  Los datos del modelo
+     * @throws IOException  Si no se encuentra el archivo
+     */
+    public ObjMesh.Data getMeshData(String path) throws IOException {
+
+        synchronized(this) {
+            ObjMesh.Data data = meshData.get(path);
+            if(data != null) return data;
+        }
+
+        // Se lee fuera del cerrojo, para poder leer varios modelos en paralelo
+        ObjMesh.Data data = ObjMesh.parse(path);
+
+        synchronized(this) {
+            ObjMesh.Data cached = meshData.get(path);
+            if(cached != null) return cached;
+            meshData.put(path, data);
+            cpuSize += data.getByteSize();
+            trimCpu();
+        }
+        return data;
+    }
+
+    /**
+     * @brief Obtén los datos en CPU de una textura, decodificándola si no está en caché
+     * @param path  Ruta de la textura
+     * @return  Los datos de la textura
+     * @throws IOException  Si no se encuentra el archivo
+     */
+    public Texture.Data getTextureData(String path) throws IOException {
+
+        synchronized(this) {
+            Texture.Data data = textureData.get(path);
+            if(data != null) return data;
+        }
+
+        Texture.Data data = Texture.decode(path);
+
+        synchronized(this) {
+            Texture.Data cached = textureData.get(path);
+            if(cached != null) {
+                data.recycle();
+                return cached;
+            }
+            textureData.put(path, data);
+            cpuSize += data.getByteSize();
+            trimCpu();
+        }
+        return data;
+    }
+
+    /**
+     * @brief Obtén un modelo compartido (debe llamarse desde el hilo de OpenGL)
+     * @details Todos los que pidan la misma ruta reciben el mismo Mesh; para transformaciones
+     * independientes hay que usar Mesh.clone()
+     * @param path  Ruta del modelo
+     * @return  El modelo
+     * @throws IOException  Si no se encuentra el archivo
+     */
+    public ObjMesh acquireMesh(String path) throws IOException {
+        String key = "mesh:" + path;
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            ObjMesh.Data data = getMeshData(path);
+            entry = add(key, new ObjMesh(data), data.getGpuByteSize());
+            pin(key);
+        }
+        return (ObjMesh) retain(entry);
+    }
+
+    /**
+     * @brief Obtén una textura compartida (debe llamarse desde el hilo de OpenGL)
+     * @param path  Ruta de la textura
+     * @return  La textura
+     * @throws IOException  Si no se encuentra el archivo
+     */
+    public Texture acquireTexture(String path) throws IOException {
+        String key = "texture:" + path;
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            Texture.Data data = getTextureData(path);
+            entry = add(key, new Texture(data), data.getByteSize());
+            pin(key);
+        }
+        return (Texture) retain(entry);
+    }
+
+    /**
+     * @brief Obtén un shader compartido (debe llamarse desde el hilo de OpenGL)
+     * @param vertexShaderPath      Ruta del vertex shader
+     * @param fragmentShaderPath    Ruta del fragment shader
+     * @return  El shader
+     * @throws IOException          Si no se encuentra algún archivo
+     * @throws RuntimeException     Si no se ha podido cargar el shader
+     */
+    public ShaderProgram acquireShader(String vertexShaderPath, String fragmentShaderPath) throws IOException, RuntimeException {
+        return acquireShader(vertexShaderPath, fragmentShaderPath, 0);
+    }
+
+    /**
+     * @brief Obtén una variante compartida de un shader (debe llamarse desde el hilo de OpenGL)
+     * @param vertexShaderPath      Ruta del vertex shader
+     * @param fragmentShaderPath    Ruta del fragment shader
+     * @param flags                 Variante (combinación de ShaderProgram.FLAG_*)
+     * @return  El shader
+     * @throws IOException          Si no se encuentra algún archivo
+     * @throws RuntimeException     Si no se ha podido cargar el shader
+     */
+    public ShaderProgram acquireShader(String vertexShaderPath, String fragmentShaderPath, int flags) throws IOException, RuntimeException {
+        String key = "shader:" + vertexShaderPath + "|" + fragmentShaderPath + "|" + flags;
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            entry = add(key, new ShaderProgram(vertexShaderPath, fragmentShaderPath, flags), 0);
+        }
+        return (ShaderProgram) retain(entry);
+    }
+
+    /**
+     * @brief Deja de usar un recurso obtenido con acquire (debe llamarse desde el hilo de OpenGL)
+     * @details El recurso no se borra: se queda en caché mientras quepa en el presupuesto
+     * @param resource  El modelo, textura o shader
+     * @return  Si el recurso era del gestor (si no, hay que borrarlo a mano)
+     */
+    public boolean release(Object resource) {
+        Entry entry = entriesByResource.get(resource);
+        if(entry == null) return false;
+        if(entry.references > 0) {
+            entry.references --;
+            if(entry.references == 0) {
+                unusedSize += entry.size;
+                trimGpu();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @brief Llamado al crear la superficie de una nueva partida (debe llamarse desde el hilo de OpenGL)
+     * @details Los objetos en caché se conservan entre partidas. Si el contexto es el mismo en el
+     * que se crearon, siguen valiendo tal cual; si es otro, el anterior se ha perdido de verdad y
+     * se vuelven a crear desde sus datos en CPU, sin volver a leer ni procesar nada
+     */
+    public void onContextCreated() {
+        Object current = GL.get().getCurrentContext();
+        if(context != null && !context.equals(current)) {
+            restoreContext();
+        }
+        context = current;
+    }
+
+    /**
+     * @brief Vuelve a crear todos los objetos OpenGL vivos, porque se ha perdido el contexto
+     * @details Los objetos se restauran en su sitio, así que quien los use no se entera. El orden
+     * no depende del WeakHashMap: primero los shaders, luego las texturas, luego los buffers de los
+     * modelos y al final el resto (que puede usar los anteriores), cada grupo en orden de creación
+     */
+    public void restoreContext() {
+        context = GL.get().getCurrentContext();
+        long start = System.nanoTime();
+        GLResource[] resources = tracked.keySet().toArray(new GLResource[0]);
+        Arrays.sort(resources, new Comparator<GLResource>() {
+            @Override
+            public int compare(GLResource a, GLResource b) {
+                int group = getRestoreGroup(a) - getRestoreGroup(b);
+                if(group != 0) return group;
+                long order = tracked.get(a) - tracked.get(b);
+                return (order < 0) ? -1 : ((order > 0) ? 1 : 0);
+            }
+        });
+        for(GLResource resource : resources) {
+            resource.restore();
+        }
+        Log.d("CHAPAS", "Restored " + resources.length + " GL objects in " +
+                (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * @brief Obtén el grupo en el que se restaura un objeto OpenGL
+     * @param resource  El objeto
+     * @return  0 para shaders, 1 para texturas, 2 para buffers y 3 para el resto
+     */
+    private static int getRestoreGroup(GLResource resource) {
+        if(resource instanceof ShaderProgram) return 0;
+        if(resource instanceof Texture) return 1;
+        if(resource instanceof VBO || resource instanceof IBO) return 2;
+        return 3;
+    }
+
+    /**
+     * @brief Registra un objeto OpenGL recién creado (debe llamarse desde el hilo de OpenGL)
+     * @param resource  El objeto
+     */
+    public void track(GLResource resource) {
+        if(!tracked.containsKey(resource)) {
+            tracked.put(resource, trackCount ++);
+        }
+    }
+
+    /**
+     * @brief Quita un objeto OpenGL borrado del registro (debe llamarse desde el hilo de OpenGL)
+     * @param resource  El objeto
+     */
+    public void untrack(GLResource resource) {
+        tracked.remove(resource);
+    }
+
+    /**
+     * @brief Borra todos los objetos OpenGL que no se estén usando
+     */
+    public void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if(entry.references == 0) {
+                it.remove();
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * @brief Registra un nuevo objeto OpenGL
+     * @param key       Clave del recurso
+     * @param resource  El recurso
+     * @param size      Tamaño aproximado en bytes
+     * @return  La entrada creada
+     */
+    private Entry add(String key, Object resource, long size) {
+        Entry entry = new Entry(key, resource, size);
+        entries.put(key, entry);
+        entriesByResource.put(resource, entry);
+        unusedSize += size;     // Sin referencias hasta que se llame a retain
+        return entry;
+    }
+
+    /**
+     * @brief Añade una referencia a un recurso
+     * @param entry La entrada del recurso
+     * @return  El recurso
+     */
+    private Object retain(Entry entry) {
+        if(entry.references == 0) {
+            unusedSize -= entry.size;
+        }
+        entry.references ++;
+        return entry.resource;
+    }
+
+    /**
+     * @brief Borra los objetos OpenGL sin usar menos recientes hasta caber en el presupuesto
+     */
+    private void trimGpu() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(unusedSize > GPU_BUDGET && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if(entry.references == 0) {
+                it.remove();
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * @brief Borra un objeto OpenGL
+     * @param entry La entrada del recurso
+     */
+    private void destroy(Entry entry) {
+        entriesByResource.remove(entry.resource);
+        unpin(entry.key);
+        if(entry.references == 0) {
+            unusedSize -= entry.size;
+        }
+        if(entry.resource instanceof Mesh) {
+            ((Mesh) entry.resource).delete();
+        } else if(entry.resource instanceof Texture) {
+            ((Texture) entry.resource).delete();
+        } else if(entry.resource instanceof ShaderProgram) {
+            ((ShaderProgram) entry.resource).destroy();
+        }
+        Log.d("CHAPAS", "Evicted " + entry.key);
+    }
+
+    /**
+     * @brief Marca los datos en CPU de un objeto OpenGL como necesarios para restaurarlo
+     * @param key   Clave del objeto OpenGL
+     */
+    private synchronized void pin(String key) {
+        pinned.add(key);
+    }
+
+    /**
+     * @brief Deja de necesitar los datos en CPU de un objeto OpenGL borrado
+     * @param key   Clave del objeto OpenGL
+     */
+    private synchronized void unpin(String key) {
+        if(pinned.remove(key)) {
+            trimCpu();
+        }
+    }
+
+    /**
+     * @brief Descarta los datos en CPU menos recientes hasta caber en el presupuesto
+     * @details Los datos de los objetos OpenGL en caché no se descartan: los necesitan para
+     * restaurarse si se pierde el contexto, y además siguen en memoria mientras el objeto exista
+     */
+    private void trimCpu() {
+
+        // Descarta primero las texturas, que son lo que más ocupa
+        Iterator<Map.Entry<String, Texture.Data>> textures = textureData.entrySet().iterator();
+        while(cpuSize > CPU_BUDGET && textures.hasNext()) {
+            Map.Entry<String, Texture.Data> texture = textures.next();
+            if(!pinned.contains("texture:" + texture.getKey())) {
+                cpuSize -= texture.getValue().getByteSize();
+                textures.remove();
+                // No se recicla: puede que alguien todavía la esté subiendo
+            }
+        }
+        Iterator<Map.Entry<String, ObjMesh.Data>> meshes = meshData.entrySet().iterator();
+        while(cpuSize > CPU_BUDGET && meshes.hasNext()) {
+            Map.Entry<String, ObjMesh.Data> mesh = meshes.next();
+            if(!pinned.contains("mesh:" + mesh.getKey())) {
+                cpuSize -= mesh.getValue().getByteSize();
+                meshes.remove();
+            }
+        }
+    }
+}
@@ -18,11 +18,60 @@ import java.util.HashMap;
 
 /**
  * @class ShaderProgram
+ * @details Un mismo par de ficheros GLSL puede dar varias variantes, según los flags FLAG_*
+ * con los que se cree (cada flag añade un #define al principio de los dos shaders). Los
+ * uniforms activos se descubren al enlazar con glGetActiveUniform; los que la variante no usa
+ * quedan sin ubicación y no se suben. Si el driver lo permite, el programa enlazado se guarda
+ * en ProgramBinaryCache y los siguientes arranques no compilan nada.
  */
-public class ShaderProgram {
+public class ShaderProgram implements GLResource {
+
+    // Variantes del shader
+    public static final int FLAG_TEXTURED = 1;          /**< Los materiales tienen textura */
+    public static final int FLAG_SPECULAR = 2;          /**< Brillos especulares (sólo por píxel) */
+    public static final int FLAG_VERTEX_LIGHTING = 4;   /**< Iluminación por vértice */
+    public static final int FLAG_INSTANCED = 8;         /**< Dibujado agrupado (ver MeshBatch) */
+
+    private static final String[] FLAG_DEFINES = new String[] {
+            "TEXTURED", "SPECULAR", "VERTEX_LIGHTING", "INSTANCED",
+    };
+
+    // Identificadores de los uniforms del shader
+    public static final int MVP = 0;
+    public static final int M = 1;
+    public static final int TEX0 = 2;
+    public static final int AMBIENT = 3;
+    public static final int DIFFUSE = 4;
+    public static final int SPECULAR = 5;
+    public static final int EMISSIVE = 6;
+    public static final int ALPHA = 7;
+    public static final int SHININESS = 8;
+    public static final int LIGHT_POS = 9;
+    public static final int LIGHT_COLOR = 10;
+    public static final int CAMERA_POS = 11;
+    public static final int VP = 12;
+    public static final int INSTANCE_M = 13;
+    public static final int INSTANCE_DIFFUSE = 14;
+    public static final int TEX1 = 15;
+    public static final int POINT_SCALE = 16;
+
+    private static final String[] UNIFORM_NAMES = new String[] {
+            "mvp", "m", "tex0", "ambient", "diffuse", "specular",
+            "emissive", "alpha", "shininess", "lightPos", "lightColor", "cameraPos",
+            "vp", "instanceM", "instanceDiffuse", "tex1", "pointScale",
+    };
+
+    private static int current = 0;     /**< Programa en uso, para no repetir glUseProgram */
 
     private int program;
-    private HashMap<String, Integer> uniforms;
+    private final int flags;
+    private String vertexSource;        /**< Código del vertex shader (con los #define), para restaurar el programa */
+    private String fragmentSource;      /**< Código del fragment shader */
+    private final HashMap<String, Integer> activeUniforms = new HashMap<>();
+    private ShaderProgram untextured;   /**< Variante para los materiales sin textura (puede ser null) */
+    private int[] uniforms;
+    private float[][] uniformValues;    /**< Últimos valores subidos de cada uniform */
+    private boolean[] uniformValid;     /**< Si el valor guardado es válido */
 
     /**
      * @brief Constructor de un shader
@@ -32,72 +81,242 @@ public class ShaderProgram {
      * @throws RuntimeException     Si no se ha podido cargar el shader
      */
     public ShaderProgram(String vertexShaderPath, String fragmentShaderPath) throws IOException, RuntimeException {
+        this(vertexShaderPath, fragmentShaderPath, 0);
+    }
+
+    /**
+     * @brief Constructor de una variante de un shader
+     * @param vertexShaderPath      Ruta del vertex shader
+     * @param fragmentShaderPath    Ruta del fragment shader
+     * @param flags                 Variante (combinación de FLAG_*)
+     * @throws IOException          Si no se encuentra algún archivo
+     * @throws RuntimeException     Si no se ha podido cargar el shader
+     */
+    public ShaderProgram(String vertexShaderPath, String fragmentShaderPath, int flags) throws IOException, RuntimeException {
+        this(flags, readFile(vertexShaderPath), readFile(fragmentShaderPath));
+    }
+
+    /**
+     * @brief Constructor de una variante de un shader a partir de su código (sin pasar por los assets)
+     * @param flags             Variante (combinación de FLAG_*)
+     * @param vertexSource      Código del vertex shader, sin los #define de la variante
+     * @param fragmentSource    Código del fragment shader, sin los #define de la variante
+     * @throws RuntimeException Si no se ha podido cargar el shader
+     */
+    ShaderProgram(int flags, String vertexSource, String fragmentSource) throws RuntimeException {
+        this.flags = flags;
+        String defines = getDefines(flags);
+        this.vertexSource = defines + vertexSource;
+        this.fragmentSource = defines + fragmentSource;
+        uniforms = new int[UNIFORM_NAMES.length];
+        uniformValues = new float[UNIFORM_NAMES.length][16];
+        uniformValid = new boolean[UNIFORM_NAMES.length];
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() throws RuntimeException {
+
+        GL gl = GL.get();
+        current = 0;    // El programa cambia de identificador
+
+        // Si ya se enlazó en otro arranque, se carga el binario
+        program = ProgramBinaryCache.load(vertexSource, fragmentSource);
+        if(program != 0) {
+            registerUniforms();
+            return;
+        }
 
         // Carga los shaders
-        int vs = loadShader(GLES20.GL_VERTEX_SHADER, readFile(vertexShaderPath));
-        int fs = loadShader(GLES20.GL_FRAGMENT_SHADER, readFile(fragmentShaderPath));
+        int vs = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fs = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
 
         // Crea el programa
-        program = GLES20.glCreateProgram();
+        program = gl.glCreateProgram();
         if (program == 0) {
-            throw new RuntimeException("glCreateProgram() failed. " + GLES20.glGetError());
+            throw new RuntimeException("glCreateProgram() failed. " + gl.glGetError());
         }
 
         // Asigna los shaders al programa
-        GLES20.glAttachShader(program, vs);
-        GLES20.glAttachShader(program, fs);
+        gl.glAttachShader(program, vs);
+        gl.glAttachShader(program, fs);
 
         // Establece los atributos
-        GLES20.glBindAttribLocation(program, 0, "vPosition");
-        GLES20.glBindAttribLocation(program, 1, "vTexcoord");
-        GLES20.glBindAttribLocation(program, 2, "vNormal");
+        gl.glBindAttribLocation(program, 0, "vPosition");
+        gl.glBindAttribLocation(program, 1, "vTexcoord");
+        gl.glBindAttribLocation(program, 2, "vNormal");
+        gl.glBindAttribLocation(program, 3, "vInstance");
+        gl.glBindAttribLocation(program, 4, "vColor");
+        gl.glBindAttribLocation(program, 5, "vSize");
 
         // Enlaza el programa
-        GLES20.glLinkProgram(program);
+        ProgramBinaryCache.prepare(program);
+        gl.glLinkProgram(program);
         int[] linkStatus = new int[] {GLES20.GL_FALSE};
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
         if (linkStatus[0] != GLES20.GL_TRUE) {
-            String log = GLES20.glGetProgramInfoLog(program);
-            GLES20.glDeleteProgram(program);
+            String log = gl.glGetProgramInfoLog(program);
+            gl.glDeleteProgram(program);
             throw new RuntimeException(log);
         }
 
         // Borra los shaders
-        GLES20.glDetachShader(program, vs);
-        GLES20.glDetachShader(program, fs);
-        GLES20.glDeleteShader(vs);
-        GLES20.glDeleteShader(fs);
-
-        // Registra los uniforms
-        uniforms = new HashMap<String, Integer>();
-        registerUniform("mvp");
-        registerUniform("m");
-        registerUniform("tex0");
-        registerUniform("ambient");
-        registerUniform("diffuse");
-        registerUniform("specular");
-        registerUniform("emissive");
-        registerUniform("alpha");
-        registerUniform("shininess");
-        registerUniform("lightPos");
-        registerUniform("lightColor");
-        registerUniform("cameraPos");
+        gl.glDetachShader(program, vs);
+        gl.glDetachShader(program, fs);
+        gl.glDeleteShader(vs);
+        gl.glDeleteShader(fs);
+
+        ProgramBinaryCache.store(program, vertexSource, fragmentSource);
+        registerUniforms();
+    }
+
+    /**
+     * @brief Obtén los #define de una variante
+     * @param flags Variante (combinación de FLAG_*)
+     * @return  Una línea #define por cada flag
+     */
+    private static String getDefines(int flags) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < FLAG_DEFINES.length; i++) {
+            if((flags & (1 << i)) != 0) {
+                builder.append("#define ").append(FLAG_DEFINES[i]).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @brief Descubre los uniforms activos y registra los conocidos (los valores guardados ya no valen)
+     */
+    private void registerUniforms() {
+        GL gl = GL.get();
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        activeUniforms.clear();
+        gl.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        for(int i = 0; i < count[0]; i++) {
+            String name = gl.glGetActiveUniform(program, i, size, 0, type, 0);
+
+            // Los arrays aparecen como "nombre[0]"
+            if(name.endsWith("[0]")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            activeUniforms.put(name, gl.glGetUniformLocation(program, name));
+        }
+        for(int i = 0; i < UNIFORM_NAMES.length; i++) {
+            registerUniform(i, UNIFORM_NAMES[i]);
+        }
     }
 
     /**
      * @brief Borra el shader
      */
     public void destroy() {
-        GLES20.glUseProgram(0);
-        GLES20.glDeleteProgram(program);
+        GL.get().glUseProgram(0);
+        current = 0;
+        GL.get().glDeleteProgram(program);
+        ResourceManager.getInstance().untrack(this);
     }
 
     /**
      * @brief Registra un uniform
-     * @param name  Nombre del uniform
+     * @param uniform   Identificador del uniform
+     * @param name      Nombre del uniform
+     */
+    private void registerUniform(int uniform, String name) {
+        uniforms[uniform] = getUniformLocation(name);
+        uniformValid[uniform] = false;
+    }
+
+    /**
+     * @brief Obtén la ubicación de cualquier uniform activo
+     * @param name  Nombre del uniform (sin "[0]" en los arrays)
+     * @return  La ubicación, o -1 si la variante no lo usa
+     */
+    public int getUniformLocation(String name) {
+        Integer location = activeUniforms.get(name);
+        return (location != null) ? location : -1;
+    }
+
+    /**
+     * @brief Obtén la variante del shader
+     * @return  Combinación de FLAG_*
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @brief Establece la variante a usar con los materiales sin textura
+     * @param untextured    La variante (null para usar siempre ésta)
+     */
+    public void setUntexturedVariant(ShaderProgram untextured) {
+        this.untextured = untextured;
+    }
+
+    /**
+     * @brief Obtén la variante para los materiales sin textura
+     * @return  La variante, o null si no hay
+     */
+    public ShaderProgram getUntexturedVariant() {
+        return untextured;
+    }
+
+    /**
+     * @brief Elige la variante adecuada para un material
+     * @param material  El material
+     * @return  La variante sin textura si el material no la tiene y existe, o este shader
+     */
+    public ShaderProgram select(Material material) {
+        return (untextured != null && material.getTexture() == null) ? untextured : this;
+    }
+
+    /**
+     * @brief Comprueba si un uniform ya tiene el valor dado, y si no lo guarda
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
+     * @param count     Número de floats a comparar
+     * @return Si hay que subir el valor al shader
+     */
+    private boolean changed(int uniform, float[] data, int count) {
+        if(uniforms[uniform] == -1) return false;
+        float[] cached = uniformValues[uniform];
+        if(uniformValid[uniform]) {
+            int i = 0;
+            while(i < count && cached[i] == data[i]) i++;
+            if(i == count) return false;
+        }
+        System.arraycopy(data, 0, cached, 0, count);
+        uniformValid[uniform] = true;
+        return true;
+    }
+
+    /**
+     * @brief Comprueba si un uniform escalar ya tiene el valor dado, y si no lo guarda
+     * @param uniform   Identificador del uniform
+     * @param data      Valor del uniform
+     * @return Si hay que subir el valor al shader
+     */
+    private boolean changed(int uniform, float data) {
+        if(uniforms[uniform] == -1) return false;
+        float[] cached = uniformValues[uniform];
+        if(uniformValid[uniform] && cached[0] == data) return false;
+        cached[0] = data;
+        uniformValid[uniform] = true;
+        return true;
+    }
+
+    /**
+     * @brief Obtén el identificador OpenGL del programa
+     * @return  El identificador del programa
      */
-    public void registerUniform(String name) {
-        uniforms.put(name, GLES20.glGetUniformLocation(program, name));
+    public int getId() {
+        return program;
     }
 
     /**
@@ -109,24 +328,26 @@ public class ShaderProgram {
      */
     private int loadShader(int type, String shaderCode) throws RuntimeException {
 
+        GL gl = GL.get();
+
         // Crea el shader
-        int shader = GLES20.glCreateShader(type);
+        int shader = gl.glCreateShader(type);
         if(shader == 0) {
             throw new RuntimeException("Error creating shader");
         }
 
         // Compila el shader
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
+        gl.glShaderSource(shader, shaderCode);
+        gl.glCompileShader(shader);
 
         // Obtén el resultado de la compilación
         int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
 
         // Avisa si hay algún error
         if (compiled[0] == 0) {
-            String log = GLES20.glGetShaderInfoLog(shader);
-            GLES20.glDeleteShader(shader);
+            String log = gl.glGetShaderInfoLog(shader);
+            gl.glDeleteShader(shader);
             throw new RuntimeException("Could not compile shader:\n" + log);
         }
 
@@ -138,52 +359,95 @@ public class ShaderProgram {
      * @brief Activa el shader
      */
     public void enable() {
-        GLES20.glUseProgram(program);
+        if(program == current) return;
+        GL.get().glUseProgram(program);
+        current = program;
     }
 
     /**
      * @brief Establece un uniform como float
-     * @param name  Nombre del uniform
-     * @param data  Datos del uniform
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
      */
-    public void setUniform1f(String name, float data) {
-        GLES20.glUniform1f(uniforms.get(name), data);
+    public void setUniform1f(int uniform, float data) {
+        if(changed(uniform, data)) {
+            GL.get().glUniform1f(uniforms[uniform], data);
+        }
     }
 
     /**
      * @brief Establece un uniform como 3-float
-     * @param name  Nombre del uniform
-     * @param data  Datos del uniform
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
      */
-    public void setUniform3fv(String name, float[] data) {
-        GLES20.glUniform3fv(uniforms.get(name), 1, data, 0);
+    public void setUniform3fv(int uniform, float[] data) {
+        if(changed(uniform, data, 3)) {
+            GL.get().glUniform3fv(uniforms[uniform], 1, data, 0);
+        }
     }
 
     /**
      * @brief Establece un uniform como 4-float
-     * @param name  Nombre del uniform
-     * @param data  Datos del uniform
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
      */
-    public void setUniform4fv(String name, float[] data) {
-        GLES20.glUniform4fv(uniforms.get(name), 1, data, 0);
+    public void setUniform4fv(int uniform, float[] data) {
+        if(changed(uniform, data, 4)) {
+            GL.get().glUniform4fv(uniforms[uniform], 1, data, 0);
+        }
     }
 
     /**
      * @brief Establece un uniform como una matriz 4x4
-     * @param name  Nombre del uniform
-     * @param data  Datos del uniform
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
      */
-    public void setUniformMatrix4fv(String name, float[] data) {
-        GLES20.glUniformMatrix4fv(uniforms.get(name), 1, false, data, 0);
+    public void setUniformMatrix4fv(int uniform, float[] data) {
+        if(changed(uniform, data, 16)) {
+            GL.get().glUniformMatrix4fv(uniforms[uniform], 1, false, data, 0);
+        }
+    }
+
+    /**
+     * @brief Establece un array de uniforms 3-float (sin caché)
+     * @param uniform   Identificador del uniform
+     * @param count     Número de elementos
+     * @param data      Datos del uniform
+     */
+    public void setUniform3fv(int uniform, int count, float[] data) {
+        if(uniforms[uniform] == -1) return;
+        GL.get().glUniform3fv(uniforms[uniform], count, data, 0);
+    }
+
+    /**
+     * @brief Establece un array de uniforms de matrices 4x4 (sin caché)
+     * @param uniform   Identificador del uniform
+     * @param count     Número de matrices
+     * @param data      Datos del uniform
+     */
+    public void setUniformMatrix4fv(int uniform, int count, float[] data) {
+        if(uniforms[uniform] == -1) return;
+        GL.get().glUniformMatrix4fv(uniforms[uniform], count, false, data, 0);
+    }
+
+    /**
+     * @brief Comprueba si el shader usa un uniform
+     * @param uniform   Identificador del uniform
+     * @return  Si el uniform está activo en el shader
+     */
+    public boolean hasUniform(int uniform) {
+        return uniforms[uniform] != -1;
     }
 
     /**
      * @brief Establece un uniform como int
-     * @param name  Nombre del uniform
-     * @param data  Datos del uniform
+     * @param uniform   Identificador del uniform
+     * @param data      Datos del uniform
      */
-    public void setUniform1i(String name, int data) {
-        GLES20.glUniform1i(uniforms.get(name), data);
+    public void setUniform1i(int uniform, int data) {
+        if(changed(uniform, (float) data)) {
+            GL.get().glUniform1i(uniforms[uniform], data);
+        }
     }
 
     /**
@@ -192,7 +456,7 @@ public class ShaderProgram {
      * @return El contenido del archivo
      * @throws IOException  Si no se encuentra el archivo
      */
-    private String readFile(String path) throws IOException {
+    private static String readFile(String path) throws IOException {
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(MainApplication.getInstance().getAssets().open(path)));
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,164 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file StreamVBO.java
+ * @brief VBO para geometría que cambia cada frame
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * @class StreamVBO
+ * @details Buffer en anillo con GL_STREAM_DRAW: cada begin() reserva los vértices siguientes a los
+ * del último rango y end() sube sólo ese rango con glBufferSubData, así que la GPU puede seguir
+ * leyendo los rangos anteriores mientras se escriben los nuevos. Cuando el anillo se llena se deja
+ * huérfano el buffer (glBufferData sin datos) y se vuelve al principio, en lugar de esperar a que
+ * la GPU termine con él. Los vértices se escriben en un FloatBuffer directo que se reutiliza, así
+ * que no se reserva memoria ni se crean objetos OpenGL por frame. Un rango sólo es válido hasta el
+ * siguiente begin() que dé la vuelta al anillo.
+ */
+public class StreamVBO implements GLResource {
+
+    private final int capacity;             /**< Vértices que caben en el anillo */
+    private final int floatsPerVertex;
+    private final int stride;
+    private final FloatBuffer floatBuffer;  /**< Vértices del rango que se está escribiendo */
+    private final int[] bufferID = new int[1];
+    private int next = 0;                   /**< Primer vértice libre del anillo */
+    private int first = 0;                  /**< Primer vértice del rango que se está escribiendo */
+    private int count = 0;                  /**< Vértices reservados en el rango actual */
+
+    /**
+     * @brief Constructor de un StreamVBO (debe llamarse desde el hilo de OpenGL)
+     * @param capacity          Número de vértices del anillo
+     * @param floatsPerVertex   Floats de cada vértice (todos los atributos intercalados)
+     */
+    public StreamVBO(int capacity, int floatsPerVertex) {
+
+        this.capacity = capacity;
+        this.floatsPerVertex = floatsPerVertex;
+        this.stride = floatsPerVertex * Float.BYTES;
+        ByteBuffer bb = ByteBuffer.allocateDirect(capacity * stride);
+        bb.order(ByteOrder.nativeOrder());
+        floatBuffer = bb.asFloatBuffer();
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() {
+        GL gl = GL.get();
+        gl.glGenBuffers(1, bufferID, 0);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, capacity * stride, null, GLES20.GL_STREAM_DRAW);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        next = 0;
+    }
+
+    /**
+     * @brief Reserva un rango de vértices para escribirlos con put
+     * @param nvertices Número de vértices
+     * @return  El primer vértice del rango (ver bind)
+     * @throws IllegalArgumentException Si el rango no cabe en el anillo
+     */
+    public int begin(int nvertices) throws IllegalArgumentException {
+
+        if(nvertices > capacity) {
+            throw new IllegalArgumentException("StreamVBO range too big: " + nvertices + " > " + capacity);
+        }
+
+        // Si no cabe detrás del último rango, deja huérfano el buffer y vuelve al principio
+        if(next + nvertices > capacity) {
+            GL gl = GL.get();
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+            gl.glBufferData(GLES20.GL_ARRAY_BUFFER, capacity * stride, null, GLES20.GL_STREAM_DRAW);
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            next = 0;
+        }
+
+        first = next;
+        count = nvertices;
+        next += nvertices;
+        floatBuffer.clear();
+        floatBuffer.limit(nvertices * floatsPerVertex);
+        return first;
+    }
+
+    /**
+     * @brief Escribe un float en el rango actual
+     * @param value Valor
+     */
+    public void put(float value) {
+        floatBuffer.put(value);
+    }
+
+    /**
+     * @brief Escribe varios floats en el rango actual
+     * @param values    Array con los valores
+     * @param offset    Primer valor del array
+     * @param length    Número de valores
+     */
+    public void put(float[] values, int offset, int length) {
+        floatBuffer.put(values, offset, length);
+    }
+
+    /**
+     * @brief Sube a OpenGL lo escrito en el rango actual
+     * @return  El número de vértices escritos (pueden ser menos que los reservados)
+     */
+    public int end() {
+
+        int written = floatBuffer.position() / floatsPerVertex;
+        if(written > 0) {
+            GL gl = GL.get();
+            floatBuffer.position(0);
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+            gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, first * stride, written * stride, floatBuffer);
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+
+        // Lo que no se ha escrito se puede usar en el siguiente rango
+        next -= count - written;
+        count = 0;
+        return written;
+    }
+
+    /**
+     * @brief Activa un atributo intercalado en el buffer
+     * @param attribute     ID del atributo en el shader
+     * @param ncomponents   Número de componentes del atributo
+     * @param offset        Posición del atributo dentro del vértice, en floats
+     * @param baseVertex    Vértice que corresponde al índice 0 (el que devolvió begin)
+     */
+    public void bind(int attribute, int ncomponents, int offset, int baseVertex) {
+        GL gl = GL.get();
+        gl.glEnableVertexAttribArray(attribute);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+        gl.glVertexAttribPointer(attribute, ncomponents, GLES20.GL_FLOAT, false, stride,
+                baseVertex * stride + offset * Float.BYTES);
+    }
+
+    /**
+     * @brief Desactiva un atributo
+     * @param attribute ID del atributo en el shader
+     */
+    public void unbind(int attribute) {
+        GL.get().glDisableVertexAttribArray(attribute);
+    }
+
+    /**
+     * @brief Borra el StreamVBO
+     */
+    public void delete() {
+        GL.get().glDeleteBuffers(1, bufferID, 0);
+        ResourceManager.getInstance().untrack(this);
+    }
+}
@@ -8,12 +8,14 @@ package com.dam.chapas.opengl;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.opengl.ETC1;
 import android.opengl.ETC1Util;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 
 import com.dam.chapas.app.MainApplication;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -24,40 +26,125 @@ import java.nio.IntBuffer;
 /**
  * @class Texture
  */
-public class Texture {
+public class Texture implements GLResource {
+
+    private static final int UNITS = 2;         /**< Unidad 0: color, unidad 1: alfa */
+    private static final int CTEX_MAGIC = ('C' << 24) | ('T' << 16) | ('E' << 8) | 'X';
+    private static final int CTEX_ALPHA = 1;
 
     private static int[] emptyTexture;
+    private static int[] boundTextures = new int[UNITS];
+    private static int activeUnit;
 
-    private int[] id;
+    private int[] id;       /**< Textura de color y textura de alfa (0 si no tiene) */
+    private Data data;      /**< Datos decodificados, para restaurar la textura */
 
     /**
      * @brief Inicializa el gestor de texturas
      */
     public static void initialize() {
 
+        GL gl = GL.get();
+
+        // Crea una textura 1x1 vacía (para los colores planos) y otra blanca (alfa opaco)
+        emptyTexture = new int[UNITS];
+        gl.glGenTextures(UNITS, emptyTexture, 0);
+        createPixel(emptyTexture[0], (byte) -128);
+        createPixel(emptyTexture[1], (byte) -1);
+
+        activeUnit = 0;
+        for(int unit = UNITS - 1; unit >= 0; unit--) {
+            gl.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, emptyTexture[unit]);
+            boundTextures[unit] = emptyTexture[unit];
+        }
+    }
+
+    /**
+     * @brief Crea una textura de 1x1 píxeles
+     * @param texture   Identificador de la textura
+     * @param value     Valor de los cuatro canales
+     */
+    private static void createPixel(int texture, byte value) {
+
+        GL gl = GL.get();
+
         ByteBuffer bb = ByteBuffer.allocateDirect(4);
-        bb.put(new byte[] {-128, -128, -128, -128});
+        bb.put(new byte[] {value, value, value, value});
         bb.position(0);
 
-        // Crea una textura 1x1 vacía (para los colores planos)
-        emptyTexture = new int[1];
-        GLES20.glGenTextures(1, emptyTexture, 0);
-
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, emptyTexture[0]);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
 
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 1, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bb);
+        gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 1, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bb);
     }
 
     /**
      * @brief Finaliza el gestor de texturas
      */
     public static void finish() {
-        GLES20.glDeleteTextures(1, emptyTexture, 0);
+        GL.get().glDeleteTextures(UNITS, emptyTexture, 0);
+    }
+
+    /**
+     * @class Data
+     * @brief Datos de una textura ya decodificados en CPU, listos para subir a OpenGL
+     */
+    public static class Data {
+        private Bitmap bitmap;                      /**< Imagen sin comprimir */
+        private ETC1Util.ETC1Texture etc1;          /**< Imagen ETC1 (.pkm) */
+        private ByteBuffer[] levels;                /**< Mipmaps ETC1 de color (.ctex) */
+        private ByteBuffer[] alphaLevels;           /**< Mipmaps ETC1 de alfa (.ctex, puede ser null) */
+        private int width;
+        private int height;
+
+        /**
+         * @brief Crea los datos de una textura a partir de una imagen ya generada
+         * @param bitmap    La imagen (la textura se queda con ella)
+         * @return  Los datos de la textura
+         */
+        public static Data fromBitmap(Bitmap bitmap) {
+            Data data = new Data();
+            data.bitmap = bitmap;
+            data.width = bitmap.getWidth();
+            data.height = bitmap.getHeight();
+            return data;
+        }
+
+        /**
+         * @brief Obtén el tamaño aproximado de los datos
+         * @return  El tamaño en bytes
+         */
+        public long getByteSize() {
+            long size = 0;
+            if(bitmap != null) {
+                size += (long) bitmap.getRowBytes() * bitmap.getHeight();
+            }
+            if(etc1 != null) {
+                size += etc1.getData().capacity();
+            }
+            for(ByteBuffer[] buffers : new ByteBuffer[][] {levels, alphaLevels}) {
+                if(buffers == null) continue;
+                for(ByteBuffer buffer : buffers) {
+                    size += buffer.capacity();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @brief Libera la imagen sin comprimir (los datos ya no se pueden volver a subir)
+         */
+        public void recycle() {
+            if(bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
     }
 
     /**
@@ -67,83 +154,276 @@ public class Texture {
      * @throws IOException      Si no se encuentra la textura
      */
     public Texture(String path) throws RuntimeException, IOException {
+        this(decode(path));
+    }
+
+    /**
+     * @brief Sube a OpenGL una textura ya decodificada (debe llamarse desde el hilo de OpenGL)
+     * @details Los datos no se modifican: se guardan para poder restaurar la textura y se
+     * pueden compartir (ver ResourceManager)
+     * @param data  Datos de la textura
+     * @throws RuntimeException Si no se puede crear la textura
+     */
+    public Texture(Data data) throws RuntimeException {
+        this.data = data;
+        this.id = new int[UNITS];
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() throws RuntimeException {
+
+        if(data.etc1 != null) {
+            this.id[0] = createTexture(false);
+            GL.get().loadTexture(GLES20.GL_TEXTURE_2D, 0, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, data.etc1);
+        } else if(data.levels != null) {
+            this.id[0] = createTexture(data.levels.length > 1);
+            uploadLevels(data.levels, data.width, data.height);
+            if(data.alphaLevels != null) {
+                this.id[1] = createTexture(data.alphaLevels.length > 1);
+                uploadLevels(data.alphaLevels, data.width, data.height);
+            }
+        } else {
+            this.id[0] = createTexture(false);
+            uploadImage(data.bitmap);
+        }
+    }
+
+    /**
+     * @brief Decodifica una textura en CPU (se puede llamar desde cualquier hilo)
+     * @details Si hay una versión convertida en tiempo de compilación (ver textures.gradle) se usa esa
+     * @param path  Ruta de la textura
+     * @return  Los datos de la textura
+     * @throws IOException  Si no se encuentra la textura
+     */
+    public static Data decode(String path) throws IOException {
+
+        Data data = new Data();
+        if(path.endsWith("pkm")) {
+            decodeETC1(path, data);
+        } else {
+            InputStream is = openConverted(path);
+            if(is != null) {
+                decodeCompressed(is, data);
+            } else {
+                decodeImage(path, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @brief Crea y selecciona una textura OpenGL
+     * @param mipmaps   Si la textura va a tener mipmaps
+     * @return  El identificador de la textura
+     * @throws RuntimeException Si no se puede crear la textura
+     */
+    private static int createTexture(boolean mipmaps) throws RuntimeException {
 
-        this.id = new int[1];
+        GL gl = GL.get();
 
         // Genera la textura
-        GLES20.glGenTextures(1, id, 0);
+        int[] texture = new int[1];
+        gl.glGenTextures(1, texture, 0);
 
-        if (id[0] == 0) {
+        if (texture[0] == 0) {
             throw new RuntimeException("Couldn't create texture");
         }
 
         // Selecciona la textura
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id[0]);
+        bind(0, texture[0]);
 
         // Establece parámetros de filtrado y repetición
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                mipmaps ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-        // Carga la textura (puede ser comprimida o no)
-        if(path.endsWith("pkm")) {
-            loadETC1(path);
-        } else {
-            loadImage(path);
-        }
+        return texture[0];
     }
 
     /**
      * @brief Borra la textura
      */
     public void delete() {
-        GLES20.glDeleteTextures(1, this.id, 0);
+        for(int unit = 0; unit < UNITS; unit++) {
+            if(boundTextures[unit] == id[unit]) {
+                boundTextures[unit] = 0;
+            }
+        }
+        GL.get().glDeleteTextures(id[1] != 0 ? 2 : 1, this.id, 0);
+        ResourceManager.getInstance().untrack(this);
     }
 
     /**
-     * @brief Activa la textura
+     * @brief Obtén el identificador OpenGL de la textura
+     * @return  El identificador de la textura
+     */
+    public int getId() {
+        return id[0];
+    }
+
+    /**
+     * @brief Activa la textura, el color en la unidad 0 y el alfa en la unidad 1
      * @param shader    Shader donde activarla
-     * @param unit      Slot de la textura
      */
-    public void enable(ShaderProgram shader, int unit) {
-        GLES20.glActiveTexture(unit);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id[0]);
-        shader.setUniform1i("tex" + (unit - GLES20.GL_TEXTURE0), 0);
+    public void enable(ShaderProgram shader) {
+        bind(0, id[0]);
+        bind(1, (id[1] != 0) ? id[1] : emptyTexture[1]);
+        shader.setUniform1i(ShaderProgram.TEX0, 0);
+        shader.setUniform1i(ShaderProgram.TEX1, 1);
+    }
+
+    /**
+     * @brief Desactiva la textura, dejando las texturas vacías en las unidades 0 y 1
+     */
+    public static void disable() {
+        bind(0, emptyTexture[0]);
+        bind(1, emptyTexture[1]);
     }
 
     /**
-     * @brief Desactiva la textura
-     * @param unit  Slot de la textura
+     * @brief Selecciona una textura, si no estaba ya seleccionada
+     * @param unit      Índice de la unidad de textura
+     * @param texture   Identificador de la textura
      */
-    public static void disable(int unit) {
-        GLES20.glActiveTexture(unit);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, emptyTexture[0]);
+    private static void bind(int unit, int texture) {
+        if(texture == boundTextures[unit]) return;
+        if(unit != activeUnit) {
+            GL.get().glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            activeUnit = unit;
+        }
+        GL.get().glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        boundTextures[unit] = texture;
     }
 
     /**
-     * @brief Carga una textura comprimida en formato ETC1
+     * @brief Abre la versión convertida (.ctex) de una textura, si existe
+     * @param path  Ruta de la textura original
+     * @return  El archivo convertido, o null si no existe
+     */
+    private static InputStream openConverted(String path) {
+        int dot = path.lastIndexOf('.');
+        if(dot < 0) return null;
+        try {
+            return MainApplication.getInstance().getAssets().open(path.substring(0, dot) + ".ctex");
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @brief Lee una textura ETC1 con mipmaps y alfa opcional (generada por textures.gradle)
+     * @param is            Archivo .ctex abierto
+     * @param data          Datos de salida
+     * @throws IOException  Si el archivo no es válido
+     */
+    static void decodeCompressed(InputStream is, Data data) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            if(in.readInt() != CTEX_MAGIC || in.readInt() != 1) {
+                throw new IOException("Invalid texture container");
+            }
+            data.width = in.readInt();
+            data.height = in.readInt();
+            int levels = in.readInt();
+            int flags = in.readInt();
+
+            data.levels = readLevels(in, levels);
+            if((flags & CTEX_ALPHA) != 0) {
+                data.alphaLevels = readLevels(in, levels);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @brief Lee una cadena de mipmaps ETC1
+     * @param in        Archivo de entrada
+     * @param levels    Número de niveles
+     * @return  Un buffer por nivel
+     * @throws IOException  Si el archivo está incompleto
+     */
+    private static ByteBuffer[] readLevels(DataInputStream in, int levels) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[levels];
+        byte[] data = null;
+        for(int level = 0; level < levels; level++) {
+            int size = in.readInt();
+            if(data == null) {
+                data = new byte[size];      // El primer nivel es el más grande
+            }
+            in.readFully(data, 0, size);
+            buffers[level] = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            buffers[level].put(data, 0, size);
+            buffers[level].position(0);
+        }
+        return buffers;
+    }
+
+    /**
+     * @brief Sube una cadena de mipmaps ETC1 a la textura seleccionada
+     * @param levels    Un buffer por nivel
+     * @param width     Ancho del primer nivel
+     * @param height    Alto del primer nivel
+     */
+    private static void uploadLevels(ByteBuffer[] levels, int width, int height) {
+        for(int level = 0; level < levels.length; level++) {
+            GL.get().glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, level, ETC1.ETC1_RGB8_OES,
+                    Math.max(1, width >> level), Math.max(1, height >> level), 0,
+                    levels[level].capacity(), levels[level]);
+        }
+    }
+
+    /**
+     * @brief Lee una textura comprimida en formato ETC1
      * @param path          Ruta del archivo
+     * @param data          Datos de salida
      * @throws IOException  Si no se encuentra el archivo
      */
-    private void loadETC1(String path) throws IOException {
+    private static void decodeETC1(String path, Data data) throws IOException {
         InputStream is = MainApplication.getInstance().getAssets().open(path);
-        ETC1Util.loadTexture(GLES20.GL_TEXTURE_2D, 0, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, is);
+        data.etc1 = ETC1Util.createTexture(is);
         is.close();
     }
 
     /**
-     * @brief Carga una textura a partir de una imagen
+     * @brief Decodifica una imagen
      * @param path          Ruta del archivo
+     * @param data          Datos de salida
      * @throws IOException  Si no se encuentra el archivo
      */
-    private void loadImage(String path) throws IOException {
+    private static void decodeImage(String path, Data data) throws IOException {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;   // Sin pre-scaling
         InputStream is = MainApplication.getInstance().getAssets().open(path);
-        Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-        bitmap.recycle();
+        data.bitmap = BitmapFactory.decodeStream(is, null, options);
         is.close();
+        if(data.bitmap == null) {
+            throw new IOException("Couldn't decode image: " + path);
+        }
+    }
+
+    /**
+     * @brief Sube una imagen a la textura seleccionada
+     * @param bitmap    La imagen
+     */
+    private static void uploadImage(Bitmap bitmap) {
+        GL gl = GL.get();
+        gl.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+
+        // OpenGL ES 2 sólo permite mipmaps con dimensiones potencia de 2
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        if((w & (w - 1)) == 0 && (h & (h - 1)) == 0) {
+            gl.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        }
     }
 }
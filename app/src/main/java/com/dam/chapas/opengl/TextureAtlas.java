@@ -0,0 +1,104 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file TextureAtlas.java
+ * @brief Atlas con las texturas pequeñas, generado en tiempo de compilación
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import android.util.Log;
+
+import com.dam.chapas.app.MainApplication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+/**
+ * @class TextureAtlas
+ * @details Lee texture/atlas.txt (ver textures.gradle), que contiene el tamaño de la página y el
+ * rectángulo de cada textura original dentro de ella. Los materiales que usan alguna de esas
+ * texturas pasan a usar la página del atlas, de forma que se pueden dibujar seguidos sin
+ * cambiar de textura. Los materiales sin textura no la usan: se dibujan con la variante sin
+ * textura del shader (ver ShaderProgram.select).
+ */
+public class TextureAtlas {
+
+    private static final String DESCRIPTOR = "texture/atlas.txt";
+
+    private static TextureAtlas instance = null;
+    private static boolean loaded = false;
+
+    private String pagePath;
+    private HashMap<String, float[]> regions;
+
+    /**
+     * @brief Obtén el atlas, cargándolo la primera vez (se puede llamar desde cualquier hilo)
+     * @return  El atlas, o null si no se ha generado
+     */
+    public static synchronized TextureAtlas getInstance() {
+        if(!loaded) {
+            loaded = true;
+            try {
+                instance = new TextureAtlas();
+            } catch(IOException e) {
+                Log.e("CHAPAS", "Texture atlas not available: " + e.toString());
+                instance = null;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @brief Carga el atlas
+     * @throws IOException  Si no se encuentra el atlas
+     */
+    private TextureAtlas() throws IOException {
+
+        regions = new HashMap<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(MainApplication.getInstance().getAssets().open(DESCRIPTOR)));
+        try {
+            // Primera línea: imagen de la página y su tamaño
+            String line = reader.readLine();
+            if(line == null) {
+                throw new IOException("Empty texture atlas");
+            }
+            pagePath = "texture/" + line.split(" ")[0];
+
+            // Resto de líneas: nombre y rectángulo de cada región
+            while((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                if(tokens.length < 5) continue;
+                regions.put(tokens[0], new float[] {
+                        Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]),
+                        Float.parseFloat(tokens[3]), Float.parseFloat(tokens[4])
+                });
+            }
+
+            // La página se decodifica ya, pero se sube a OpenGL la primera vez que se use
+            ResourceManager.getInstance().getTextureData(pagePath);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @brief Obtén la ruta de la página del atlas
+     * @details La textura se obtiene con ResourceManager, como cualquier otra
+     * @return  La ruta de la imagen de la página
+     */
+    public String getPagePath() {
+        return pagePath;
+    }
+
+    /**
+     * @brief Obtén el rectángulo de una textura dentro del atlas
+     * @param name  Nombre de la textura original
+     * @return  El rectángulo (s0, t0, s1, t1), o null si no está en el atlas
+     */
+    public float[] getRegion(String name) {
+        return regions.get(name);
+    }
+}
@@ -0,0 +1,129 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file TouchQueue.java
+ * @brief Cola de toques entre el hilo de la interfaz y el de la simulación
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import com.dam.chapas.game.GameState;
+
+/**
+ * @class TouchQueue
+ * @details Anillo de un solo productor (el hilo de la interfaz, que llama a offer) y un solo
+ * consumidor (el hilo de la simulación, que llama a drain una vez por fotograma). Los eventos se
+ * guardan en arrays reservados al crear la cola y los índices se publican con escrituras volatile,
+ * así que no hay bloqueos ni se reserva memoria por evento. Al vaciarla, los movimientos y
+ * desplazamientos seguidos se agrupan: de los movimientos sólo se entrega el último y los
+ * desplazamientos se suman. Si el anillo se llena, los eventos nuevos se descartan.
+ */
+public class TouchQueue {
+
+    public static final int DOWN = 0;
+    public static final int MOVE = 1;
+    public static final int UP = 2;
+    public static final int SCROLL = 3;     /**< x e y son la distancia desplazada */
+
+    static final int CAPACITY = 256;            /**< Debe ser potencia de 2 */
+    private static final int MASK = CAPACITY - 1;
+
+    private final int[] types = new int[CAPACITY];
+    private final float[] xs = new float[CAPACITY];
+    private final float[] ys = new float[CAPACITY];
+    private volatile int head = 0;      /**< Siguiente evento a leer (sólo lo escribe el consumidor) */
+    private volatile int tail = 0;      /**< Siguiente hueco a escribir (sólo lo escribe el productor) */
+    private int dropped = 0;            /**< Eventos descartados por estar llena (del productor) */
+
+    /**
+     * @brief Añade un evento a la cola (sólo desde el hilo productor)
+     * @param type  Tipo de evento (DOWN, MOVE, UP o SCROLL)
+     * @param x     Coordenada X, o distancia en X para SCROLL
+     * @param y     Coordenada Y, o distancia en Y para SCROLL
+     * @return  Si se ha añadido (false si la cola está llena)
+     */
+    public boolean offer(int type, float x, float y) {
+
+        int t = tail;
+        if(t - head == CAPACITY) {
+            dropped ++;
+            return false;
+        }
+
+        // Escribe el hueco antes de publicarlo al consumidor
+        int slot = t & MASK;
+        types[slot] = type;
+        xs[slot] = x;
+        ys[slot] = y;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * @brief Entrega los eventos pendientes a un estado (sólo desde el hilo consumidor)
+     * @param state Estado que recibe los eventos
+     * @return  El número de eventos entregados tras agrupar
+     */
+    public int drain(GameState state) {
+
+        int h = head;
+        int t = tail;
+        int delivered = 0;
+        while(h != t) {
+            int slot = h & MASK;
+            int type = types[slot];
+            float x = xs[slot];
+            float y = ys[slot];
+            h ++;
+
+            // Agrupa los eventos seguidos del mismo tipo
+            if(type == MOVE) {
+                while(h != t && types[h & MASK] == MOVE) {
+                    x = xs[h & MASK];
+                    y = ys[h & MASK];
+                    h ++;
+                }
+            } else if(type == SCROLL) {
+                while(h != t && types[h & MASK] == SCROLL) {
+                    x += xs[h & MASK];
+                    y += ys[h & MASK];
+                    h ++;
+                }
+            }
+
+            switch(type) {
+                case DOWN:
+                    state.onDown(x, y);
+                    break;
+                case MOVE:
+                    state.onMove(x, y);
+                    break;
+                case UP:
+                    state.onUp(x, y);
+                    break;
+                case SCROLL:
+                    state.onScroll(x, y);
+                    break;
+            }
+            delivered ++;
+
+            // Libera los huecos leídos cuanto antes para que el productor pueda reutilizarlos
+            head = h;
+        }
+        return delivered;
+    }
+
+    /**
+     * @brief Descarta los eventos pendientes (sólo desde el hilo consumidor)
+     */
+    public void clear() {
+        head = tail;
+    }
+
+    /**
+     * @brief Obtén los eventos descartados por estar llena la cola
+     * @return  El número de eventos descartados
+     */
+    public int getDropped() {
+        return dropped;
+    }
+}
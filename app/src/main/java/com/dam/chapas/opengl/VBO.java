@@ -15,10 +15,11 @@ import java.nio.FloatBuffer;
 /**
  * @class VBO
  */
-public class VBO {
+public class VBO implements GLResource {
 
     private int ncomponents;
     private int[] bufferID;
+    private FloatBuffer floatBuffer;    /**< Copia en CPU, para restaurar el VBO */
 
     public static final int VERTICES = 3;
     public static final int TEXCOORDS = 2;
@@ -30,19 +31,46 @@ public class VBO {
      * @param ncomponents   Número de componentes
      */
     public VBO(float[] buffer, int ncomponents) {
+        this(createBuffer(buffer), ncomponents);
+    }
+
+    /**
+     * @brief Constructor de un VBO a partir de un buffer ya preparado
+     * @param floatBuffer   Datos del VBO (buffer directo en orden nativo)
+     * @param ncomponents   Número de componentes
+     */
+    public VBO(FloatBuffer floatBuffer, int ncomponents) {
+
+        this.ncomponents = ncomponents;
+        this.floatBuffer = floatBuffer;
+        bufferID = new int[1];
+        restore();
+        ResourceManager.getInstance().track(this);
+    }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void restore() {
+        GL gl = GL.get();
+        gl.glGenBuffers(1, bufferID, 0);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, floatBuffer.capacity() * Float.BYTES, floatBuffer, GLES20.GL_STATIC_DRAW);
+    }
+
+    /**
+     * @brief Crea un buffer directo listo para subir a OpenGL (se puede llamar desde cualquier hilo)
+     * @param buffer    Datos
+     * @return  El buffer
+     */
+    public static FloatBuffer createBuffer(float[] buffer) {
         ByteBuffer bb = ByteBuffer.allocateDirect(buffer.length * Float.BYTES);
         bb.order(ByteOrder.nativeOrder());
         FloatBuffer floatBuffer = bb.asFloatBuffer();
         floatBuffer.put(buffer);
         floatBuffer.position(0);
-
-        this.ncomponents = ncomponents;
-
-        bufferID = new int[1];
-        GLES20.glGenBuffers(1, bufferID, 0);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, buffer.length * Float.BYTES, floatBuffer, GLES20.GL_STATIC_DRAW);
+        return floatBuffer;
     }
 
     /**
@@ -50,9 +78,20 @@ public class VBO {
      * @param attribute ID del atributo en el shader
      */
     public void beginDraw(int attribute) {
-        GLES20.glEnableVertexAttribArray(attribute);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
-        GLES20.glVertexAttribPointer(attribute, this.ncomponents, GLES20.GL_FLOAT, false, 0, 0);
+        beginDraw(attribute, 0);
+    }
+
+    /**
+     * @brief Comienza el dibujado del VBO a partir de un vértice
+     * @param attribute     ID del atributo en el shader
+     * @param baseVertex    Vértice que corresponde al índice 0 (ver IBO)
+     */
+    public void beginDraw(int attribute, int baseVertex) {
+        GL gl = GL.get();
+        gl.glEnableVertexAttribArray(attribute);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferID[0]);
+        gl.glVertexAttribPointer(attribute, this.ncomponents, GLES20.GL_FLOAT, false, 0,
+                baseVertex * this.ncomponents * Float.BYTES);
     }
 
     /**
@@ -60,13 +99,14 @@ public class VBO {
      * @param attribute ID del atributo en el shader
      */
     public void endDraw(int attribute) {
-        GLES20.glDisableVertexAttribArray(attribute);
+        GL.get().glDisableVertexAttribArray(attribute);
     }
 
     /**
      * @brief Borra el VBO
      */
     public void delete() {
-        GLES20.glDeleteBuffers(1, bufferID, 0);
+        GL.get().glDeleteBuffers(1, bufferID, 0);
+        ResourceManager.getInstance().untrack(this);
     }
 }
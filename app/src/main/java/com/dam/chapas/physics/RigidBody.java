@@ -20,6 +20,7 @@ public abstract class RigidBody {
     protected float[] rotation = new float[] {0.0f, 1.0f, 0.0f, 0.0f};
     protected float[] scale = new float[] {1.0f, 1.0f, 1.0f};
     protected float rotationSpeed;
+    private Mesh mesh;
 
     private static final float VELOCITY_EPSILON = 0.01f;
 
@@ -77,11 +78,21 @@ public abstract class RigidBody {
      */
     public void linkToMesh(Mesh mesh) {
         mesh.setRigidBody(this);
+        this.mesh = mesh;
         position = mesh.getPosition();
         rotation = mesh.getRotation();
         scale = mesh.getScale();
     }
 
+    /**
+     * @brief Avisa al Mesh enlazado de que su transformación ha cambiado
+     */
+    protected void invalidateMesh() {
+        if(mesh != null) {
+            mesh.invalidateTransform();
+        }
+    }
+
     /**
      * @brief Establece la posición de este cuerpo
      * @param x Posición X
@@ -92,6 +103,7 @@ public abstract class RigidBody {
         position[0] = x;
         position[1] = y;
         position[2] = z;
+        invalidateMesh();
     }
 
     /**
@@ -139,6 +151,12 @@ public abstract class RigidBody {
      */
     public boolean update(float delta) {
 
+        // Si está quieto no hay nada que actualizar
+        if(velocity[0] == 0.0f && velocity[1] == 0.0f && velocity[2] == 0.0f) {
+            return false;
+        }
+        invalidateMesh();
+
         // Actualiza la posición
         position[0] += velocity[0] * delta;
         position[1] += velocity[1] * delta;
@@ -59,6 +59,8 @@ public class VerticalCylinderBody extends RigidBody {
                 this.position[2] -= overlap * distanceVector[1];
                 bodyPos[0] += overlap * distanceVector[0];
                 bodyPos[2] += overlap * distanceVector[1];
+                this.invalidateMesh();
+                vcBody.invalidateMesh();
 
                 float tangentVectorX = -distanceVector[1];
                 float tangentVectorZ = distanceVector[0];
@@ -0,0 +1,125 @@
+package com.dam.chapas.game;
+
+/**
+ * @file GameDataTest.java
+ * @brief Pruebas de las reservas de memoria de la lógica de la partida en cada fotograma
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import com.dam.chapas.opengl.GL;
+import com.dam.chapas.opengl.Hud;
+import com.dam.chapas.opengl.IBO;
+import com.dam.chapas.opengl.RecordingGL;
+import com.dam.chapas.opengl.ShaderProgram;
+import com.dam.chapas.physics.RigidBody;
+import com.dam.chapas.physics.World;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @class GameDataTest
+ * @details Avanza los relojes, los textos del Hud y la animación del texto central como en cada
+ * fotograma de la partida y mide con ThreadMXBean los bytes reservados por el hilo: una vez
+ * calentados, muchos fotogramas seguidos (con varios cambios de segundo) no deben reservar nada.
+ * El calentamiento recorre varias veces la animación y los relojes completos para que el JIT
+ * compile todos los casos; si no, desoptimizar el código compilado también reserva memoria. Por
+ * si el JIT aún está trabajando se miden varias rondas y vale la mejor: una reserva real en cada
+ * fotograma aparecería en todas.
+ */
+public class GameDataTest {
+
+    private static final int WARMUP_ROUNDS = 5;         /**< Rondas para cargar clases y compilar todos los casos */
+    private static final int MEASURED_ROUNDS = 3;       /**< Rondas medidas, se toma la mejor */
+    private static final int ROUND_FRAMES = 600;        /**< Fotogramas por ronda (diez cambios de segundo) */
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private GameData data;
+    private GameState state;
+
+    /**
+     * @class CenterTextState
+     * @brief Estado que sólo anima el texto central
+     */
+    private static class CenterTextState extends GameState {
+        @Override public void onUpdate(ShaderProgram shader) { }
+        @Override public void onDown(float x, float y) { }
+        @Override public void onMove(float x, float y) { }
+        @Override public void onUp(float x, float y) { }
+        @Override public void onScroll(float dx, float dy) { }
+        @Override public void onCollision(RigidBody b1, RigidBody b2) { }
+    }
+
+    /**
+     * @brief Crea una partida con un Hud sin fuente ni shader sobre RecordingGL
+     */
+    @Before
+    public void setUp() {
+        GL.set(new RecordingGL());
+        IBO.initialize();
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        data = new GameData(new World(null), new Hud(null, null, 1.0f));
+        state = new CenterTextState();
+    }
+
+    /**
+     * @brief Para los hilos de carga que ha lanzado la partida (sin cargar, free no toca OpenGL)
+     */
+    @After
+    public void tearDown() {
+        data.free();
+    }
+
+    /**
+     * @brief Los fotogramas de la partida no reservan memoria una vez calentados
+     */
+    @Test
+    public void steadyFramesDoNotAllocate() {
+        for(int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound();
+        }
+
+        // Lo que reserva la propia medida
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+
+        long allocated = Long.MAX_VALUE;
+        for(int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = allocatedBytes();
+            runRound();
+            allocated = Math.min(allocated, allocatedBytes() - start - overhead);
+        }
+
+        assertEquals("Bytes reservados en " + ROUND_FRAMES + " fotogramas", 0, allocated);
+    }
+
+    /**
+     * @brief Empieza un turno con el texto central y lo avanza como lo hacen los estados en cada fotograma
+     */
+    private void runRound() {
+        data.setTurn(false);
+        state.initCenterText(data, "Primera parte");
+        for(int i = 0; i < ROUND_FRAMES; i++) {
+            data.tickTime(1);
+            data.tickTurnTime(false, 1);
+            data.getFramesUntilClockChange();
+            state.animateCenterText(data, 1);
+        }
+    }
+
+    /**
+     * @brief Obtén los bytes reservados hasta ahora por este hilo
+     * @return  Los bytes reservados
+     */
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
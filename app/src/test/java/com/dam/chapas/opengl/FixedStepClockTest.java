@@ -0,0 +1,125 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file FixedStepClockTest.java
+ * @brief Pruebas de FixedStepClock con un tiempo controlado
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @class FixedStepClockTest
+ */
+public class FixedStepClockTest {
+
+    private static final int MAX_STEPS = 120;
+
+    private FakeTime time;
+    private FixedStepClock clock;
+
+    /**
+     * @class FakeTime
+     * @brief Tiempo que sólo avanza cuando lo pide la prueba
+     */
+    private static class FakeTime implements FixedStepClock.TimeSource {
+        long now = 0;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    /**
+     * @brief Crea un reloj con el tiempo controlado, empezando en 0
+     */
+    @Before
+    public void setUp() {
+        time = new FakeTime();
+        clock = new FixedStepClock(MAX_STEPS, time);
+    }
+
+    /**
+     * @brief La primera llamada avanza un único paso, sin intervalo
+     */
+    @Test
+    public void firstTickAdvancesOneStep() {
+        assertEquals(1, clock.tick());
+        assertEquals(0, clock.getInterval());
+    }
+
+    /**
+     * @brief Los restos de los fotogramas se acumulan hasta completar pasos
+     */
+    @Test
+    public void stepsAccumulate() {
+        clock.tick();
+
+        time.now += FixedStepClock.STEP * 3 / 2;
+        assertEquals(1, clock.tick());
+        assertEquals(FixedStepClock.STEP * 3 / 2, clock.getInterval());
+
+        time.now += FixedStepClock.STEP / 2;
+        assertEquals(1, clock.tick());
+
+        time.now += FixedStepClock.STEP / 2;
+        assertEquals(0, clock.tick());
+
+        // 30 fotogramas por segundo durante un segundo son 60 pasos
+        int steps = 0;
+        for(int i = 0; i < 30; i++) {
+            time.now += 2 * FixedStepClock.STEP;
+            steps += clock.tick();
+        }
+        assertEquals(60, steps);
+    }
+
+    /**
+     * @brief Tras un bloqueo largo se avanzan como mucho maxSteps pasos y se descarta el resto
+     */
+    @Test
+    public void longStallIsClamped() {
+        clock.tick();
+
+        time.now += 10 * 60 * FixedStepClock.STEP;
+        assertEquals(MAX_STEPS, clock.tick());
+        assertEquals(MAX_STEPS, clock.getSteps());
+
+        assertEquals(0, clock.tick());
+        time.now += FixedStepClock.STEP;
+        assertEquals(1, clock.tick());
+    }
+
+    /**
+     * @brief El tiempo en pausa no cuenta y al reanudar no hay una ráfaga de pasos
+     */
+    @Test
+    public void pauseResumeWithoutBurst() {
+        clock.tick();
+        time.now += FixedStepClock.STEP / 2;
+        clock.tick();
+
+        clock.pause();
+        assertTrue(clock.isPaused());
+        time.now += 5 * 60 * FixedStepClock.STEP;
+        assertEquals(0, clock.tick());
+        assertEquals(0, clock.getInterval());
+
+        clock.resume();
+        assertFalse(clock.isPaused());
+        time.now += 5 * 60 * FixedStepClock.STEP;
+        assertEquals(1, clock.tick());
+
+        // El medio paso de antes de la pausa también se ha descartado
+        time.now += FixedStepClock.STEP / 2;
+        assertEquals(0, clock.tick());
+        time.now += FixedStepClock.STEP / 2;
+        assertEquals(1, clock.tick());
+    }
+}
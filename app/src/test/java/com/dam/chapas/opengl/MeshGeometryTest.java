@@ -0,0 +1,125 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshGeometryTest.java
+ * @brief Pruebas de la lectura de OBJ y del formato .cmesh
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @class MeshGeometryTest
+ */
+public class MeshGeometryTest {
+
+    /** Dos cuadrados con materiales distintos que comparten una arista */
+    private static final String OBJ =
+            "mtllib test.mtl\n" +
+            "o Test\n" +
+            "v 0 0 0\nv 1 0 0\nv 1 0 1\nv 0 0 1\nv 2 0 0\nv 2 0 1\n" +
+            "vt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\n" +
+            "vn 0 1 0\n" +
+            "usemtl A\n" +
+            "f 1/1/1 4/4/1 2/2/1\nf 2/2/1 4/4/1 3/3/1\n" +
+            "usemtl B\n" +
+            "f 2/1/1 3/4/1 5/2/1\nf 5/2/1 3/4/1 6/3/1\n";
+
+    /**
+     * @brief Los vértices no se comparten entre materiales y los grupos acaban donde toca
+     */
+    @Test
+    public void parseSplitsMaterials() throws IOException {
+        MeshGeometry mesh = parse();
+
+        assertEquals("test.mtl", mesh.getMtllib());
+        assertEquals(8, mesh.getVertexCount());
+        assertEquals(4, mesh.getTriangleCount());
+        assertArrayEquals(new int[] {6, 12}, mesh.groupEnds);
+        assertArrayEquals(new String[] {"A", "B"}, mesh.groupMaterials);
+        assertArrayEquals(new float[] {0, 1, 0, 0, 1, 1, 1, 0}, Arrays.copyOf(mesh.texcoords, 8), 0.0f);    // t invertida
+    }
+
+    /**
+     * @brief Sólo se llevan al atlas las coordenadas de los materiales que lo usan
+     */
+    @Test
+    public void remapOnlyAtlasMaterials() throws IOException {
+        MeshGeometry mesh = parse();
+        HashMap<String, float[]> regions = new HashMap<>();
+        regions.put("B", new float[] {0.5f, 0.5f, 1.0f, 1.0f});
+        mesh.remapTexcoords(regions);
+
+        // El primer vértice de A no cambia y el primero de B, con (0, 1), va a la esquina de la región
+        assertEquals(0.0f, mesh.texcoords[0], 0.0f);
+        assertEquals(1.0f, mesh.texcoords[1], 0.0f);
+        int b = mesh.indices[6];
+        assertEquals(0.5f, mesh.texcoords[b * 2], 0.0f);
+        assertEquals(1.0f, mesh.texcoords[b * 2 + 1], 0.0f);
+    }
+
+    /**
+     * @brief Un modelo optimizado se lee tal y como se guardó
+     */
+    @Test
+    public void writeAndRead() throws IOException {
+        MeshGeometry mesh = parse();
+        mesh.optimize(IBO.MAX_SHORT_VERTICES);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mesh.write(bytes);
+        MeshGeometry read = MeshGeometry.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(mesh.getMtllib(), read.getMtllib());
+        assertArrayEquals(mesh.vertices, read.vertices, 0.0f);
+        assertArrayEquals(mesh.texcoords, read.texcoords, 0.0f);
+        assertArrayEquals(mesh.normals, read.normals, 0.0f);
+        assertArrayEquals(mesh.indices, read.indices);
+        assertArrayEquals(mesh.groupEnds, read.groupEnds);
+        assertArrayEquals(mesh.groupMaterials, read.groupMaterials);
+    }
+
+    /**
+     * @brief La división en trozos calculada al optimizar se guarda con el modelo
+     */
+    @Test
+    public void writeAndReadChunks() throws IOException {
+        MeshGeometry mesh = parse();
+        mesh.optimize(IBO.MAX_SHORT_VERTICES);
+        MeshChunks chunks = mesh.getChunks(2, 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mesh.write(bytes);
+        MeshChunks read = MeshGeometry.read(new ByteArrayInputStream(bytes.toByteArray())).getChunks(2, 1);
+
+        assertEquals(chunks.nchunks, read.nchunks);
+        assertEquals(chunks.nlevels, read.nlevels);
+        assertArrayEquals(chunks.indices, read.indices);
+        assertArrayEquals(chunks.start, read.start);
+        assertArrayEquals(chunks.end, read.end);
+        assertArrayEquals(chunks.bounds, read.bounds, 0.0f);
+        assertArrayEquals(chunks.lodIndices, read.lodIndices);
+        assertArrayEquals(chunks.lodStart, read.lodStart);
+        assertArrayEquals(chunks.lodEnd, read.lodEnd);
+        assertArrayEquals(chunks.errors, read.errors, 0.0f);
+    }
+
+    /**
+     * @brief Lee el modelo de prueba
+     * @return  La geometría
+     */
+    private static MeshGeometry parse() throws IOException {
+        return MeshGeometry.parseObj(new BufferedReader(new StringReader(OBJ)), "test.obj");
+    }
+}
@@ -0,0 +1,133 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file MeshOptimizerTest.java
+ * @brief Pruebas de MeshOptimizer sobre una rejilla sintética
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @class MeshOptimizerTest
+ * @details Optimiza una rejilla con los triángulos desordenados y comprueba que el ACMR mejora sin
+ * que cambie el conjunto de triángulos (comparados por las posiciones de sus vértices, ya que los
+ * vértices se renumeran).
+ */
+public class MeshOptimizerTest {
+
+    private static final int GRID = 32;     /**< Cuadrados por lado de la rejilla */
+
+    /**
+     * @brief El ACMR optimizado es menor que el original
+     */
+    @Test
+    public void optimizeLowersAcmr() {
+        float[][] mesh = createGrid();
+        int[] indices = createShuffledIndices();
+        float original = MeshOptimizer.computeAcmr(indices, 0, indices.length, MeshOptimizer.ACMR_CACHE_SIZE);
+
+        MeshOptimizer optimizer = new MeshOptimizer(mesh[0], mesh[1], mesh[2], indices);
+        optimizer.optimize(new int[] {indices.length}, IBO.MAX_SHORT_VERTICES);
+        int[] optimized = optimizer.getIndices();
+        float acmr = MeshOptimizer.computeAcmr(optimized, 0, optimized.length, MeshOptimizer.ACMR_CACHE_SIZE);
+
+        assertTrue("ACMR " + original + " -> " + acmr, acmr < original);
+        assertTrue("ACMR " + acmr, acmr < 1.0f);
+    }
+
+    /**
+     * @brief La optimización conserva los triángulos y su orientación
+     */
+    @Test
+    public void optimizeKeepsTriangles() {
+        float[][] mesh = createGrid();
+        int[] indices = createShuffledIndices();
+        List<String> original = describeTriangles(mesh[0], indices);
+
+        MeshOptimizer optimizer = new MeshOptimizer(mesh[0], mesh[1], mesh[2], indices.clone());
+        optimizer.optimize(new int[] {indices.length}, IBO.MAX_SHORT_VERTICES);
+
+        assertEquals(mesh[0].length, optimizer.getVertices().length);
+        assertEquals(original, describeTriangles(optimizer.getVertices(), optimizer.getIndices()));
+    }
+
+    /**
+     * @brief Crea los vértices de la rejilla, en el plano XZ
+     * @return  Vértices, coordenadas de textura y normales
+     */
+    private static float[][] createGrid() {
+        int n = GRID + 1;
+        float[] vertices = new float[n * n * 3];
+        float[] texcoords = new float[n * n * 2];
+        float[] normals = new float[n * n * 3];
+        for(int z = 0; z < n; z++) {
+            for(int x = 0; x < n; x++) {
+                int v = z * n + x;
+                vertices[v * 3] = x;
+                vertices[v * 3 + 2] = z;
+                texcoords[v * 2] = x / (float) GRID;
+                texcoords[v * 2 + 1] = z / (float) GRID;
+                normals[v * 3 + 1] = 1.0f;
+            }
+        }
+        return new float[][] {vertices, texcoords, normals};
+    }
+
+    /**
+     * @brief Crea los triángulos de la rejilla en un orden aleatorio (siempre el mismo)
+     * @return  Los índices
+     */
+    private static int[] createShuffledIndices() {
+        int n = GRID + 1;
+        List<int[]> triangles = new ArrayList<>();
+        for(int z = 0; z < GRID; z++) {
+            for(int x = 0; x < GRID; x++) {
+                int v = z * n + x;
+                triangles.add(new int[] {v, v + n, v + 1});
+                triangles.add(new int[] {v + 1, v + n, v + n + 1});
+            }
+        }
+        Collections.shuffle(triangles, new Random(1234));
+
+        int[] indices = new int[triangles.size() * 3];
+        for(int t = 0; t < triangles.size(); t++) {
+            System.arraycopy(triangles.get(t), 0, indices, t * 3, 3);
+        }
+        return indices;
+    }
+
+    /**
+     * @brief Describe los triángulos por las posiciones de sus vértices, sin depender del orden
+     * @param vertices  Vértices (x, y, z)
+     * @param indices   Índices de los triángulos
+     * @return  Una descripción por triángulo, ordenadas
+     */
+    private static List<String> describeTriangles(float[] vertices, int[] indices) {
+        List<String> result = new ArrayList<>();
+        String[] corners = new String[3];
+        for(int t = 0; t < indices.length / 3; t++) {
+            for(int j = 0; j < 3; j++) {
+                int v = indices[t * 3 + j];
+                corners[j] = "(" + vertices[v * 3] + "," + vertices[v * 3 + 1] + "," + vertices[v * 3 + 2] + ")";
+            }
+
+            // Empieza por la menor esquina, conservando la orientación
+            int first = 0;
+            for(int j = 1; j < 3; j++) {
+                if(corners[j].compareTo(corners[first]) < 0) first = j;
+            }
+            result.add(corners[first] + corners[(first + 1) % 3] + corners[(first + 2) % 3]);
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,230 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file RenderQueueTest.java
+ * @brief Pruebas del envío de fotogramas de RenderQueue sobre RecordingGL
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import androidx.core.util.Pair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @class RenderQueueTest
+ * @details Dibuja cuadrados con el shader de la escena a través de RenderQueue y comprueba las
+ * llamadas que llegan a OpenGL: cuántas llamadas de dibujado y cambios de estado genera un fotograma
+ * y que repetir el mismo fotograma no vuelve a subir uniforms ni a seleccionar programas o texturas.
+ */
+public class RenderQueueTest {
+
+    private static final String SHADER_DIR = "src/main/assets/shader/";
+    private static final String[] UNIFORM_CALLS = new String[] {
+            "glUniform1i", "glUniform1f", "glUniform3fv", "glUniform4fv", "glUniformMatrix4fv",
+    };
+
+    private RecordingGL gl;
+    private ShaderProgram shader;
+    private Texture texture;
+    private Camera camera;
+    private RenderQueue queue;
+
+    /**
+     * @class Quad
+     * @brief Cuadrado de un solo grupo de material, sin esfera envolvente (siempre visible)
+     */
+    private static class Quad extends Mesh {
+
+        /**
+         * @brief Constructor de un Quad
+         * @param material  Material del cuadrado
+         */
+        Quad(Material material) {
+            vbos = new VBO[] {
+                    new VBO(new float[] {-1, -1, 0,  1, -1, 0,  1, 1, 0,  -1, 1, 0}, 3),
+                    new VBO(new float[] {0, 0,  1, 0,  1, 1,  0, 1}, 2),
+                    new VBO(new float[] {0, 0, 1,  0, 0, 1,  0, 0, 1,  0, 0, 1}, 3),
+            };
+            ibo = new IBO(new short[] {0, 1, 2, 0, 2, 3});
+            materials = new Material[] {material};
+            materialGroups = new ArrayList<>();
+            materialGroups.add(new Pair<>(6, material));
+        }
+    }
+
+    /**
+     * @brief Instala RecordingGL y crea el shader de la escena y una textura
+     */
+    @Before
+    public void setUp() throws IOException {
+        gl = new RecordingGL();
+        GL.set(gl);
+        Texture.initialize();
+        IBO.initialize();
+
+        String vs = readFile(SHADER_DIR + "scene.vs.glsl");
+        String fs = readFile(SHADER_DIR + "scene.fs.glsl");
+        shader = new ShaderProgram(ShaderProgram.FLAG_TEXTURED, vs, fs);
+        shader.setUntexturedVariant(new ShaderProgram(0, vs, fs));
+
+        Texture.Data data = new Texture.Data();
+        Texture.decodeCompressed(new ByteArrayInputStream(createCompressedTexture()), data);
+        texture = new Texture(data);
+
+        camera = new Camera();
+        queue = new RenderQueue();
+    }
+
+    /**
+     * @brief Un fotograma agrupa los elementos por programa y textura sin cambios redundantes
+     */
+    @Test
+    public void frameGroupsByState() {
+        Material textured = new Material();
+        textured.setTexture(texture);
+        Material untextured = new Material();
+
+        List<Mesh> meshes = new ArrayList<>();
+        meshes.add(new Quad(textured));
+        meshes.add(new Quad(untextured));
+        meshes.add(new Quad(textured));
+
+        gl.reset();
+        drawFrame(meshes);
+
+        assertEquals(3, queue.getDrawCalls());
+        assertEquals(3, gl.getDrawCalls());
+        assertEquals(2, queue.getStateChanges());
+        assertEquals(2, count(gl.getLog(), "glUseProgram"));
+        assertEquals(0, gl.getRedundantStateChanges());
+
+        // El mismo fotograma otra vez sólo cambia de programa y de textura entre los dos estados
+        gl.reset();
+        drawFrame(meshes);
+
+        assertEquals(3, gl.getDrawCalls());
+        assertEquals(0, gl.getRedundantStateChanges());
+        assertEquals(0, count(gl.getLog(), UNIFORM_CALLS));
+    }
+
+    /**
+     * @brief Los opacos a distintas distancias se agrupan igualmente por programa y textura
+     */
+    @Test
+    public void stateSortsBeforeDistance() {
+        Material textured = new Material();
+        textured.setTexture(texture);
+        Material untextured = new Material();
+
+        // Alternan los dos estados según se alejan de la cámara
+        List<Mesh> meshes = new ArrayList<>();
+        for(int i = 0; i < 6; i++) {
+            Mesh quad = new Quad((i % 2 == 0) ? textured : untextured);
+            quad.setPosition(0.0f, 0.0f, -1.0f - 2.0f * i);
+            meshes.add(quad);
+        }
+
+        gl.reset();
+        drawFrame(meshes);
+
+        assertEquals(6, gl.getDrawCalls());
+        assertEquals(2, queue.getStateChanges());
+        assertEquals(2, count(gl.getLog(), "glUseProgram"));
+        assertEquals(0, gl.getRedundantStateChanges());
+    }
+
+    /**
+     * @brief Repetir un fotograma idéntico no vuelve a subir uniforms ni a seleccionar programas o texturas
+     */
+    @Test
+    public void identicalFrameIsNotResent() {
+        Material textured = new Material();
+        textured.setTexture(texture);
+        List<Mesh> meshes = Collections.<Mesh>singletonList(new Quad(textured));
+
+        gl.reset();
+        drawFrame(meshes);
+
+        assertEquals(1, gl.getDrawCalls());
+        assertEquals(1, count(gl.getLog(), "glUseProgram"));
+        assertEquals(0, gl.getRedundantStateChanges());
+
+        gl.reset();
+        drawFrame(meshes);
+
+        assertEquals(1, queue.getDrawCalls());
+        assertEquals(1, gl.getDrawCalls());
+        assertEquals(0, gl.getRedundantStateChanges());
+        assertEquals(0, count(gl.getLog(), UNIFORM_CALLS));
+        assertEquals(0, count(gl.getLog(), "glUseProgram", "glBindTexture", "glActiveTexture"));
+    }
+
+    /**
+     * @brief Dibuja un fotograma registrando las llamadas
+     * @param meshes    Meshes a dibujar
+     */
+    private void drawFrame(List<Mesh> meshes) {
+        gl.setLogging(true);
+        queue.begin(camera);
+        for(Mesh mesh : meshes) {
+            queue.add(mesh, shader);
+        }
+        queue.flush();
+    }
+
+    /**
+     * @brief Cuenta las llamadas registradas con alguno de los nombres dados
+     * @param log   Llamadas registradas
+     * @param names Nombres a contar
+     * @return  El número de llamadas
+     */
+    private static int count(List<String> log, String... names) {
+        int n = 0;
+        for(String name : names) {
+            n += Collections.frequency(log, name);
+        }
+        return n;
+    }
+
+    /**
+     * @brief Lee un archivo de texto del módulo
+     * @param path  Ruta relativa al módulo
+     * @return  El contenido del archivo
+     */
+    private static String readFile(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(path).toPath()), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @brief Crea una textura .ctex de 4x4 píxeles con un solo nivel (ver textures.gradle)
+     * @return  El contenido del archivo
+     */
+    private static byte[] createCompressedTexture() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(('C' << 24) | ('T' << 16) | ('E' << 8) | 'X');
+        out.writeInt(1);    // Versión
+        out.writeInt(4);    // Ancho
+        out.writeInt(4);    // Alto
+        out.writeInt(1);    // Niveles
+        out.writeInt(0);    // Sin alfa
+        out.writeInt(8);    // Un bloque ETC1
+        out.write(new byte[8]);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+package com.dam.chapas.opengl;
+
+/**
+ * @file TouchQueueTest.java
+ * @brief Pruebas de la cola de toques
+ * @author Andrés Martínez, Ignacio Gómez y Eduardo Díaz
+ */
+
+import com.dam.chapas.game.GameState;
+import com.dam.chapas.physics.RigidBody;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @class TouchQueueTest
+ */
+public class TouchQueueTest {
+
+    private TouchQueue queue;
+    private RecordingState state;
+
+    /**
+     * @class RecordingState
+     * @brief Estado que apunta los eventos que recibe
+     */
+    private static class RecordingState extends GameState {
+        final List<String> events = new ArrayList<>();
+
+        @Override public void onUpdate(ShaderProgram shader) { }
+        @Override public void onDown(float x, float y) { events.add("down " + x + " " + y); }
+        @Override public void onMove(float x, float y) { events.add("move " + x + " " + y); }
+        @Override public void onUp(float x, float y) { events.add("up " + x + " " + y); }
+        @Override public void onScroll(float dx, float dy) { events.add("scroll " + dx + " " + dy); }
+        @Override public void onCollision(RigidBody b1, RigidBody b2) { }
+    }
+
+    /**
+     * @brief Crea una cola vacía
+     */
+    @Before
+    public void setUp() {
+        queue = new TouchQueue();
+        state = new RecordingState();
+    }
+
+    /**
+     * @brief De los movimientos seguidos sólo se entrega el último
+     */
+    @Test
+    public void coalescesMoves() {
+        queue.offer(TouchQueue.DOWN, 1, 2);
+        queue.offer(TouchQueue.MOVE, 3, 4);
+        queue.offer(TouchQueue.MOVE, 5, 6);
+        queue.offer(TouchQueue.MOVE, 7, 8);
+        queue.offer(TouchQueue.UP, 9, 10);
+
+        assertEquals(3, queue.drain(state));
+        assertEquals(Arrays.asList("down 1.0 2.0", "move 7.0 8.0", "up 9.0 10.0"), state.events);
+    }
+
+    /**
+     * @brief Los desplazamientos seguidos se suman, y otro evento en medio los separa
+     */
+    @Test
+    public void sumsScrolls() {
+        queue.offer(TouchQueue.SCROLL, 1, 10);
+        queue.offer(TouchQueue.SCROLL, 2, 20);
+        queue.offer(TouchQueue.SCROLL, 3, 30);
+        queue.offer(TouchQueue.DOWN, 0, 0);
+        queue.offer(TouchQueue.SCROLL, 4, 40);
+
+        assertEquals(3, queue.drain(state));
+        assertEquals(Arrays.asList("scroll 6.0 60.0", "down 0.0 0.0", "scroll 4.0 40.0"), state.events);
+    }
+
+    /**
+     * @brief Con la cola llena los eventos nuevos se descartan y se cuentan
+     */
+    @Test
+    public void dropsWhenFull() {
+        for(int i = 0; i < TouchQueue.CAPACITY; i++) {
+            assertTrue(queue.offer(TouchQueue.DOWN, i, 0));
+        }
+        assertFalse(queue.offer(TouchQueue.UP, 0, 0));
+        assertEquals(1, queue.getDropped());
+
+        // Se entregan los que cabían, en orden, y vuelve a haber sitio
+        assertEquals(TouchQueue.CAPACITY, queue.drain(state));
+        assertEquals("down 0.0 0.0", state.events.get(0));
+        assertEquals("down 255.0 0.0", state.events.get(TouchQueue.CAPACITY - 1));
+        assertTrue(queue.offer(TouchQueue.UP, 0, 0));
+    }
+
+    /**
+     * @brief Los eventos que dan la vuelta al anillo se entregan en orden
+     */
+    @Test
+    public void wrapsAround() {
+        int n = TouchQueue.CAPACITY * 3 / 4;
+        for(int round = 0; round < 3; round++) {
+            state.events.clear();
+            for(int i = 0; i < n; i++) {
+                assertTrue(queue.offer((i % 2 == 0) ? TouchQueue.DOWN : TouchQueue.UP, round, i));
+            }
+            assertEquals(n, queue.drain(state));
+            for(int i = 0; i < n; i++) {
+                String type = (i % 2 == 0) ? "down " : "up ";
+                assertEquals(type + (float) round + " " + (float) i, state.events.get(i));
+            }
+        }
+        assertEquals(0, queue.getDropped());
+    }
+
+    /**
+     * @brief clear descarta los eventos pendientes
+     */
+    @Test
+    public void clearDiscardsPending() {
+        queue.offer(TouchQueue.DOWN, 1, 2);
+        queue.offer(TouchQueue.UP, 1, 2);
+        queue.clear();
+
+        assertEquals(0, queue.drain(state));
+        assertTrue(state.events.isEmpty());
+    }
+}